@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link Batch#tryAddEvent} of already serialized events, under contention of as many writer threads
+ * as there are processors. When a batch is full, the writer switches to the next batch via
+ * {@link HttpPostEmitter#emitAndReturnBatch(Event)}, that happens once per thousands of events.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Threads(Threads.MAX)
+public class BatchBenchmark
+{
+  @State(Scope.Benchmark)
+  public static class EmitterState
+  {
+    @Param({"ARRAY", "NEWLINES", "ONLY_EVENTS"})
+    public BatchingStrategy batchingStrategy;
+
+    @Param({"1", "4"})
+    public int batchStripes;
+
+    HttpPostEmitter emitter;
+    Event event;
+    byte[] eventBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+      HttpEmitterConfig config = new HttpEmitterConfig.Builder("http://metrics.foo.bar")
+          .setFlushMillis(Long.MAX_VALUE)
+          .setFlushCount(Integer.MAX_VALUE)
+          .setBatchingStrategy(batchingStrategy)
+          .setBatchStripes(batchStripes)
+          .build();
+      ObjectMapper jsonMapper = new ObjectMapper();
+      emitter = new HttpPostEmitter(config, BenchmarkUtils.okHttpClient(), jsonMapper);
+      emitter.start();
+      event = BenchmarkUtils.metricEvent();
+      eventBytes = jsonMapper.writeValueAsBytes(event);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+      emitter.close();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class WriterState
+  {
+    Batch batch;
+
+    @Setup(Level.Trial)
+    public void setUp(EmitterState emitterState)
+    {
+      batch = emitterState.emitter.emitAndReturnBatch(emitterState.event);
+    }
+  }
+
+  @Benchmark
+  public boolean tryAddEvent(EmitterState emitterState, WriterState writerState)
+  {
+    if (writerState.batch.tryAddEvent(emitterState.eventBytes, emitterState.eventBytes.length)) {
+      return true;
+    }
+    writerState.batch = emitterState.emitter.emitAndReturnBatch(emitterState.event);
+    return false;
+  }
+}
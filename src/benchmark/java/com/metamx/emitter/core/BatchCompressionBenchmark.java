@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression of a 1 MB batch of metric events with each {@link ContentEncoding}. The compression ratio is printed
+ * at setup, to weigh it against the time per batch. {@link #compressWithNewCompressor()} shows the cost of creating a
+ * compressor for each batch, compared to reusing one in {@link #compress()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class BatchCompressionBenchmark
+{
+  private static final int BATCH_SIZE = 1024 * 1024;
+
+  @Param({"GZIP", "DEFLATE", "LZ4", "SNAPPY", "ZSTD"})
+  public ContentEncoding contentEncoding;
+
+  @Param({"-1"})
+  public int compressionLevel;
+
+  private final byte[] batch = new byte[BATCH_SIZE];
+  private int batchLength;
+  private ZeroCopyByteArrayOutputStream out;
+  private BatchCompressor compressor;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException
+  {
+    byte[] event = new ObjectMapper().writeValueAsBytes(BenchmarkUtils.metricEvent());
+    batch[batchLength++] = '[';
+    while (batchLength + event.length + 2 < BATCH_SIZE) {
+      System.arraycopy(event, 0, batch, batchLength, event.length);
+      batchLength += event.length;
+      batch[batchLength++] = ',';
+    }
+    batch[batchLength - 1] = ']';
+    out = new ZeroCopyByteArrayOutputStream(BATCH_SIZE);
+    compressor = contentEncoding.createCompressor(compressionLevel);
+    compress();
+    System.out.printf(
+        "%n%s level %d compression ratio: %.2f%n",
+        contentEncoding,
+        compressionLevel,
+        (double) batchLength / out.size()
+    );
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown()
+  {
+    compressor.close();
+  }
+
+  @Benchmark
+  public int compress() throws IOException
+  {
+    out.reset();
+    compressor.compress(batch, 0, batchLength, out);
+    return out.size();
+  }
+
+  @Benchmark
+  public int compressWithNewCompressor() throws IOException
+  {
+    out.reset();
+    BatchCompressor newCompressor = contentEncoding.createCompressor(compressionLevel);
+    try {
+      newCompressor.compress(batch, 0, batchLength, out);
+    }
+    finally {
+      newCompressor.close();
+    }
+    return out.size();
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.metamx.emitter.service.ServiceMetricEvent;
+import com.metamx.http.client.GoHandler;
+import com.metamx.http.client.MockHttpClient;
+import com.metamx.http.client.Request;
+import com.metamx.http.client.response.HttpResponseHandler;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+
+/**
+ * Events and a transport shared by benchmarks of emitters.
+ */
+public class BenchmarkUtils
+{
+  private static final ListenableFuture OK_FUTURE = Futures.immediateFuture(EmitterTest.OK_RESPONSE);
+
+  /**
+   * Returns an HttpClient which accepts all requests immediately, without reading their content, so that benchmarks
+   * measure the emitter rather than the network.
+   */
+  public static MockHttpClient okHttpClient()
+  {
+    MockHttpClient httpClient = new MockHttpClient();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          protected <Intermediate, Final> ListenableFuture<Final> go(
+              Request request,
+              HttpResponseHandler<Intermediate, Final> handler,
+              Duration requestReadTimeout
+          ) throws Exception
+          {
+            return (ListenableFuture<Final>) OK_FUTURE;
+          }
+        }
+    );
+    return httpClient;
+  }
+
+  /**
+   * A metric event of a typical size, with a few user dimensions.
+   */
+  public static ServiceMetricEvent metricEvent()
+  {
+    return ServiceMetricEvent
+        .builder()
+        .setDimension("dataSource", "wikipedia")
+        .setDimension("type", "timeseries")
+        .setDimension("interval", "2017-01-01T00:00:00.000Z/2017-01-02T00:00:00.000Z")
+        .setDimension("hasFilters", "true")
+        .build(new DateTime("2017-01-01T00:00:00.000Z"), "query/time", 1234)
+        .build("broker", "broker01.example.com:8080");
+  }
+
+  private BenchmarkUtils()
+  {
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link HttpPostEmitter#emit(Event)}, including serialization of events, with each
+ * {@link BatchingStrategy}, by a single writer thread and by as many writer threads as there are processors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class HttpPostEmitterBenchmark
+{
+  @Param({"ARRAY", "NEWLINES", "ONLY_EVENTS"})
+  public BatchingStrategy batchingStrategy;
+
+  @Param({"1"})
+  public int batchStripes;
+
+  private HttpPostEmitter emitter;
+  private Event event;
+
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder("http://metrics.foo.bar")
+        .setBatchingStrategy(batchingStrategy)
+        .setBatchStripes(batchStripes)
+        .build();
+    emitter = new HttpPostEmitter(config, BenchmarkUtils.okHttpClient(), new ObjectMapper());
+    emitter.start();
+    event = BenchmarkUtils.metricEvent();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException
+  {
+    emitter.close();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void emitSingleThread()
+  {
+    emitter.emit(event);
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public void emitAllThreads()
+  {
+    emitter.emit(event);
+  }
+}
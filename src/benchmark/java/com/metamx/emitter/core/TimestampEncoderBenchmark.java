@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting of event timestamps by {@link TimestampEncoder}, compared to {@link DateTime#toString()}. Timestamps
+ * advance by 1 ms per call, so that the cached second changes once per 1000 calls, as with events emitted at a high
+ * rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class TimestampEncoderBenchmark
+{
+  private DateTime[] timestamps;
+  private int next = 0;
+  private ZeroCopyByteArrayOutputStream out;
+  private JsonGenerator generator;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException
+  {
+    long now = System.currentTimeMillis();
+    timestamps = new DateTime[10_000];
+    for (int i = 0; i < timestamps.length; i++) {
+      timestamps[i] = new DateTime(now + i);
+    }
+    out = new ZeroCopyByteArrayOutputStream(1024);
+    generator = new ObjectMapper().getFactory().createGenerator(out);
+  }
+
+  private DateTime nextTimestamp()
+  {
+    DateTime timestamp = timestamps[next];
+    next = (next + 1) % timestamps.length;
+    return timestamp;
+  }
+
+  @Benchmark
+  public String jodaToString()
+  {
+    return nextTimestamp().toString();
+  }
+
+  @Benchmark
+  public String encoderToString()
+  {
+    return TimestampEncoder.toString(nextTimestamp());
+  }
+
+  @Benchmark
+  public int jodaWriteStringField() throws IOException
+  {
+    generator.writeStartObject();
+    generator.writeStringField("timestamp", nextTimestamp().toString());
+    generator.writeEndObject();
+    return flush();
+  }
+
+  @Benchmark
+  public int encoderWriteStringField() throws IOException
+  {
+    generator.writeStartObject();
+    TimestampEncoder.writeStringField(generator, "timestamp", nextTimestamp());
+    generator.writeEndObject();
+    return flush();
+  }
+
+  private int flush() throws IOException
+  {
+    generator.flush();
+    int size = out.size();
+    out.reset();
+    return size;
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.metamx.emitter.core.BenchmarkUtils;
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of {@link ServiceMetricEvent} and {@link AlertEvent} to JSON, as done for each emitted event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class EventSerializationBenchmark
+{
+  private final ObjectMapper jsonMapper = new ObjectMapper();
+  private ServiceMetricEvent metricEvent;
+  private ServiceMetricEvent serviceEmitterMetricEvent;
+  private AlertEvent alertEvent;
+
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    metricEvent = BenchmarkUtils.metricEvent();
+    serviceEmitterMetricEvent = ServiceMetricEvent
+        .builder()
+        .setDimension("dataSource", "wikipedia")
+        .setDimension("type", "timeseries")
+        .setDimension("interval", "2017-01-01T00:00:00.000Z/2017-01-02T00:00:00.000Z")
+        .setDimension("hasFilters", "true")
+        .build(new DateTime("2017-01-01T00:00:00.000Z"), "query/time", 1234)
+        .build(
+            new ServiceDimensions(
+                ImmutableMap.of("service", "broker", "host", "broker01.example.com:8080", "version", "0.10.1")
+            )
+        );
+    alertEvent = AlertBuilder
+        .create("Failed to announce segment[%s]", "wikipedia_2017-01-01")
+        .addData("exceptionType", "java.io.IOException")
+        .addData("exceptionMessage", "Connection refused")
+        .severity(AlertEvent.Severity.COMPONENT_FAILURE)
+        .build(ImmutableMap.of("service", "historical", "host", "historical01.example.com:8083"));
+  }
+
+  @Benchmark
+  public byte[] serializeMetricEvent() throws IOException
+  {
+    return jsonMapper.writeValueAsBytes(metricEvent);
+  }
+
+  /**
+   * An event built by {@link ServiceEmitter}, with pre-serialized service dimensions.
+   */
+  @Benchmark
+  public byte[] serializeServiceEmitterMetricEvent() throws IOException
+  {
+    return jsonMapper.writeValueAsBytes(serviceEmitterMetricEvent);
+  }
+
+  @Benchmark
+  public byte[] serializeServiceEmitterMetricEventMap() throws IOException
+  {
+    return jsonMapper.writeValueAsBytes(serviceEmitterMetricEvent.toMap());
+  }
+
+  @Benchmark
+  public byte[] serializeAlertEvent() throws IOException
+  {
+    return jsonMapper.writeValueAsBytes(alertEvent);
+  }
+
+  /**
+   * The serialization via {@link ServiceMetricEvent#toMap()}, before events were written directly to the generator.
+   */
+  @Benchmark
+  public byte[] serializeMetricEventMap() throws IOException
+  {
+    return jsonMapper.writeValueAsBytes(metricEvent.toMap());
+  }
+
+  @Benchmark
+  public byte[] serializeAlertEventMap() throws IOException
+  {
+    return jsonMapper.writeValueAsBytes(alertEvent.toMap());
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.metamx.common.logger.Logger;
+
+/**
+ * The effective size of batches of a {@link HttpPostEmitter}, which adapts to the limits of the collector, so that
+ * throughput recovers without reconfiguration, when such limits change.
+ *
+ * When the collector rejects a batch with HTTP 413, the target drops to a half of the rejected batch, like
+ * multiplicative decrease in TCP congestion control. After successful sends of batches which are close to the target,
+ * it grows by 1/{@link #GROWTH_DIVISOR} of itself, up to {@link BaseHttpEmittingConfig#getMaxBatchSize()}, unless the
+ * send latency per byte grows considerably, that means that the collector is overloaded by larger batches. The target
+ * bounds the size of batches in bytes, {@link BaseHttpEmittingConfig#getFlushCount()} still bounds it in events.
+ */
+final class AdaptiveBatchSize
+{
+  private static final Logger log = new Logger(AdaptiveBatchSize.class);
+
+  static final int MIN_TARGET = 16 * 1024;
+  /**
+   * The target grows by 1/8 after a successful send, so that the collector's limit is probed again in a few sends, but
+   * the target recovers from {@link #MIN_TARGET} to the default maxBatchSize in about 50 sends.
+   */
+  private static final int GROWTH_DIVISOR = 8;
+  /**
+   * The target doesn't grow, if the latency per byte of a send is greater than this times the average.
+   */
+  private static final double MAX_LATENCY_GROWTH = 2.0;
+  private static final double LATENCY_SMOOTHING = 0.2;
+
+  private final String destination;
+  private final int maxBatchSize;
+  /**
+   * Read by writer threads for every event, written under the lock of this object.
+   */
+  private volatile int target;
+  /**
+   * Exponentially weighted moving average of send latency per byte, 0 before the first measurement. Guarded by this.
+   */
+  private double averageNanosPerByte = 0;
+
+  AdaptiveBatchSize(String destination, int maxBatchSize)
+  {
+    this.destination = destination;
+    this.maxBatchSize = maxBatchSize;
+    this.target = maxBatchSize;
+  }
+
+  int getTarget()
+  {
+    return target;
+  }
+
+  /**
+   * Called when a batch of the given size is rejected by the collector with HTTP 413.
+   */
+  synchronized void onTooLarge(int batchSize)
+  {
+    int newTarget = Math.max(Math.min(target, batchSize / 2), Math.min(MIN_TARGET, maxBatchSize));
+    if (newTarget < target) {
+      log.warn(
+          "Batch of [%,d] bytes is too large for [%s], lowering the batch size target to [%,d] bytes",
+          batchSize,
+          destination,
+          newTarget
+      );
+      target = newTarget;
+    }
+  }
+
+  /**
+   * Called when a batch of the given size is sent successfully, either a fresh batch or a retry of a failed one.
+   */
+  synchronized void onSuccess(int batchSize, long latencyNanos)
+  {
+    if (batchSize == 0) {
+      return;
+    }
+    double nanosPerByte = (double) latencyNanos / batchSize;
+    boolean latencyGrows = averageNanosPerByte > 0 && nanosPerByte > averageNanosPerByte * MAX_LATENCY_GROWTH;
+    averageNanosPerByte = averageNanosPerByte == 0
+                          ? nanosPerByte
+                          : averageNanosPerByte + (nanosPerByte - averageNanosPerByte) * LATENCY_SMOOTHING;
+    // Batches much smaller than the target, e. g. sealed by time or count, don't prove that larger batches are
+    // accepted.
+    if (target == maxBatchSize || batchSize < target / 2 || latencyGrows) {
+      return;
+    }
+    target = (int) Math.min((long) target + Math.max(target / GROWTH_DIVISOR, 1), maxBatchSize);
+    if (target == maxBatchSize) {
+      log.info("Batch size target for [%s] is restored to maxBatchSize[%,d]", destination, maxBatchSize);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized double getAverageNanosPerByte()
+  {
+    return averageNanosPerByte;
+  }
+}
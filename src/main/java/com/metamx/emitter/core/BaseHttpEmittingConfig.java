@@ -31,6 +31,24 @@ public class BaseHttpEmittingConfig
   public static final String DEFAULT_BASIC_AUTHENTICATION = null;
   public static final BatchingStrategy DEFAULT_BATCHING_STRATEGY = BatchingStrategy.ARRAY;
   public static final ContentEncoding DEFAULT_CONTENT_ENCODING = null;
+  public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_NEWEST;
+  public static final long DEFAULT_OVERFLOW_BLOCK_TIME_OUT = 1000;
+  public static final String DEFAULT_SPILL_DIRECTORY = null;
+  public static final int DEFAULT_SPILL_SEGMENT_SIZE = 64 * 1024 * 1024;
+  public static final long DEFAULT_MAX_SPILL_SIZE = 1024 * 1024 * 1024;
+  public static final int DEFAULT_MAX_IN_FLIGHT_BATCHES = 1;
+  public static final int DEFAULT_BATCH_STRIPES = 1;
+  public static final long DEFAULT_MIN_RETRY_BACKOFF_MILLIS = 1000;
+  public static final long DEFAULT_MAX_RETRY_BACKOFF_MILLIS = 60 * 1000;
+  public static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD = 3;
+  public static final int DEFAULT_COMPRESSION_LEVEL = -1;
+  public static final int DEFAULT_COMPRESSION_THREADS = 0;
+  public static final boolean DEFAULT_INCREMENTAL_COMPRESSION = false;
+  public static final int DEFAULT_MAX_LARGE_EVENTS_PER_BATCH = 1;
+  public static final long DEFAULT_MAX_POOLED_BUFFER_SIZE = 25 * 1024 * 1024;
+  public static final long DEFAULT_BUFFER_POOL_IDLE_MILLIS = 60 * 1000;
+  public static final boolean DEFAULT_BUFFER_SIZE_CLASSES = false;
+  public static final int DEFAULT_INITIAL_BATCH_BUFFER_SIZE = 0;
 
   @Min(1)
   @JsonProperty
@@ -54,6 +72,11 @@ public class BaseHttpEmittingConfig
   @JsonProperty
   int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
 
+  /**
+   * The limit of memory used by batch buffers and compression buffers of an {@link HttpPostEmitter}, see the emitter's
+   * class-level javadoc for what happens when this limit is reached. If there is no room for a compression buffer, the
+   * batch is sent uncompressed.
+   */
   @Min(0)
   @JsonProperty
   long maxBufferSize = DEFAULT_MAX_BUFFER_SIZE;
@@ -61,6 +84,132 @@ public class BaseHttpEmittingConfig
   @JsonProperty
   ContentEncoding contentEncoding = DEFAULT_CONTENT_ENCODING;
 
+  @JsonProperty
+  OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+
+  @Min(0)
+  @JsonProperty
+  long overflowBlockTimeOut = DEFAULT_OVERFLOW_BLOCK_TIME_OUT;
+
+  /**
+   * If set, batches which failed to be sent are kept in memory-mapped files in this directory rather than in heap, and
+   * are sent when the collector is available again, including after restart of the process.
+   */
+  @JsonProperty
+  String spillDirectory = DEFAULT_SPILL_DIRECTORY;
+
+  @Min(0)
+  @JsonProperty
+  int spillSegmentSize = DEFAULT_SPILL_SEGMENT_SIZE;
+
+  @Min(0)
+  @JsonProperty
+  long maxSpillSize = DEFAULT_MAX_SPILL_SIZE;
+
+  /**
+   * The maximum number of batches which are sent to the collector concurrently. Each in-flight batch holds a buffer, so
+   * it is also limited by {@link #maxBufferSize}.
+   */
+  @Min(1)
+  @JsonProperty
+  int maxInFlightBatches = DEFAULT_MAX_IN_FLIGHT_BATCHES;
+
+  /**
+   * The number of batches which are filled concurrently by threads calling {@link HttpPostEmitter#emit(Event)}. Values
+   * greater than 1 reduce contention between writer threads on many-core machines, at the cost of smaller batches and
+   * more buffers. maxBufferSize should fit at least batchStripes + 1 batches.
+   */
+  @Min(1)
+  @JsonProperty
+  int batchStripes = DEFAULT_BATCH_STRIPES;
+
+  /**
+   * The delays between retries of failed batches grow exponentially from minRetryBackoffMillis to
+   * maxRetryBackoffMillis, see {@link CircuitBreaker}.
+   */
+  @Min(0)
+  @JsonProperty
+  long minRetryBackoffMillis = DEFAULT_MIN_RETRY_BACKOFF_MILLIS;
+
+  @Min(0)
+  @JsonProperty
+  long maxRetryBackoffMillis = DEFAULT_MAX_RETRY_BACKOFF_MILLIS;
+
+  /**
+   * The number of consecutive failures after which fresh batches are not sent, until a retry succeeds.
+   */
+  @Min(1)
+  @JsonProperty
+  int circuitBreakerFailureThreshold = DEFAULT_CIRCUIT_BREAKER_FAILURE_THRESHOLD;
+
+  /**
+   * The compression level of {@link #contentEncoding}, -1 means the default level of the codec. See
+   * {@link ContentEncoding} for the levels supported by each codec.
+   */
+  @Min(-1)
+  @JsonProperty
+  int compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+
+  /**
+   * If positive, batches are compressed with {@link #contentEncoding} by a process-wide pool of threads, rather than
+   * by the thread which sends batches, so that a batch could be compressed while the previous ones are sent. The pool
+   * is shared by all emitters, and has as many threads as the largest of their compressionThreads. Effective only with
+   * {@link #maxInFlightBatches} greater than 1, which also bounds the number of batches queued for compression.
+   */
+  @Min(0)
+  @JsonProperty
+  int compressionThreads = DEFAULT_COMPRESSION_THREADS;
+
+  /**
+   * If true, batches are compressed with {@link #contentEncoding} incrementally while they are filled, by the thread
+   * which sends batches, so that only a small tail of a batch remains to be compressed after the batch is sealed.
+   * Supported only by the encodings for which {@link ContentEncoding#supportsIncrementalCompression()} returns true.
+   */
+  @JsonProperty
+  boolean incrementalCompression = DEFAULT_INCREMENTAL_COMPRESSION;
+
+  /**
+   * Events which are too large to share a batch with other events are sent without copying them into a batch buffer,
+   * up to this number of such events queued at the same time are sent in one request. Such request may be larger than
+   * {@link #maxBatchSize}.
+   */
+  @Min(1)
+  @JsonProperty
+  int maxLargeEventsPerBatch = DEFAULT_MAX_LARGE_EVENTS_PER_BATCH;
+
+  /**
+   * The high-water mark of memory held by batch buffers pooled for reuse. Buffers released to the pool above this
+   * size are discarded.
+   */
+  @Min(0)
+  @JsonProperty
+  long maxPooledBufferSize = DEFAULT_MAX_POOLED_BUFFER_SIZE;
+
+  /**
+   * Buffers which stay in the pool, unused, for this long, are discarded, so that the memory taken by buffers during
+   * a burst of traffic is freed.
+   */
+  @Min(1)
+  @JsonProperty
+  long bufferPoolIdleMillis = DEFAULT_BUFFER_POOL_IDLE_MILLIS;
+
+  /**
+   * If true, buffers for batches smaller than {@link #maxBatchSize}, e. g. the halves of a batch rejected by the
+   * collector as too large, are pooled in power-of-two size classes, rather than taking buffers of the maximum size.
+   */
+  @JsonProperty
+  boolean bufferSizeClasses = DEFAULT_BUFFER_SIZE_CLASSES;
+
+  /**
+   * If positive, the buffer of a batch is allocated when the first event is added to the batch, of this size, and
+   * then grows at least twice when an event does not fit, up to {@link #maxBatchSize}. This saves memory of emitters
+   * which send little data, e. g. with many URIs of {@link ParametrizedUriEmitter}. 0 means that batch buffers of
+   * maxBatchSize are allocated when batches are created.
+   */
+  @Min(0)
+  @JsonProperty
+  int initialBatchBufferSize = DEFAULT_INITIAL_BATCH_BUFFER_SIZE;
+
   public long getFlushMillis()
   {
     return flushMillis;
@@ -99,6 +248,96 @@ public class BaseHttpEmittingConfig
     return contentEncoding;
   }
 
+  public OverflowPolicy getOverflowPolicy()
+  {
+    return overflowPolicy;
+  }
+
+  public long getOverflowBlockTimeOut()
+  {
+    return overflowBlockTimeOut;
+  }
+
+  public String getSpillDirectory()
+  {
+    return spillDirectory;
+  }
+
+  public int getSpillSegmentSize()
+  {
+    return spillSegmentSize;
+  }
+
+  public long getMaxSpillSize()
+  {
+    return maxSpillSize;
+  }
+
+  public int getMaxInFlightBatches()
+  {
+    return maxInFlightBatches;
+  }
+
+  public int getBatchStripes()
+  {
+    return batchStripes;
+  }
+
+  public long getMinRetryBackoffMillis()
+  {
+    return minRetryBackoffMillis;
+  }
+
+  public long getMaxRetryBackoffMillis()
+  {
+    return maxRetryBackoffMillis;
+  }
+
+  public int getCircuitBreakerFailureThreshold()
+  {
+    return circuitBreakerFailureThreshold;
+  }
+
+  public int getCompressionLevel()
+  {
+    return compressionLevel;
+  }
+
+  public int getCompressionThreads()
+  {
+    return compressionThreads;
+  }
+
+  public boolean isIncrementalCompression()
+  {
+    return incrementalCompression;
+  }
+
+  public int getMaxLargeEventsPerBatch()
+  {
+    return maxLargeEventsPerBatch;
+  }
+
+  public long getMaxPooledBufferSize()
+  {
+    return maxPooledBufferSize;
+  }
+
+  public long getBufferPoolIdleMillis()
+  {
+    return bufferPoolIdleMillis;
+  }
+
+  public boolean isBufferSizeClasses()
+  {
+    return bufferSizeClasses;
+  }
+
+  public int getInitialBatchBufferSize()
+  {
+    return initialBatchBufferSize;
+  }
+
   @Override
   public String toString()
   {
@@ -115,6 +354,24 @@ public class BaseHttpEmittingConfig
         ", batchingStrategy=" + batchingStrategy +
         ", maxBatchSize=" + maxBatchSize +
         ", maxBufferSize=" + maxBufferSize +
-        ", contentEncoding=" + contentEncoding;
+        ", contentEncoding=" + contentEncoding +
+        ", overflowPolicy=" + overflowPolicy +
+        ", overflowBlockTimeOut=" + overflowBlockTimeOut +
+        ", spillDirectory='" + spillDirectory + '\'' +
+        ", spillSegmentSize=" + spillSegmentSize +
+        ", maxSpillSize=" + maxSpillSize +
+        ", maxInFlightBatches=" + maxInFlightBatches +
+        ", batchStripes=" + batchStripes +
+        ", minRetryBackoffMillis=" + minRetryBackoffMillis +
+        ", maxRetryBackoffMillis=" + maxRetryBackoffMillis +
+        ", circuitBreakerFailureThreshold=" + circuitBreakerFailureThreshold +
+        ", compressionLevel=" + compressionLevel +
+        ", compressionThreads=" + compressionThreads +
+        ", incrementalCompression=" + incrementalCompression +
+        ", maxLargeEventsPerBatch=" + maxLargeEventsPerBatch +
+        ", maxPooledBufferSize=" + maxPooledBufferSize +
+        ", bufferPoolIdleMillis=" + bufferPoolIdleMillis +
+        ", bufferSizeClasses=" + bufferSizeClasses +
+        ", initialBatchBufferSize=" + initialBatchBufferSize;
   }
 }
@@ -19,8 +19,11 @@ package com.metamx.emitter.core;
 
 import com.google.common.base.Preconditions;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.AbstractQueuedLongSynchronizer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Buffer for batched data + synchronization state.
@@ -39,6 +42,11 @@ import java.util.concurrent.locks.AbstractQueuedLongSynchronizer;
  *
  * In this class, "lock" means "increment number of parties by 1", i. e. lock the emitter thread from emitting this
  * batch. "Unlock" means "decrement number of parties by 1".
+ *
+ * With {@link BaseHttpEmittingConfig#getInitialBatchBufferSize()}, the buffer is replaced with a larger one, when an
+ * event doesn't fit it. Only a writer which finds parties=0 could replace the buffer, it reserves the space for its
+ * event beyond the end of the current buffer with the same compareAndSet, so that other writers can't reserve space
+ * in the current buffer until the new one is installed. See {@link #tryAddEvent}.
  */
 class Batch extends AbstractQueuedLongSynchronizer
 {
@@ -72,6 +80,30 @@ class Batch extends AbstractQueuedLongSynchronizer
   private static final long UNLOCK_TAG = 0;
   private static final long UNLOCK_AND_SEAL_TAG = 1;
   private static final long SEAL_TAG = 2;
+  /**
+   * {@link SealReason} is passed in the higher bits of UNLOCK_AND_SEAL_TAG and SEAL_TAG.
+   */
+  private static final int SEAL_REASON_SHIFT = 8;
+  private static final long OPERATION_MASK = (1L << SEAL_REASON_SHIFT) - 1;
+  private static final SealReason[] SEAL_REASONS = SealReason.values();
+
+  /**
+   * Why a batch is sealed, counted in {@link EmitterStats}.
+   */
+  enum SealReason
+  {
+    COUNT,
+    SIZE,
+    TIME,
+    /** {@link HttpPostEmitter#flush()}, {@link HttpPostEmitter#flushAsync()} or close */
+    FLUSH
+  }
+
+  /**
+   * The initial buffer of batches, which buffers are allocated when the first event is added, see
+   * {@link BaseHttpEmittingConfig#getInitialBatchBufferSize()}.
+   */
+  static final byte[] EMPTY_BUFFER = new byte[0];
 
   /**
    * The emitter this batch belongs to.
@@ -79,14 +111,28 @@ class Batch extends AbstractQueuedLongSynchronizer
   private final HttpPostEmitter emitter;
 
   /**
-   * The data buffer of the batch.
+   * The data buffer of the batch. Replaced with a larger one by writers, when an event doesn't fit it, until the batch
+   * is sealed.
+   */
+  volatile byte[] buffer;
+
+  /**
+   * The size of the buffer acquired for the next batch after this one, see {@link HttpPostEmitter#onSealExclusive}. 0
+   * means that the buffer of the next batch is allocated when the first event is added to it. Set to the size needed
+   * for an event, if the buffer of this batch couldn't grow to fit it, because the memory budget is exhausted.
+   */
+  volatile int nextBatchBufferSize;
+
+  /**
+   * The index of {@link HttpPostEmitter#concurrentBatches} stripe this batch belongs to.
    */
-  final byte[] buffer;
+  final int stripe;
 
   /**
-   * Ordering number of this batch, as they filled & emitted in {@link HttpPostEmitter} serially, starting from 0.
+   * Ordering number of this batch, as they sealed & emitted in {@link HttpPostEmitter} serially, starting from 0.
+   * Assigned in {@link HttpPostEmitter#onSealExclusive(Batch, Batch.SealReason)}, -1 before that.
    */
-  final int batchNumber;
+  volatile int batchNumber = -1;
 
   /**
    * The number of events in this batch, needed for event count-based batch emitting.
@@ -96,13 +142,70 @@ class Batch extends AbstractQueuedLongSynchronizer
   /**
    * The time when the first event was written into this batch, needed for timeout-based batch emitting.
    */
-  private long firstEventTimestamp = -1;
+  private volatile long firstEventTimestamp = -1;
+
+  /**
+   * Set by {@link HttpPostEmitter#onSealExclusive(Batch, Batch.SealReason)}, if it couldn't install the next batch
+   * after this one because the emitter's memory budget is exhausted. Then writer threads retry to install the next
+   * batch themselves.
+   */
+  volatile boolean noBufferForNextBatch = false;
+
+  /**
+   * Claimed by {@link HttpPostEmitter#emittingThread} before emitting this batch, or by a writer thread, discarding
+   * this batch according to {@link OverflowPolicy#DROP_OLDEST}.
+   */
+  private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+  /**
+   * Compression of the already written part of this batch, with
+   * {@link BaseHttpEmittingConfig#isIncrementalCompression()}. Accessed only by {@link HttpPostEmitter#emittingThread}.
+   */
+  IncrementalCompression incrementalCompression = null;
+
+  /**
+   * Writer threads parked in {@link HttpPostEmitter#awaitNextBatch}, until the next batch is installed after this one.
+   */
+  private final ConcurrentLinkedQueue<Thread> waitersForNextBatch = new ConcurrentLinkedQueue<>();
 
-  Batch(HttpPostEmitter emitter, byte[] buffer, int batchNumber)
+  Batch(HttpPostEmitter emitter, byte[] buffer, int stripe)
   {
     this.emitter = emitter;
     this.buffer = buffer;
-    this.batchNumber = batchNumber;
+    this.stripe = stripe;
+    this.nextBatchBufferSize = emitter.newBatchBufferSize();
+  }
+
+  /**
+   * Returns the batch number of this sealed batch, waiting until it's assigned, if this batch is being sealed
+   * concurrently in another thread.
+   */
+  int awaitBatchNumber()
+  {
+    Preconditions.checkState(isSealed(getState()));
+    int batchNumber;
+    while ((batchNumber = this.batchNumber) < 0) {
+      // onSealExclusive() assigns the number very soon after the batch is sealed.
+      Thread.yield();
+    }
+    return batchNumber;
+  }
+
+  boolean tryClaim()
+  {
+    return claimed.compareAndSet(false, true);
+  }
+
+  void addWaiterForNextBatch(Thread waiter)
+  {
+    waitersForNextBatch.add(waiter);
+  }
+
+  void wakeUpWaitersForNextBatch()
+  {
+    for (Thread waiter; (waiter = waitersForNextBatch.poll()) != null; ) {
+      LockSupport.unpark(waiter);
+    }
   }
 
   int getSealedBufferWatermark()
@@ -112,97 +215,119 @@ class Batch extends AbstractQueuedLongSynchronizer
     return bufferWatermark(state);
   }
 
+  /**
+   * Returns the watermark, below which all bytes of the buffer are written and won't change until the batch is emitted,
+   * or -1 if some writers are copying their events into the buffer at the moment.
+   */
+  int getWrittenBufferWatermark()
+  {
+    long state = getState();
+    return parties(state) == 0 ? bufferWatermark(state) : -1;
+  }
+
   /**
    * Tries to add (write) event to the batch, returns true, if successful. If fails, no subsequent attempts to add event
-   * to this batch will succeed, the next batch should be taken.
+   * to this batch will succeed, the next batch should be taken. The event is the first eventLength bytes of the given
+   * array.
    */
-  boolean tryAddEvent(byte[] event)
+  boolean tryAddEvent(byte[] event, int eventLength)
   {
-    while (true) {
-      long state = getState();
-      if (isSealed(state)) {
-        return false;
-      }
-      int bufferWatermark = bufferWatermark(state);
-      if (bufferWatermark == 0) {
-        if (tryAddFirstEvent(event)) {
-          return true;
+    // Acquired to replace the buffer of this batch, released if not used.
+    byte[] grownBuffer = null;
+    try {
+      while (true) {
+        long state = getState();
+        if (isSealed(state)) {
+          return false;
+        }
+        int bufferWatermark = bufferWatermark(state);
+        int newBufferWatermark = newBufferWatermark(bufferWatermark, eventLength);
+        if (bufferWatermark > 0 && newBufferWatermark > emitter.bufferWatermarkLimit()) {
+          seal(SealReason.SIZE);
+          return false;
         }
-      } else if (newBufferWatermark(bufferWatermark, event) <= emitter.maxBufferWatermark) {
-        if (tryAddNonFirstEvent(state, event)) {
+        long newState = state + (newBufferWatermark - bufferWatermark) + PARTY;
+        Preconditions.checkState(bufferWatermark(newState) > 0);
+        byte[] buffer = this.buffer;
+        int requiredBufferSize = newBufferWatermark + emitter.batchingStrategy.batchEndLength();
+        if (requiredBufferSize <= buffer.length) {
+          if (compareAndSetState(state, newState)) {
+            writeEventAndUnlock(buffer, bufferWatermark, event, eventLength);
+            return true;
+          }
+        } else if (parties(state) > 0) {
+          // The buffer could be replaced only when no writers are copying their events into it.
+          Thread.yield();
+        } else if (grownBuffer == null || grownBuffer.length < requiredBufferSize) {
+          if (grownBuffer != null) {
+            emitter.returnBufferToPool(grownBuffer);
+          }
+          grownBuffer = emitter.tryAcquireGrownBuffer(buffer.length, requiredBufferSize);
+          if (grownBuffer == null) {
+            // The memory budget is exhausted, the next batch will be created with a buffer which fits the event, or
+            // the overflow policy will be applied.
+            nextBatchBufferSize = Math.max(
+                nextBatchBufferSize,
+                newBufferWatermark(0, eventLength) + emitter.batchingStrategy.batchEndLength()
+            );
+            seal(SealReason.SIZE);
+            return false;
+          }
+        } else if (compareAndSetState(state, newState)) {
+          // All the previous writers are completed, and other writers can't reserve space in the current buffer,
+          // because this writer has reserved the space beyond its end.
+          System.arraycopy(buffer, 0, grownBuffer, 0, bufferWatermark);
+          byte[] newBuffer = grownBuffer;
+          grownBuffer = null;
+          this.buffer = newBuffer;
+          emitter.releaseOutgrownBuffer(buffer);
+          writeEventAndUnlock(newBuffer, bufferWatermark, event, eventLength);
           return true;
         }
-      } else {
-        seal();
-        return false;
       }
     }
-  }
-
-  private boolean tryAddFirstEvent(byte[] event)
-  {
-    if (!tryReserveFirstEventSizeAndLock(event)) {
-      return false;
-    }
-    try {
-      int bufferOffset = emitter.batchingStrategy.writeBatchStart(buffer);
-      writeEvent(event, bufferOffset);
-      eventCount.incrementAndGet();
-      firstEventTimestamp = System.currentTimeMillis();
-      return true;
-    }
     finally {
-      unlock();
+      if (grownBuffer != null) {
+        emitter.returnBufferToPool(grownBuffer);
+      }
     }
   }
 
-  private boolean tryReserveFirstEventSizeAndLock(byte[] event)
-  {
-    return compareAndSetState(0, emitter.batchingStrategy.batchStartLength() + event.length + PARTY);
-  }
-
-  private int newBufferWatermark(int bufferWatermark, byte[] eventBytes)
-  {
-    return bufferWatermark + emitter.batchingStrategy.separatorLength() + eventBytes.length;
-  }
-
-  private boolean tryAddNonFirstEvent(long state, byte[] event)
+  /**
+   * Returns the watermark after adding the event, including the batch start, if the batch is empty, or the separator
+   * from the previous event.
+   */
+  private int newBufferWatermark(int bufferWatermark, int eventLength)
   {
-    int bufferOffset = tryReserveEventSizeAndLock(state, emitter.batchingStrategy.separatorLength() + event.length);
-    if (bufferOffset < 0) {
-      return false;
-    }
-    try {
-      bufferOffset = emitter.batchingStrategy.writeMessageSeparator(buffer, bufferOffset);
-      writeEvent(event, bufferOffset);
-      return true;
-    }
-    finally {
-      unlockAndSealIfNeeded();
+    if (bufferWatermark == 0) {
+      return emitter.batchingStrategy.batchStartLength() + eventLength;
     }
+    return bufferWatermark + emitter.batchingStrategy.separatorLength() + eventLength;
   }
 
   /**
-   * Returns the buffer offset at which the caller has reserved the ability to write `size` bytes exclusively,
-   * or negative number, if the reservation attempt failed.
+   * Writes the event into the space, reserved by the caller at the given bufferWatermark, and unlocks.
    */
-  private int tryReserveEventSizeAndLock(long state, int size)
+  private void writeEventAndUnlock(byte[] buffer, int bufferWatermark, byte[] event, int eventLength)
   {
-    Preconditions.checkArgument(size > 0);
-    int bufferWatermark = bufferWatermark(state);
-    while (true) {
-      if (compareAndSetState(state, state + size + PARTY)) {
-        return bufferWatermark;
+    if (bufferWatermark == 0) {
+      try {
+        int bufferOffset = emitter.batchingStrategy.writeBatchStart(buffer);
+        System.arraycopy(event, 0, buffer, bufferOffset, eventLength);
+        eventCount.incrementAndGet();
+        firstEventTimestamp = System.currentTimeMillis();
+      }
+      finally {
+        unlock();
       }
-      state = getState();
-      if (isSealed(state)) {
-        return -1;
+      emitter.onFirstEventAdded();
+    } else {
+      try {
+        int bufferOffset = emitter.batchingStrategy.writeMessageSeparator(buffer, bufferWatermark);
+        System.arraycopy(event, 0, buffer, bufferOffset, eventLength);
       }
-      bufferWatermark = bufferWatermark(state);
-      int newBufferWatermark = bufferWatermark + size;
-      Preconditions.checkState(newBufferWatermark > 0);
-      if (newBufferWatermark > emitter.maxBufferWatermark) {
-        return -1;
+      finally {
+        unlockAndSealIfNeeded();
       }
     }
   }
@@ -210,48 +335,53 @@ class Batch extends AbstractQueuedLongSynchronizer
   private void unlockAndSealIfNeeded()
   {
     if (eventCount.incrementAndGet() >= emitter.config.getFlushCount()) {
-      unlockAndSeal();
+      unlockAndSeal(SealReason.COUNT);
     } else {
       long timeSinceFirstEvent = System.currentTimeMillis() - firstEventTimestamp;
       if (firstEventTimestamp > 0 && timeSinceFirstEvent > emitter.config.getFlushMillis()) {
-        unlockAndSeal();
+        unlockAndSeal(SealReason.TIME);
       } else {
         unlock();
       }
     }
   }
 
+  long getFirstEventTimestamp()
+  {
+    return firstEventTimestamp;
+  }
+
   void sealIfFlushNeeded() {
     long timeSinceFirstEvent = System.currentTimeMillis() - firstEventTimestamp;
     if (firstEventTimestamp > 0 && timeSinceFirstEvent > emitter.config.getFlushMillis()) {
-      seal();
+      seal(SealReason.TIME);
     }
   }
 
-  private void writeEvent(byte[] event, int bufferOffset)
-  {
-    System.arraycopy(event, 0, buffer, bufferOffset, event.length);
-  }
-
-
   private void unlock()
   {
     releaseShared(UNLOCK_TAG);
   }
 
-  private void unlockAndSeal()
+  private void unlockAndSeal(SealReason reason)
   {
-    releaseShared(UNLOCK_AND_SEAL_TAG);
+    releaseShared(UNLOCK_AND_SEAL_TAG | ((long) reason.ordinal() << SEAL_REASON_SHIFT));
   }
 
   void seal()
   {
-    releaseShared(SEAL_TAG);
+    seal(SealReason.FLUSH);
+  }
+
+  private void seal(SealReason reason)
+  {
+    releaseShared(SEAL_TAG | ((long) reason.ordinal() << SEAL_REASON_SHIFT));
   }
 
   @Override
-  protected boolean tryReleaseShared(long tag)
+  protected boolean tryReleaseShared(long arg)
   {
+    long tag = arg & OPERATION_MASK;
     if (tag == UNLOCK_TAG) {
       while (true) {
         long state = getState();
@@ -275,7 +405,7 @@ class Batch extends AbstractQueuedLongSynchronizer
         if (compareAndSetState(state, newState)) {
           // Ensures only one thread calls emitter.onSealExclusive() for each batch.
           if (!isSealed(state)) {
-            emitter.onSealExclusive(this);
+            emitter.onSealExclusive(this, SEAL_REASONS[(int) (arg >>> SEAL_REASON_SHIFT)]);
           }
           return isEmittingAllowed(newState);
         }
@@ -290,12 +420,12 @@ class Batch extends AbstractQueuedLongSynchronizer
         }
         long newState = state | SEAL_BIT;
         if (compareAndSetState(state, newState)) {
-          emitter.onSealExclusive(this);
+          emitter.onSealExclusive(this, SEAL_REASONS[(int) (arg >>> SEAL_REASON_SHIFT)]);
           return isEmittingAllowed(newState);
         }
       }
     } else {
-      throw new IllegalStateException("Unknown tag: " + tag);
+      throw new IllegalStateException("Unknown tag: " + arg);
     }
   }
 
@@ -315,7 +445,9 @@ class Batch extends AbstractQueuedLongSynchronizer
   {
     long state = getState();
     return "Batch{"
-           + "bufferWatermark=" + bufferWatermark(state) +
+           + "stripe=" + stripe +
+           ", batchNumber=" + batchNumber +
+           ", bufferWatermark=" + bufferWatermark(state) +
            ", parties=" + parties(state) +
            ", isSealed=" + isSealed(state) +
            "}";
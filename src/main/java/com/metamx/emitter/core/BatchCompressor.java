@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import java.io.IOException;
+
+/**
+ * Compresses batches according to a {@link ContentEncoding}. Implementations are not thread-safe, and are reused for
+ * many batches, see {@link HttpPostEmitter#acquireCompressor}.
+ */
+interface BatchCompressor
+{
+  /**
+   * Appends the compressed bytes of buffer[offset, offset + length) to out.
+   */
+  void compress(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out) throws IOException;
+
+  /**
+   * Releases the resources of this compressor, e. g. native memory of a {@link java.util.zip.Deflater}.
+   */
+  void close();
+}
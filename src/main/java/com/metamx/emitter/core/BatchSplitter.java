@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Finds the boundaries of events in a batch, to split a batch which is rejected by the collector as too large, see
+ * {@link HttpPostEmitter}. Boundaries of JSON objects and arrays are found by matching brackets, strings by the closing
+ * quote, and numbers and literals by the first character which can't be a part of them. Events in binary formats, see
+ * {@link BatchingStrategy#getBinaryFactory()}, are skipped with a parser.
+ */
+final class BatchSplitter
+{
+  /**
+   * Returns the offset after the end of the JSON value, which starts at the given offset, or -1 if there is no value,
+   * or it doesn't end before the limit.
+   */
+  static int findJsonValueEnd(byte[] buffer, int offset, int limit)
+  {
+    if (offset >= limit) {
+      return -1;
+    }
+    byte first = buffer[offset];
+    if (first == '"') {
+      return findJsonStringEnd(buffer, offset, limit);
+    }
+    if (isScalarStart(first)) {
+      return findJsonScalarEnd(buffer, offset, limit);
+    }
+    if (first != '{' && first != '[') {
+      return -1;
+    }
+    int depth = 0;
+    boolean inString = false;
+    for (int i = offset; i < limit; i++) {
+      byte b = buffer[i];
+      if (inString) {
+        if (b == '\\') {
+          // Skip the escaped character
+          i++;
+        } else if (b == '"') {
+          inString = false;
+        }
+      } else if (b == '"') {
+        inString = true;
+      } else if (b == '{' || b == '[') {
+        depth++;
+      } else if (b == '}' || b == ']') {
+        depth--;
+        if (depth == 0) {
+          return i + 1;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private static int findJsonStringEnd(byte[] buffer, int offset, int limit)
+  {
+    for (int i = offset + 1; i < limit; i++) {
+      byte b = buffer[i];
+      if (b == '\\') {
+        // Skip the escaped character
+        i++;
+      } else if (b == '"') {
+        return i + 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Numbers, true, false and null end at the first character which is not a letter, a digit, '.', '+' or '-'. The
+   * separators of all {@link BatchingStrategy}s are not such characters.
+   */
+  private static int findJsonScalarEnd(byte[] buffer, int offset, int limit)
+  {
+    int i = offset + 1;
+    while (i < limit && isScalarChar(buffer[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isScalarStart(byte b)
+  {
+    return b == '-' || (b >= '0' && b <= '9') || b == 't' || b == 'f' || b == 'n';
+  }
+
+  private static boolean isScalarChar(byte b)
+  {
+    return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+           || b == '.' || b == '+' || b == '-';
+  }
+
+  /**
+   * Returns the offset after the end of the value in the given binary format, which starts at the given offset, or -1
+   * if there is no value before the limit. Throws IOException if the value is malformed, or doesn't end before the
+   * limit.
+   */
+  static int findBinaryValueEnd(JsonFactory binaryFactory, byte[] buffer, int offset, int limit) throws IOException
+  {
+    try (JsonParser parser = binaryFactory.createParser(buffer, offset, limit - offset)) {
+      JsonToken token = parser.nextToken();
+      if (token == null) {
+        return -1;
+      }
+      // Parsers of some formats report offsets in the whole buffer, rather than from the given offset, so the length of
+      // the value is computed relative to its start.
+      long valueStart = parser.getTokenLocation().getByteOffset();
+      if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+        parser.skipChildren();
+      } else if (token == JsonToken.VALUE_EMBEDDED_OBJECT) {
+        parser.getBinaryValue();
+      } else {
+        // Strings and numbers are decoded lazily, the parser reaches the end of the value only when it is read.
+        parser.getText();
+      }
+      return offset + (int) (parser.getCurrentLocation().getByteOffset() - valueStart);
+    }
+  }
+
+  private static int findEventEnd(byte[] buffer, int offset, int limit, BatchingStrategy batchingStrategy)
+      throws IOException
+  {
+    JsonFactory binaryFactory = batchingStrategy.getBinaryFactory();
+    if (binaryFactory != null) {
+      return findBinaryValueEnd(binaryFactory, buffer, offset, limit);
+    }
+    if (batchingStrategy.separatorLength() == 0 && offset < limit && isScalarStart(buffer[offset])) {
+      // Without separators, the end of a number or a literal is ambiguous if it is followed by another one.
+      return -1;
+    }
+    return findJsonValueEnd(buffer, offset, limit);
+  }
+
+  /**
+   * Returns the offset of the end of the event, after which the batch should be split into two halves of about the
+   * same size, or -1 if the batch consists of a single event, or its format is not recognized. Throws IOException if
+   * an event in a binary format is malformed.
+   */
+  static int findSplitOffset(byte[] buffer, int length, BatchingStrategy batchingStrategy) throws IOException
+  {
+    int eventsStart = batchingStrategy.batchStartLength();
+    int eventsEnd = length - batchingStrategy.batchEndLength();
+    int middle = eventsStart + (eventsEnd - eventsStart) / 2;
+    int previousEventEnd = -1;
+    for (int offset = eventsStart; offset < eventsEnd; ) {
+      int eventEnd = findEventEnd(buffer, offset, eventsEnd, batchingStrategy);
+      if (eventEnd < 0) {
+        return -1;
+      }
+      if (eventEnd >= eventsEnd) {
+        // The last event, the first half ends before it.
+        return previousEventEnd;
+      }
+      if (eventEnd >= middle) {
+        return eventEnd;
+      }
+      previousEventEnd = eventEnd;
+      offset = eventEnd + batchingStrategy.separatorLength();
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the number of events in the batch before the given offset, which is an end of an event.
+   */
+  static int countEvents(byte[] buffer, int endOffset, BatchingStrategy batchingStrategy) throws IOException
+  {
+    int events = 0;
+    for (int offset = batchingStrategy.batchStartLength(); offset < endOffset; ) {
+      int eventEnd = findEventEnd(buffer, offset, endOffset, batchingStrategy);
+      if (eventEnd < 0) {
+        throw new IllegalArgumentException("Not an end of an event: " + endOffset);
+      }
+      offset = eventEnd + batchingStrategy.separatorLength();
+      events++;
+    }
+    return events;
+  }
+
+  private BatchSplitter()
+  {
+  }
+}
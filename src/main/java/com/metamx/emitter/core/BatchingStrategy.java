@@ -16,6 +16,19 @@
 
 package com.metamx.emitter.core;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileConstants;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileParser;
+
+import javax.annotation.Nullable;
+
+/**
+ * The format of batches: ARRAY, NEWLINES and ONLY_EVENTS frame JSON events, SMILE and CBOR are binary encodings, in
+ * which a batch is an array of events.
+ */
 public enum BatchingStrategy
 {
   ARRAY {
@@ -136,8 +149,170 @@ public enum BatchingStrategy
     {
       return bufferOffset;
     }
+  },
+  /**
+   * A Smile document with a header, which disables shared names and string values, because events are serialized
+   * independently, and a root-level array of events. Requires jackson-dataformat-smile, which is an optional
+   * dependency.
+   */
+  SMILE {
+    @Override
+    public int batchStartLength()
+    {
+      return 5;
+    }
+
+    @Override
+    public int separatorLength()
+    {
+      return 0;
+    }
+
+    @Override
+    public int batchEndLength()
+    {
+      return 1;
+    }
+
+    @Override
+    public int writeBatchStart(byte[] buffer)
+    {
+      buffer[0] = SmileConstants.HEADER_BYTE_1;
+      buffer[1] = SmileConstants.HEADER_BYTE_2;
+      buffer[2] = SmileConstants.HEADER_BYTE_3;
+      // Version 0, no flags: no shared names, no shared string values, no raw binary
+      buffer[3] = SmileConstants.HEADER_BYTE_4;
+      buffer[4] = SmileConstants.TOKEN_LITERAL_START_ARRAY;
+      return batchStartLength();
+    }
+
+    @Override
+    public int writeMessageSeparator(byte[] buffer, int bufferOffset)
+    {
+      return bufferOffset;
+    }
+
+    @Override
+    public int writeBatchEnd(byte[] buffer, int bufferOffset)
+    {
+      buffer[bufferOffset] = SmileConstants.TOKEN_LITERAL_END_ARRAY;
+      return bufferOffset + batchEndLength();
+    }
+
+    @Override
+    public String getContentType()
+    {
+      return "application/x-jackson-smile";
+    }
+
+    @Override
+    JsonFactory getBinaryFactory()
+    {
+      return SmileFactoryHolder.FACTORY;
+    }
+  },
+  /**
+   * An indefinite-length CBOR array of events. Requires jackson-dataformat-cbor, which is an optional dependency.
+   */
+  CBOR {
+    @Override
+    public int batchStartLength()
+    {
+      return 1;
+    }
+
+    @Override
+    public int separatorLength()
+    {
+      return 0;
+    }
+
+    @Override
+    public int batchEndLength()
+    {
+      return 1;
+    }
+
+    @Override
+    public int writeBatchStart(byte[] buffer)
+    {
+      // Major type 4 (array), indefinite length
+      buffer[0] = (byte) 0x9F;
+      return batchStartLength();
+    }
+
+    @Override
+    public int writeMessageSeparator(byte[] buffer, int bufferOffset)
+    {
+      return bufferOffset;
+    }
+
+    @Override
+    public int writeBatchEnd(byte[] buffer, int bufferOffset)
+    {
+      // "break"
+      buffer[bufferOffset] = (byte) 0xFF;
+      return bufferOffset + batchEndLength();
+    }
+
+    @Override
+    public String getContentType()
+    {
+      return "application/cbor";
+    }
+
+    @Override
+    JsonFactory getBinaryFactory()
+    {
+      return CborFactoryHolder.FACTORY;
+    }
   };
 
+  /**
+   * The binary factories are created on the first use, so that the classes of binary formats are not loaded with the
+   * enum, and the jars are not needed by the applications which emit JSON. The constants of {@link SmileConstants},
+   * used above, are inlined by the compiler.
+   */
+  private static class SmileFactoryHolder
+  {
+    private static final JsonFactory FACTORY = createSmileFactory();
+
+    private static SmileFactory createSmileFactory()
+    {
+      SmileFactory factory = new SmileFactory();
+      // The header is written once per batch by writeBatchStart()
+      factory.disable(SmileGenerator.Feature.WRITE_HEADER);
+      factory.disable(SmileGenerator.Feature.CHECK_SHARED_NAMES);
+      factory.disable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+      // To find the boundaries of events in a batch, see BatchSplitter
+      factory.disable(SmileParser.Feature.REQUIRE_HEADER);
+      return factory;
+    }
+  }
+
+  private static class CborFactoryHolder
+  {
+    private static final JsonFactory FACTORY = new CBORFactory();
+  }
+
+  /**
+   * The value of the Content-Type header of requests with batches.
+   */
+  public String getContentType()
+  {
+    return "application/json";
+  }
+
+  /**
+   * Returns the factory of generators, which serialize events in the binary format of this strategy, or null, if events
+   * are serialized to JSON with the emitter's ObjectMapper.
+   */
+  @Nullable
+  JsonFactory getBinaryFactory()
+  {
+    return null;
+  }
+
   public abstract int batchStartLength();
 
   public abstract int separatorLength();
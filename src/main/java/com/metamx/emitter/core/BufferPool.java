@@ -0,0 +1,361 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.metamx.emitter.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The pool of batch buffers of a {@link HttpPostEmitter}, which also accounts the memory budget of all live buffers:
+ * pooled, and those acquired from the pool and not yet released or discarded. Memory which is not a pooled buffer,
+ * e. g. compression output buffers, is accounted via {@link #tryReserveBytes} and {@link #releaseBytes}.
+ *
+ * Buffers are pooled in size classes. With a single class, all buffers are of the maximum size. With multiple classes,
+ * the sizes are the minimum class size multiplied by powers of two, and the maximum size, so that small batches, e. g.
+ * the halves of a batch rejected as too large, or growable batch buffers, don't take maximum size buffers.
+ *
+ * Empty buffers ({@link Batch#EMPTY_BUFFER}) are not accounted, they could be released and discarded freely.
+ *
+ * The pool doesn't hold buffers which are not needed for long after a burst of traffic: pooled buffers above the
+ * high-water mark are discarded when released, and the buffers which stayed in the pool, unused, during a whole idle
+ * period are discarded by {@link #trim()}. Each class is a LIFO stack, so that the same buffers are reused under steady
+ * load and the extra ones sink to the bottom of the stack, from where they are trimmed.
+ */
+final class BufferPool
+{
+  static final int MIN_SIZE_CLASS = 64 * 1024;
+
+  private final int maxBufferSize;
+  private final long maxLiveBytes;
+  private final long maxPooledBytes;
+  private final long idleNanos;
+  private final SizeClass[] sizeClasses;
+
+  private final AtomicLong liveBytes = new AtomicLong();
+  private final AtomicInteger liveBuffers = new AtomicInteger();
+  private final AtomicLong pooledBytes = new AtomicLong();
+  private final AtomicLong allocatedBuffers = new AtomicLong();
+  private final AtomicLong trimmedBuffers = new AtomicLong();
+  private volatile long lastTrimNanos = System.nanoTime();
+
+  /**
+   * @param minSizeClass the size of the smallest class, equal to maxBufferSize for a single class of buffers
+   */
+  BufferPool(int maxBufferSize, int minSizeClass, long maxLiveBytes, long maxPooledBytes, long idleMillis)
+  {
+    Preconditions.checkArgument(maxBufferSize > 0, "maxBufferSize must be positive");
+    Preconditions.checkArgument(
+        minSizeClass > 0 && minSizeClass <= maxBufferSize,
+        "minSizeClass must be positive and <= maxBufferSize"
+    );
+    Preconditions.checkArgument(maxLiveBytes >= maxBufferSize, "maxLiveBytes must be >= maxBufferSize");
+    this.maxBufferSize = maxBufferSize;
+    this.maxLiveBytes = maxLiveBytes;
+    this.maxPooledBytes = maxPooledBytes;
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    int classes = 1;
+    for (long size = minSizeClass; size < maxBufferSize; size *= 2) {
+      classes++;
+    }
+    this.sizeClasses = new SizeClass[classes];
+    for (int i = 0; i < classes - 1; i++) {
+      this.sizeClasses[i] = new SizeClass(minSizeClass << i);
+    }
+    this.sizeClasses[classes - 1] = new SizeClass(maxBufferSize);
+  }
+
+  /**
+   * Returns a pooled buffer of at least the given size, or allocates a new one, if it doesn't exceed the memory budget.
+   * If the budget is exhausted, pooled buffers of other sizes are discarded to make room. Returns null if the memory
+   * budget is exhausted by the buffers in use.
+   */
+  @Nullable
+  byte[] tryAcquire(int minSize)
+  {
+    Preconditions.checkArgument(minSize <= maxBufferSize, "minSize[%s] > maxBufferSize[%s]", minSize, maxBufferSize);
+    SizeClass sizeClass = sizeClassOf(minSize);
+    byte[] buffer = sizeClass.poll();
+    if (buffer != null) {
+      pooledBytes.addAndGet(-buffer.length);
+      return buffer;
+    }
+    if (!tryReserveBytes(sizeClass.size)) {
+      return null;
+    }
+    liveBuffers.incrementAndGet();
+    allocatedBuffers.incrementAndGet();
+    return new byte[sizeClass.size];
+  }
+
+  /**
+   * Accounts the given amount of memory, which is not a pooled buffer, against the memory budget. If the budget is
+   * exhausted, pooled buffers are discarded to make room. Returns false if the budget is exhausted by the memory in
+   * use.
+   */
+  boolean tryReserveBytes(long size)
+  {
+    while (!tryReserve(size)) {
+      if (!discardOnePooledBuffer()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Accounts the memory, which is already allocated, e. g. the growth of a buffer reserved by {@link #tryReserveBytes},
+   * so the budget may be exceeded until the memory is released.
+   */
+  void reserveBytes(long size)
+  {
+    liveBytes.addAndGet(size);
+  }
+
+  void releaseBytes(long size)
+  {
+    liveBytes.addAndGet(-size);
+  }
+
+  /**
+   * Returns the buffer to the pool for reuse, or discards it, if the pool holds more than the high-water mark.
+   */
+  void release(byte[] buffer)
+  {
+    if (buffer.length == 0) {
+      return;
+    }
+    if (!tryAddPooledBytes(buffer.length)) {
+      discard(buffer);
+      return;
+    }
+    sizeClassOf(buffer.length).push(buffer);
+  }
+
+  /**
+   * The check against the high-water mark and the increment are a single atomic operation, so that concurrent releases
+   * don't pool more than the high-water mark.
+   */
+  private boolean tryAddPooledBytes(int size)
+  {
+    while (true) {
+      long pooled = pooledBytes.get();
+      if (pooled + size > maxPooledBytes) {
+        return false;
+      }
+      if (pooledBytes.compareAndSet(pooled, pooled + size)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Returns the buffer's share of the memory budget, the buffer itself is left for GC.
+   */
+  void discard(byte[] buffer)
+  {
+    if (buffer.length == 0) {
+      return;
+    }
+    liveBytes.addAndGet(-buffer.length);
+    liveBuffers.decrementAndGet();
+  }
+
+  /**
+   * Discards the pooled buffers which were not used since the previous trim, if the idle period has passed. Returns
+   * true if any buffers were discarded, i. e. the memory budget was freed.
+   */
+  boolean trim()
+  {
+    long now = System.nanoTime();
+    if (now - lastTrimNanos < idleNanos) {
+      return false;
+    }
+    lastTrimNanos = now;
+    boolean trimmed = false;
+    for (SizeClass sizeClass : sizeClasses) {
+      // Buffers at the bottom of the stack, which were not polled since the previous trim.
+      for (int idle = sizeClass.resetLowWaterMark(); idle > 0; idle--) {
+        byte[] buffer = sizeClass.pollLast();
+        if (buffer == null) {
+          break;
+        }
+        pooledBytes.addAndGet(-buffer.length);
+        discard(buffer);
+        trimmedBuffers.incrementAndGet();
+        trimmed = true;
+      }
+    }
+    return trimmed;
+  }
+
+  long nanosUntilTrim()
+  {
+    return Math.max(lastTrimNanos + idleNanos - System.nanoTime(), 0);
+  }
+
+  /**
+   * Discards all pooled buffers.
+   */
+  void drain()
+  {
+    while (discardOnePooledBuffer()) {
+      // Continue
+    }
+  }
+
+  private boolean tryReserve(long size)
+  {
+    while (true) {
+      long live = liveBytes.get();
+      if (live + size > maxLiveBytes) {
+        return false;
+      }
+      if (liveBytes.compareAndSet(live, live + size)) {
+        return true;
+      }
+    }
+  }
+
+  private boolean discardOnePooledBuffer()
+  {
+    for (SizeClass sizeClass : sizeClasses) {
+      byte[] buffer = sizeClass.pollLast();
+      if (buffer != null) {
+        pooledBytes.addAndGet(-buffer.length);
+        discard(buffer);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private SizeClass sizeClassOf(int size)
+  {
+    for (SizeClass sizeClass : sizeClasses) {
+      if (size <= sizeClass.size) {
+        return sizeClass;
+      }
+    }
+    throw new IllegalArgumentException("Size " + size + " is greater than maxBufferSize " + maxBufferSize);
+  }
+
+  long getLiveBytes()
+  {
+    return liveBytes.get();
+  }
+
+  int getLiveBuffers()
+  {
+    return liveBuffers.get();
+  }
+
+  long getPooledBytes()
+  {
+    return pooledBytes.get();
+  }
+
+  long getAllocatedBuffers()
+  {
+    return allocatedBuffers.get();
+  }
+
+  long getTrimmedBuffers()
+  {
+    return trimmedBuffers.get();
+  }
+
+  @VisibleForTesting
+  int getSizeClasses()
+  {
+    return sizeClasses.length;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "BufferPool{" +
+           "liveBytes=" + liveBytes.get() +
+           ", liveBuffers=" + liveBuffers.get() +
+           ", pooledBytes=" + pooledBytes.get() +
+           ", allocatedBuffers=" + allocatedBuffers.get() +
+           ", trimmedBuffers=" + trimmedBuffers.get() +
+           '}';
+  }
+
+  private static class SizeClass
+  {
+    final int size;
+    /** Used as a stack, the most recently released buffers are at the head. */
+    private final ConcurrentLinkedDeque<byte[]> buffers = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    /** The minimum number of pooled buffers since the previous trim, these buffers were not used at all. */
+    private final AtomicInteger lowWaterMark = new AtomicInteger();
+
+    SizeClass(int size)
+    {
+      this.size = size;
+    }
+
+    @Nullable
+    byte[] poll()
+    {
+      byte[] buffer = buffers.pollFirst();
+      if (buffer != null) {
+        int remaining = pooled.decrementAndGet();
+        for (int low; remaining < (low = lowWaterMark.get()); ) {
+          if (lowWaterMark.compareAndSet(low, remaining)) {
+            break;
+          }
+        }
+      }
+      return buffer;
+    }
+
+    @Nullable
+    byte[] pollLast()
+    {
+      byte[] buffer = buffers.pollLast();
+      if (buffer != null) {
+        pooled.decrementAndGet();
+      }
+      return buffer;
+    }
+
+    void push(byte[] buffer)
+    {
+      buffers.addFirst(buffer);
+      pooled.incrementAndGet();
+    }
+
+    /**
+     * Returns the low-water mark of pooled buffers since the previous call, and resets it to the current number of
+     * pooled buffers.
+     */
+    int resetLowWaterMark()
+    {
+      int current = Math.max(pooled.get(), 0);
+      return Math.max(Math.min(lowWaterMark.getAndSet(current), current), 0);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.metamx.common.logger.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retry state of a {@link HttpPostEmitter}'s destination: exponential backoff with jitter between retries of failed
+ * batches, and a circuit breaker.
+ *
+ * CLOSED: fresh batches are sent as soon as they are sealed. Failed batches are retried after the backoff delay, which
+ * doubles with every consecutive failure, from minBackoff up to maxBackoff, and is randomized between 50% and 100% of
+ * that value, so that many emitters don't retry in lockstep after an outage of a shared collector.
+ *
+ * OPEN: after failureThreshold consecutive failures, nothing is sent, fresh batches go directly to failed batches,
+ * until the backoff delay passes. Then a single retry of a failed batch is allowed as a probe, the circuit is
+ * HALF_OPEN.
+ *
+ * HALF_OPEN: a success of the probe closes the circuit, a failure opens it again with a longer backoff.
+ *
+ * Any success resets the backoff, so that failed batches are retried immediately, when the collector is available
+ * again.
+ */
+final class CircuitBreaker
+{
+  private static final Logger log = new Logger(CircuitBreaker.class);
+
+  enum State
+  {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final String destination;
+  private final long minBackoffNanos;
+  private final long maxBackoffNanos;
+  private final int failureThreshold;
+
+  /** All fields below are guarded by this */
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long retryAfterNanos;
+
+  CircuitBreaker(String destination, long minBackoffMillis, long maxBackoffMillis, int failureThreshold)
+  {
+    Preconditions.checkArgument(minBackoffMillis >= 0, "minBackoffMillis must be non-negative");
+    Preconditions.checkArgument(maxBackoffMillis >= minBackoffMillis, "maxBackoffMillis must be >= minBackoffMillis");
+    Preconditions.checkArgument(failureThreshold > 0, "failureThreshold must be positive");
+    this.destination = destination;
+    this.minBackoffNanos = TimeUnit.MILLISECONDS.toNanos(minBackoffMillis);
+    this.maxBackoffNanos = TimeUnit.MILLISECONDS.toNanos(maxBackoffMillis);
+    this.failureThreshold = failureThreshold;
+  }
+
+  /**
+   * Returns true if a fresh batch should be sent, false if it should be added to failed batches right away.
+   */
+  synchronized boolean allowFreshBatch()
+  {
+    return state == State.CLOSED;
+  }
+
+  /**
+   * Returns true if a failed batch could be retried now. In OPEN state, switches to HALF_OPEN, then the caller must
+   * report the result of the retry via {@link #onSuccess()} or {@link #onFailure()}, or call {@link #cancelRetry()}.
+   */
+  synchronized boolean tryAcquireRetry()
+  {
+    switch (state) {
+      case CLOSED:
+        return consecutiveFailures == 0 || System.nanoTime() - retryAfterNanos >= 0;
+      case OPEN:
+        if (System.nanoTime() - retryAfterNanos >= 0) {
+          state = State.HALF_OPEN;
+          return true;
+        }
+        return false;
+      default:
+        // The probe is in flight
+        return false;
+    }
+  }
+
+  /**
+   * Returns the retry permit acquired by {@link #tryAcquireRetry()}, if the retry didn't actually happen.
+   */
+  synchronized void cancelRetry()
+  {
+    if (state == State.HALF_OPEN) {
+      state = State.OPEN;
+    }
+  }
+
+  /**
+   * Returns the time in nanoseconds until a retry of a failed batch is allowed.
+   */
+  synchronized long nanosUntilRetry()
+  {
+    if (consecutiveFailures == 0) {
+      return 0;
+    }
+    return Math.max(retryAfterNanos - System.nanoTime(), 0);
+  }
+
+  synchronized void onSuccess()
+  {
+    if (state != State.CLOSED) {
+      log.info("Sent a batch to [%s] successfully, closing the circuit", destination);
+    }
+    state = State.CLOSED;
+    consecutiveFailures = 0;
+  }
+
+  synchronized void onFailure()
+  {
+    if (consecutiveFailures < Integer.MAX_VALUE) {
+      consecutiveFailures++;
+    }
+    long backoffNanos = backoffNanos(consecutiveFailures);
+    retryAfterNanos = System.nanoTime() + backoffNanos;
+    if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+      if (state == State.CLOSED) {
+        log.warn(
+            "Failed to send batches to [%s] [%d] times in a row, opening the circuit, next retry in [%,d] ms",
+            destination,
+            consecutiveFailures,
+            TimeUnit.NANOSECONDS.toMillis(backoffNanos)
+        );
+      }
+      state = State.OPEN;
+    }
+  }
+
+  /**
+   * Exponential backoff with "equal jitter": between 50% and 100% of minBackoff * 2^(failures - 1), capped by
+   * maxBackoff.
+   */
+  private long backoffNanos(int failures)
+  {
+    int shift = Math.min(Math.max(failures - 1, 0), 62);
+    // Compare before shifting, so that minBackoff << shift can't overflow
+    long backoffNanos = minBackoffNanos > (maxBackoffNanos >> shift) ? maxBackoffNanos : minBackoffNanos << shift;
+    long halfBackoffNanos = backoffNanos / 2;
+    return halfBackoffNanos + (halfBackoffNanos > 0 ? ThreadLocalRandom.current().nextLong(halfBackoffNanos + 1) : 0);
+  }
+
+  @VisibleForTesting
+  synchronized State getState()
+  {
+    return state;
+  }
+
+  @Override
+  public synchronized String toString()
+  {
+    return "CircuitBreaker{" +
+           "destination='" + destination + '\'' +
+           ", state=" + state +
+           ", consecutiveFailures=" + consecutiveFailures +
+           '}';
+  }
+}
@@ -20,12 +20,21 @@
 package com.metamx.emitter.core;
 
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.metamx.common.lifecycle.LifecycleStart;
 import com.metamx.common.lifecycle.LifecycleStop;
 import com.metamx.common.logger.Logger;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 public class ComposingEmitter implements Emitter
 {
@@ -79,6 +88,75 @@ public class ComposingEmitter implements Emitter
     }
   }
 
+  /**
+   * Flushes all emitters asynchronously. The returned future fails as soon as any of the emitters fails to flush.
+   */
+  @Override
+  public CompletableFuture<Void> flushAsync()
+  {
+    log.info("Flushing Composing Emitter asynchronously.");
+
+    List<ListenableFuture<Void>> futures = new ArrayList<>(emitters.size());
+    for (final Emitter e : emitters) {
+      final SettableFuture<Void> future = SettableFuture.create();
+      try {
+        e.flushAsync().whenComplete(
+            new BiConsumer<Void, Throwable>()
+            {
+              @Override
+              public void accept(Void result, Throwable ex)
+              {
+                if (ex != null) {
+                  log.error(ex, "Failed to flush emitter [%s]", e.getClass().getName());
+                  future.setException(ex);
+                } else {
+                  future.set(null);
+                }
+              }
+            }
+        );
+      }
+      catch (RuntimeException ex) {
+        log.error(ex, "Failed to flush emitter [%s]", e.getClass().getName());
+        future.setException(ex);
+      }
+      futures.add(future);
+    }
+
+    final CompletableFuture<Void> flushed = new CompletableFuture<>();
+    Futures.addCallback(
+        Futures.allAsList(futures),
+        new FutureCallback<List<Void>>()
+        {
+          @Override
+          public void onSuccess(List<Void> result)
+          {
+            flushed.complete(null);
+          }
+
+          @Override
+          public void onFailure(Throwable t)
+          {
+            flushed.completeExceptionally(t);
+          }
+        }
+    );
+    return flushed;
+  }
+
+  /**
+   * Returns snapshots of the statistics of the {@link HttpPostEmitter}s among the composed emitters, keyed by their
+   * URLs, see {@link EmitterStats#collect(Emitter)}. The stats of several emitters sending to the same URL are summed.
+   */
+  public Map<String, EmitterStats> getStats()
+  {
+    Map<String, EmitterStats> stats = new LinkedHashMap<>();
+    for (Emitter e : emitters) {
+      EmitterStats.merge(stats, EmitterStats.collect(e));
+    }
+    return stats;
+  }
+
   @Override
   @LifecycleStop
   public void close() throws IOException
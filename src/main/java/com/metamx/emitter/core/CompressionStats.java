@@ -0,0 +1,98 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cumulative statistics of compression of batches by a {@link HttpPostEmitter}, to compare the CPU cost of
+ * {@link ContentEncoding}s and compression levels with the saved network traffic.
+ */
+public final class CompressionStats
+{
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+  /**
+   * Returns the CPU time of the current thread, or the wall time if CPU time measurement is not supported by the JVM.
+   */
+  static long currentThreadCpuTimeNanos()
+  {
+    if (threadMXBean.isCurrentThreadCpuTimeSupported()) {
+      return threadMXBean.getCurrentThreadCpuTime();
+    }
+    return System.nanoTime();
+  }
+
+  private final AtomicLong compressedBatches = new AtomicLong();
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+  private final AtomicLong compressedBytes = new AtomicLong();
+  private final AtomicLong cpuTimeNanos = new AtomicLong();
+
+  void add(long uncompressedBytes, long compressedBytes, long cpuTimeNanos)
+  {
+    this.compressedBatches.incrementAndGet();
+    this.uncompressedBytes.addAndGet(uncompressedBytes);
+    this.compressedBytes.addAndGet(compressedBytes);
+    this.cpuTimeNanos.addAndGet(cpuTimeNanos);
+  }
+
+  public long getCompressedBatches()
+  {
+    return compressedBatches.get();
+  }
+
+  public long getUncompressedBytes()
+  {
+    return uncompressedBytes.get();
+  }
+
+  public long getCompressedBytes()
+  {
+    return compressedBytes.get();
+  }
+
+  /**
+   * Uncompressed size divided by compressed size, 0 if nothing is compressed yet.
+   */
+  public double getCompressionRatio()
+  {
+    long compressedBytes = getCompressedBytes();
+    return compressedBytes == 0 ? 0 : (double) getUncompressedBytes() / compressedBytes;
+  }
+
+  /**
+   * CPU time spent compressing batches, in nanoseconds.
+   */
+  public long getCpuTimeNanos()
+  {
+    return cpuTimeNanos.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "CompressionStats{" +
+           "compressedBatches=" + getCompressedBatches() +
+           ", uncompressedBytes=" + getUncompressedBytes() +
+           ", compressedBytes=" + getCompressedBytes() +
+           ", compressionRatio=" + String.format("%.2f", getCompressionRatio()) +
+           ", cpuTimeMillis=" + getCpuTimeNanos() / 1_000_000 +
+           '}';
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2012 Metamarkets Group Inc.
+ * Copyright 2017 Metamarkets Group Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -16,7 +16,121 @@
 
 package com.metamx.emitter.core;
 
+import java.util.zip.Deflater;
+
+/**
+ * Content-Encoding of requests sent by {@link HttpPostEmitter}. Each encoding is implemented by a
+ * {@link BatchCompressor}, and supports a range of {@link BaseHttpEmittingConfig#getCompressionLevel()} values, in
+ * addition to {@link BaseHttpEmittingConfig#DEFAULT_COMPRESSION_LEVEL}.
+ */
 public enum ContentEncoding
 {
-  GZIP
+  /**
+   * Levels from {@link Deflater#NO_COMPRESSION} to {@link Deflater#BEST_COMPRESSION}.
+   */
+  GZIP("gzip", Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION) {
+    @Override
+    BatchCompressor createCompressor(int level)
+    {
+      return new GzipBatchCompressor(level);
+    }
+
+    @Override
+    public boolean supportsIncrementalCompression()
+    {
+      return true;
+    }
+  },
+  /**
+   * Raw DEFLATE stream, without zlib or gzip header and trailer, levels from {@link Deflater#NO_COMPRESSION} to
+   * {@link Deflater#BEST_COMPRESSION}.
+   */
+  DEFLATE("deflate", Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION) {
+    @Override
+    BatchCompressor createCompressor(int level)
+    {
+      return new DeflateBatchCompressor(level);
+    }
+
+    @Override
+    public boolean supportsIncrementalCompression()
+    {
+      return true;
+    }
+  },
+  /**
+   * LZ4 frame format. The default level is the fast LZ4 compressor, levels from 1 to 17 use the LZ4 HC compressor.
+   */
+  LZ4("lz4", 1, 17) {
+    @Override
+    BatchCompressor createCompressor(int level)
+    {
+      return new Lz4BatchCompressor(level);
+    }
+  },
+  /**
+   * Snappy framing format, only the default level.
+   */
+  SNAPPY("snappy") {
+    @Override
+    BatchCompressor createCompressor(int level)
+    {
+      return new SnappyBatchCompressor();
+    }
+  },
+  /**
+   * Zstandard frame format, only the default level, the pure-Java compressor doesn't support other levels.
+   */
+  ZSTD("zstd") {
+    @Override
+    BatchCompressor createCompressor(int level)
+    {
+      return new ZstdBatchCompressor();
+    }
+  };
+
+  private final String headerValue;
+  private final int minCompressionLevel;
+  private final int maxCompressionLevel;
+
+  ContentEncoding(String headerValue)
+  {
+    // No levels other than the default
+    this(headerValue, 0, -1);
+  }
+
+  ContentEncoding(String headerValue, int minCompressionLevel, int maxCompressionLevel)
+  {
+    this.headerValue = headerValue;
+    this.minCompressionLevel = minCompressionLevel;
+    this.maxCompressionLevel = maxCompressionLevel;
+  }
+
+  /**
+   * The value of Content-Encoding header of requests.
+   */
+  public String getHeaderValue()
+  {
+    return headerValue;
+  }
+
+  public boolean isSupportedCompressionLevel(int level)
+  {
+    return level == BaseHttpEmittingConfig.DEFAULT_COMPRESSION_LEVEL ||
+           (level >= minCompressionLevel && level <= maxCompressionLevel);
+  }
+
+  /**
+   * Returns true if the compressors of this encoding are {@link IncrementalBatchCompressor}s, so that
+   * {@link BaseHttpEmittingConfig#isIncrementalCompression()} could be enabled.
+   */
+  public boolean supportsIncrementalCompression()
+  {
+    return false;
+  }
+
+  /**
+   * Creates a compressor with the given level, which must be {@link #isSupportedCompressionLevel supported}.
+   */
+  abstract BatchCompressor createCompressor(int level);
 }
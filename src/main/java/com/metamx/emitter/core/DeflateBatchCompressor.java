@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import java.util.zip.Deflater;
+
+/**
+ * Compresses batches into a raw DEFLATE stream with a single {@link Deflater}, which is reset between batches, rather
+ * than allocating a new one (and its native memory, which is released only by {@link Deflater#end()} or finalization)
+ * for each batch.
+ */
+class DeflateBatchCompressor implements IncrementalBatchCompressor
+{
+  /**
+   * The minimum free space in the output buffer passed to {@link Deflater#deflate}.
+   */
+  private static final int MIN_DEFLATE_SPACE = 8 * 1024;
+
+  private final Deflater deflater;
+
+  DeflateBatchCompressor(int level)
+  {
+    this.deflater = new Deflater(level, true);
+  }
+
+  @Override
+  public void compress(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out)
+  {
+    begin(out);
+    finish(buffer, offset, length, out);
+  }
+
+  @Override
+  public void begin(ZeroCopyByteArrayOutputStream out)
+  {
+    // Reset before rather than after compression, in case the previous compression failed in the middle.
+    deflater.reset();
+  }
+
+  @Override
+  public void update(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out)
+  {
+    deflater.setInput(buffer, offset, length);
+    while (!deflater.needsInput()) {
+      deflate(out, length);
+    }
+  }
+
+  @Override
+  public void finish(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out)
+  {
+    deflater.setInput(buffer, offset, length);
+    deflater.finish();
+    while (!deflater.finished()) {
+      deflate(out, length);
+    }
+  }
+
+  /**
+   * Returns the total number of uncompressed bytes passed to this compressor since {@link #begin}.
+   */
+  long getBytesRead()
+  {
+    return deflater.getBytesRead();
+  }
+
+  private void deflate(ZeroCopyByteArrayOutputStream out, int inputLength)
+  {
+    int space = out.getBuffer().length - out.size();
+    if (space < MIN_DEFLATE_SPACE) {
+      // Highly compressible batches are much smaller than the input, so start with a fraction of the input size.
+      out.ensureRemaining(Math.max(inputLength / 8, MIN_DEFLATE_SPACE));
+      space = out.getBuffer().length - out.size();
+    }
+    out.advance(deflater.deflate(out.getBuffer(), out.size(), space));
+  }
+
+  @Override
+  public void close()
+  {
+    deflater.end();
+  }
+}
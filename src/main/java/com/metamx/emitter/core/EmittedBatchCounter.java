@@ -54,6 +54,16 @@ final class EmittedBatchCounter
     }
   }
 
+  /**
+   * Returns true if {@link #batchEmitted} has been called for the given batch number.
+   */
+  boolean isBatchEmitted(int batchNumber)
+  {
+    int currentBatch = phaser.getPhase();
+    checkNotTerminated(currentBatch);
+    return comparePhases(batchNumber & MAX_PHASE, currentBatch) < 0;
+  }
+
   private static int comparePhases(int phase1, int phase2)
   {
     int diff = (phase1 - phase2) & MAX_PHASE;
@@ -19,6 +19,7 @@ package com.metamx.emitter.core;
 import java.io.Closeable;
 import java.io.Flushable;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  */
@@ -27,5 +28,27 @@ public interface Emitter extends Closeable, Flushable
   void start();
   void emit(Event event);
   void flush() throws IOException;
+
+  /**
+   * Seals the events emitted so far for sending, like {@link #flush()}, but doesn't wait for them to be sent. Returns a
+   * future, which is completed when all these events are emitted or failed to be emitted, exceptionally if the flush
+   * itself failed.
+   *
+   * The default implementation calls {@link #flush()} and returns an already completed future. Emitters which send
+   * events asynchronously override this method to return without blocking.
+   */
+  default CompletableFuture<Void> flushAsync()
+  {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    try {
+      flush();
+      future.complete(null);
+    }
+    catch (IOException | RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
   void close() throws IOException;
 }
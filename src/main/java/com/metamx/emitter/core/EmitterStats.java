@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of statistics of a {@link HttpPostEmitter}, see {@link HttpPostEmitter#getStats()}. Counters are
+ * cumulative since the emitter is created, use {@link #minus} to get the values for a period of time. Gauges are the
+ * values at the moment of the snapshot.
+ */
+public final class EmitterStats
+{
+  /**
+   * Send latencies are counted in buckets with power-of-two upper bounds, from 1 ms to 2^17 ms. The last bucket also
+   * counts all latencies above 2^16 ms.
+   */
+  static final int SEND_LATENCY_BUCKETS = 18;
+
+  static int sendLatencyBucket(long latencyMillis)
+  {
+    if (latencyMillis <= 1) {
+      return 0;
+    }
+    return Math.min(64 - Long.numberOfLeadingZeros(latencyMillis - 1), SEND_LATENCY_BUCKETS - 1);
+  }
+
+  public static long getSendLatencyBucketUpperBoundMillis(int bucket)
+  {
+    return 1L << bucket;
+  }
+
+  /**
+   * Collects the stats of all {@link HttpPostEmitter}s, which the given emitter consists of, keyed by their URLs.
+   * Returns an empty map for emitters of other types.
+   */
+  public static Map<String, EmitterStats> collect(Emitter emitter)
+  {
+    Map<String, EmitterStats> stats = new LinkedHashMap<>();
+    if (emitter instanceof HttpPostEmitter) {
+      HttpPostEmitter httpPostEmitter = (HttpPostEmitter) emitter;
+      stats.put(httpPostEmitter.getUrl(), httpPostEmitter.getStats());
+    } else if (emitter instanceof ParametrizedUriEmitter) {
+      stats.putAll(((ParametrizedUriEmitter) emitter).getStats());
+    } else if (emitter instanceof ComposingEmitter) {
+      stats.putAll(((ComposingEmitter) emitter).getStats());
+    }
+    return stats;
+  }
+
+  /**
+   * Adds stats to the map, summing them with the stats of another emitter sending to the same URL, if any.
+   */
+  static void merge(Map<String, EmitterStats> stats, Map<String, EmitterStats> otherStats)
+  {
+    for (Map.Entry<String, EmitterStats> entry : otherStats.entrySet()) {
+      EmitterStats existing = stats.get(entry.getKey());
+      stats.put(entry.getKey(), existing == null ? entry.getValue() : existing.plus(entry.getValue()));
+    }
+  }
+
+  // Indexes of counters
+  static final int ACCEPTED_EVENTS = 0;
+  static final int DROPPED_EVENTS = 1;
+  static final int OVERSIZED_EVENTS = 2;
+  static final int EMITTED_EVENTS = 3;
+  static final int BATCHES_SEALED_BY_COUNT = 4;
+  static final int BATCHES_SEALED_BY_SIZE = 5;
+  static final int BATCHES_SEALED_BY_TIME = 6;
+  static final int BATCHES_SEALED_BY_FLUSH = 7;
+  static final int DROPPED_BATCHES = 8;
+  static final int RETRIED_BATCHES = 9;
+  static final int UNCOMPRESSED_BYTES = 10;
+  static final int SENT_BYTES = 11;
+  static final int ALLOCATED_BUFFERS = 12;
+  static final int TRIMMED_BUFFERS = 13;
+  static final int COUNTERS = 14;
+
+  // Indexes of gauges
+  static final int BATCHES_TO_EMIT = 0;
+  static final int FAILED_BATCHES = 1;
+  static final int LARGE_EVENTS_TO_EMIT = 2;
+  static final int SPILLED_BATCHES = 3;
+  static final int LIVE_BUFFER_BYTES = 4;
+  static final int POOLED_BUFFER_BYTES = 5;
+  static final int GAUGES = 6;
+
+  private final long[] counters;
+  private final long[] gauges;
+  private final long[] sendLatencyCounts;
+
+  EmitterStats(long[] counters, long[] gauges, long[] sendLatencyCounts)
+  {
+    this.counters = counters;
+    this.gauges = gauges;
+    this.sendLatencyCounts = sendLatencyCounts;
+  }
+
+  /**
+   * Events added to batches, or queued to be sent separately, if they are large.
+   */
+  public long getAcceptedEvents()
+  {
+    return counters[ACCEPTED_EVENTS];
+  }
+
+  /**
+   * Events discarded because the memory budget was exhausted, see {@link OverflowPolicy}, including events of evicted
+   * batches, and events rejected by the collector as too large (HTTP 413) in a batch of a single event. Both are
+   * counted together. Batches of multiple events which are rejected as too large, but cannot be split, are retried.
+   */
+  public long getDroppedEvents()
+  {
+    return counters[DROPPED_EVENTS];
+  }
+
+  /**
+   * Events not accepted because they are larger than the maximum event size.
+   */
+  public long getOversizedEvents()
+  {
+    return counters[OVERSIZED_EVENTS];
+  }
+
+  /**
+   * Events successfully sent to the collector.
+   */
+  public long getEmittedEvents()
+  {
+    return counters[EMITTED_EVENTS];
+  }
+
+  public long getBatchesSealedByCount()
+  {
+    return counters[BATCHES_SEALED_BY_COUNT];
+  }
+
+  public long getBatchesSealedBySize()
+  {
+    return counters[BATCHES_SEALED_BY_SIZE];
+  }
+
+  public long getBatchesSealedByTime()
+  {
+    return counters[BATCHES_SEALED_BY_TIME];
+  }
+
+  /**
+   * Batches sealed by {@link HttpPostEmitter#flush()}, {@link HttpPostEmitter#flushAsync()} or on close.
+   */
+  public long getBatchesSealedByFlush()
+  {
+    return counters[BATCHES_SEALED_BY_FLUSH];
+  }
+
+  /**
+   * Batches discarded, see {@link #getDroppedEvents()}.
+   */
+  public long getDroppedBatches()
+  {
+    return counters[DROPPED_BATCHES];
+  }
+
+  /**
+   * Attempts to send failed or spilled batches again.
+   */
+  public long getRetriedBatches()
+  {
+    return counters[RETRIED_BATCHES];
+  }
+
+  /**
+   * The size of batches sent to the collector, including retries, before compression.
+   */
+  public long getUncompressedBytes()
+  {
+    return counters[UNCOMPRESSED_BYTES];
+  }
+
+  /**
+   * The size of requests sent to the collector, including retries, after compression, if
+   * {@link BaseHttpEmittingConfig#getContentEncoding()} is set.
+   */
+  public long getSentBytes()
+  {
+    return counters[SENT_BYTES];
+  }
+
+  /**
+   * Batch buffers allocated, because there were no buffers of the needed size in the pool.
+   */
+  public long getAllocatedBuffers()
+  {
+    return counters[ALLOCATED_BUFFERS];
+  }
+
+  /**
+   * Pooled buffers discarded, because they were not used for {@link BaseHttpEmittingConfig#getBufferPoolIdleMillis()}.
+   */
+  public long getTrimmedBuffers()
+  {
+    return counters[TRIMMED_BUFFERS];
+  }
+
+  /**
+   * The number of sealed batches waiting to be sent.
+   */
+  public long getBatchesToEmit()
+  {
+    return gauges[BATCHES_TO_EMIT];
+  }
+
+  /**
+   * The number of batches which failed to be sent and are kept in memory to be retried.
+   */
+  public long getFailedBatches()
+  {
+    return gauges[FAILED_BATCHES];
+  }
+
+  public long getLargeEventsToEmit()
+  {
+    return gauges[LARGE_EVENTS_TO_EMIT];
+  }
+
+  public long getSpilledBatches()
+  {
+    return gauges[SPILLED_BATCHES];
+  }
+
+  /**
+   * The memory held by batch buffers, which are allocated and not yet discarded, and by output buffers of compression.
+   */
+  public long getLiveBufferBytes()
+  {
+    return gauges[LIVE_BUFFER_BYTES];
+  }
+
+  /**
+   * The part of {@link #getLiveBufferBytes()} held by buffers pooled for reuse.
+   */
+  public long getPooledBufferBytes()
+  {
+    return gauges[POOLED_BUFFER_BYTES];
+  }
+
+  /**
+   * Returns the number of sends with the latency in the given bucket, see
+   * {@link #getSendLatencyBucketUpperBoundMillis(int)}.
+   */
+  public long getSendLatencyCount(int bucket)
+  {
+    return sendLatencyCounts[bucket];
+  }
+
+  /**
+   * The number of completed requests to the collector, successful or not.
+   */
+  public long getSends()
+  {
+    long sends = 0;
+    for (long count : sendLatencyCounts) {
+      sends += count;
+    }
+    return sends;
+  }
+
+  /**
+   * Returns the upper bound of the bucket of send latencies, where the given percentile (from 0 to 100) falls, or 0 if
+   * there were no sends.
+   */
+  public long getSendLatencyPercentileMillis(double percentile)
+  {
+    long sends = getSends();
+    if (sends == 0) {
+      return 0;
+    }
+    long rank = Math.max((long) Math.ceil(sends * percentile / 100), 1);
+    long count = 0;
+    for (int bucket = 0; bucket < SEND_LATENCY_BUCKETS; bucket++) {
+      count += sendLatencyCounts[bucket];
+      if (count >= rank) {
+        return getSendLatencyBucketUpperBoundMillis(bucket);
+      }
+    }
+    return getSendLatencyBucketUpperBoundMillis(SEND_LATENCY_BUCKETS - 1);
+  }
+
+  /**
+   * Returns the difference of counters between this and an earlier snapshot of the same emitter, with the gauges of
+   * this snapshot.
+   */
+  public EmitterStats minus(EmitterStats earlier)
+  {
+    return new EmitterStats(
+        subtract(counters, earlier.counters),
+        gauges,
+        subtract(sendLatencyCounts, earlier.sendLatencyCounts)
+    );
+  }
+
+  /**
+   * Returns the sum of stats of two emitters.
+   */
+  public EmitterStats plus(EmitterStats other)
+  {
+    return new EmitterStats(
+        add(counters, other.counters),
+        add(gauges, other.gauges),
+        add(sendLatencyCounts, other.sendLatencyCounts)
+    );
+  }
+
+  private static long[] subtract(long[] a, long[] b)
+  {
+    long[] result = new long[a.length];
+    for (int i = 0; i < a.length; i++) {
+      result[i] = a[i] - b[i];
+    }
+    return result;
+  }
+
+  private static long[] add(long[] a, long[] b)
+  {
+    long[] result = new long[a.length];
+    for (int i = 0; i < a.length; i++) {
+      result[i] = a[i] + b[i];
+    }
+    return result;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "EmitterStats{" +
+           "acceptedEvents=" + getAcceptedEvents() +
+           ", droppedEvents=" + getDroppedEvents() +
+           ", oversizedEvents=" + getOversizedEvents() +
+           ", emittedEvents=" + getEmittedEvents() +
+           ", batchesSealedByCount=" + getBatchesSealedByCount() +
+           ", batchesSealedBySize=" + getBatchesSealedBySize() +
+           ", batchesSealedByTime=" + getBatchesSealedByTime() +
+           ", batchesSealedByFlush=" + getBatchesSealedByFlush() +
+           ", droppedBatches=" + getDroppedBatches() +
+           ", retriedBatches=" + getRetriedBatches() +
+           ", uncompressedBytes=" + getUncompressedBytes() +
+           ", sentBytes=" + getSentBytes() +
+           ", allocatedBuffers=" + getAllocatedBuffers() +
+           ", trimmedBuffers=" + getTrimmedBuffers() +
+           ", batchesToEmit=" + getBatchesToEmit() +
+           ", failedBatches=" + getFailedBatches() +
+           ", largeEventsToEmit=" + getLargeEventsToEmit() +
+           ", spilledBatches=" + getSpilledBatches() +
+           ", liveBufferBytes=" + getLiveBufferBytes() +
+           ", pooledBufferBytes=" + getPooledBufferBytes() +
+           ", sendLatencyCounts=" + Arrays.toString(sendLatencyCounts) +
+           '}';
+  }
+}
@@ -27,5 +27,15 @@ public interface Event
   public Map<String, Object> toMap();
   public String getFeed();
   public DateTime getCreatedTime();
+
+  /**
+   * Returns the same instant as {@link #getCreatedTime()}. Events which store the time as epoch millis should override
+   * it, to not create a DateTime, if the caller doesn't need it.
+   */
+  public default long getCreatedTimeMillis()
+  {
+    return getCreatedTime().getMillis();
+  }
+
   public boolean isSafeToBuffer();
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Serializes events into a reusable buffer, from which {@link HttpPostEmitter} copies them into {@link Batch#buffer}.
+ * This avoids allocating a byte[] (and Jackson's output buffers) for each emitted event, as
+ * {@link ObjectMapper#writeValueAsBytes} does. For JSON, used only with a plain ObjectMapper, not with subclasses,
+ * which may customize writeValueAsBytes().
+ *
+ * Events are serialized by the given ObjectMapper, but with generators of the given factory, which is the mapper's own
+ * JSON factory, or a binary format's factory, see {@link BatchingStrategy#getBinaryFactory()}.
+ *
+ * Not thread-safe, HttpPostEmitter keeps an instance per writer thread.
+ */
+final class EventSerializer
+{
+  private static final int INITIAL_BUFFER_SIZE = 1024;
+  /**
+   * If a large event is serialized, the grown buffer is not retained, to avoid holding a lot of memory by each thread
+   * which has ever emitted a large event.
+   */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private final ObjectMapper jsonMapper;
+  private final JsonFactory factory;
+  private ZeroCopyByteArrayOutputStream out;
+  private JsonGenerator generator;
+  private boolean inUse = false;
+
+  EventSerializer(ObjectMapper jsonMapper, JsonFactory factory)
+  {
+    this.jsonMapper = jsonMapper;
+    this.factory = factory;
+  }
+
+  /**
+   * Returns false if this serializer is already used up the stack of the current thread, e. g. if serialization of an
+   * event emits another event. Then the caller should serialize the event with {@link ObjectMapper#writeValueAsBytes}.
+   */
+  boolean tryAcquire()
+  {
+    if (inUse) {
+      return false;
+    }
+    inUse = true;
+    return true;
+  }
+
+  /**
+   * Serializes the event, the result is available via {@link #getBuffer()} and {@link #getLength()} until the next
+   * {@link #release()}.
+   */
+  void serialize(Event event) throws IOException
+  {
+    if (out == null) {
+      out = new ZeroCopyByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+      generator = factory.createGenerator(out);
+      if (JsonFactory.FORMAT_NAME_JSON.equals(factory.getFormatName())) {
+        // Events are separate root-level JSON values, they shouldn't be separated by spaces.
+        generator.setRootValueSeparator(null);
+      }
+    } else {
+      out.reset();
+    }
+    try {
+      jsonMapper.writeValue(generator, event);
+      generator.flush();
+    }
+    catch (IOException | RuntimeException e) {
+      // The generator's state is unknown after a failure.
+      discardBuffer();
+      throw e;
+    }
+  }
+
+  byte[] getBuffer()
+  {
+    return out.getBuffer();
+  }
+
+  int getLength()
+  {
+    return out.size();
+  }
+
+  void release()
+  {
+    inUse = false;
+    if (out != null && out.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+      discardBuffer();
+    }
+  }
+
+  private void discardBuffer()
+  {
+    try {
+      // Returns the generator's internal buffers to Jackson's BufferRecycler.
+      generator.close();
+    }
+    catch (IOException | RuntimeException e) {
+      // Ignore, the generator is not used anymore
+    }
+    out = null;
+    generator = null;
+  }
+}
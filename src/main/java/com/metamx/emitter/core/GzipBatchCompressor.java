@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import java.util.zip.CRC32;
+
+/**
+ * Writes the gzip header and trailer around a raw DEFLATE stream, the same as {@link java.util.zip.GZIPOutputStream}
+ * does, but reusing the Deflater.
+ */
+final class GzipBatchCompressor extends DeflateBatchCompressor
+{
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final byte[] HEADER = {
+      (byte) GZIP_MAGIC,        // Magic number (short)
+      (byte) (GZIP_MAGIC >> 8), // Magic number (short)
+      8,                        // Compression method (CM), DEFLATE
+      0,                        // Flags (FLG)
+      0,                        // Modification time MTIME (int)
+      0,                        // Modification time MTIME (int)
+      0,                        // Modification time MTIME (int)
+      0,                        // Modification time MTIME (int)
+      0,                        // Extra flags (XFLG)
+      (byte) 0xff               // Operating system (OS), unknown
+  };
+
+  private final CRC32 crc = new CRC32();
+
+  GzipBatchCompressor(int level)
+  {
+    super(level);
+  }
+
+  @Override
+  public void begin(ZeroCopyByteArrayOutputStream out)
+  {
+    out.write(HEADER, 0, HEADER.length);
+    crc.reset();
+    super.begin(out);
+  }
+
+  @Override
+  public void update(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out)
+  {
+    crc.update(buffer, offset, length);
+    super.update(buffer, offset, length, out);
+  }
+
+  @Override
+  public void finish(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out)
+  {
+    crc.update(buffer, offset, length);
+    super.finish(buffer, offset, length, out);
+    writeIntLE(out, (int) crc.getValue());
+    // ISIZE is the uncompressed size modulo 2^32
+    writeIntLE(out, (int) getBytesRead());
+  }
+
+  private static void writeIntLE(ZeroCopyByteArrayOutputStream out, int value)
+  {
+    out.write(value);
+    out.write(value >> 8);
+    out.write(value >> 16);
+    out.write(value >> 24);
+  }
+}
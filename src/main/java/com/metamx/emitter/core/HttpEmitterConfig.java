@@ -44,6 +44,24 @@ public class HttpEmitterConfig extends BaseHttpEmittingConfig
     this.maxBatchSize = base.maxBatchSize;
     this.maxBufferSize = base.maxBufferSize;
     this.contentEncoding = base.contentEncoding;
+    this.overflowPolicy = base.overflowPolicy;
+    this.overflowBlockTimeOut = base.overflowBlockTimeOut;
+    this.spillDirectory = base.spillDirectory;
+    this.spillSegmentSize = base.spillSegmentSize;
+    this.maxSpillSize = base.maxSpillSize;
+    this.maxInFlightBatches = base.maxInFlightBatches;
+    this.batchStripes = base.batchStripes;
+    this.minRetryBackoffMillis = base.minRetryBackoffMillis;
+    this.maxRetryBackoffMillis = base.maxRetryBackoffMillis;
+    this.circuitBreakerFailureThreshold = base.circuitBreakerFailureThreshold;
+    this.compressionLevel = base.compressionLevel;
+    this.compressionThreads = base.compressionThreads;
+    this.incrementalCompression = base.incrementalCompression;
+    this.maxLargeEventsPerBatch = base.maxLargeEventsPerBatch;
+    this.maxPooledBufferSize = base.maxPooledBufferSize;
+    this.bufferPoolIdleMillis = base.bufferPoolIdleMillis;
+    this.bufferSizeClasses = base.bufferSizeClasses;
+    this.initialBatchBufferSize = base.initialBatchBufferSize;
   }
 
   public String getRecipientBaseUrl()
@@ -115,6 +133,114 @@ public class HttpEmitterConfig extends BaseHttpEmittingConfig
       return this;
     }
 
+    public Builder setOverflowPolicy(OverflowPolicy overflowPolicy)
+    {
+      this.overflowPolicy = overflowPolicy;
+      return this;
+    }
+
+    public Builder setOverflowBlockTimeOut(long overflowBlockTimeOut)
+    {
+      this.overflowBlockTimeOut = overflowBlockTimeOut;
+      return this;
+    }
+
+    public Builder setSpillDirectory(String spillDirectory)
+    {
+      this.spillDirectory = spillDirectory;
+      return this;
+    }
+
+    public Builder setSpillSegmentSize(int spillSegmentSize)
+    {
+      this.spillSegmentSize = spillSegmentSize;
+      return this;
+    }
+
+    public Builder setMaxSpillSize(long maxSpillSize)
+    {
+      this.maxSpillSize = maxSpillSize;
+      return this;
+    }
+
+    public Builder setMaxInFlightBatches(int maxInFlightBatches)
+    {
+      this.maxInFlightBatches = maxInFlightBatches;
+      return this;
+    }
+
+    public Builder setBatchStripes(int batchStripes)
+    {
+      this.batchStripes = batchStripes;
+      return this;
+    }
+
+    public Builder setMinRetryBackoffMillis(long minRetryBackoffMillis)
+    {
+      this.minRetryBackoffMillis = minRetryBackoffMillis;
+      return this;
+    }
+
+    public Builder setMaxRetryBackoffMillis(long maxRetryBackoffMillis)
+    {
+      this.maxRetryBackoffMillis = maxRetryBackoffMillis;
+      return this;
+    }
+
+    public Builder setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold)
+    {
+      this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+      return this;
+    }
+
+    public Builder setCompressionLevel(int compressionLevel)
+    {
+      this.compressionLevel = compressionLevel;
+      return this;
+    }
+
+    public Builder setCompressionThreads(int compressionThreads)
+    {
+      this.compressionThreads = compressionThreads;
+      return this;
+    }
+
+    public Builder setIncrementalCompression(boolean incrementalCompression)
+    {
+      this.incrementalCompression = incrementalCompression;
+      return this;
+    }
+
+    public Builder setMaxLargeEventsPerBatch(int maxLargeEventsPerBatch)
+    {
+      this.maxLargeEventsPerBatch = maxLargeEventsPerBatch;
+      return this;
+    }
+
+    public Builder setMaxPooledBufferSize(long maxPooledBufferSize)
+    {
+      this.maxPooledBufferSize = maxPooledBufferSize;
+      return this;
+    }
+
+    public Builder setBufferPoolIdleMillis(long bufferPoolIdleMillis)
+    {
+      this.bufferPoolIdleMillis = bufferPoolIdleMillis;
+      return this;
+    }
+
+    public Builder setBufferSizeClasses(boolean bufferSizeClasses)
+    {
+      this.bufferSizeClasses = bufferSizeClasses;
+      return this;
+    }
+
+    public Builder setInitialBatchBufferSize(int initialBatchBufferSize)
+    {
+      this.initialBatchBufferSize = initialBatchBufferSize;
+      return this;
+    }
+
     public HttpEmitterConfig build()
     {
       return new HttpEmitterConfig(this, recipientBaseUrl);
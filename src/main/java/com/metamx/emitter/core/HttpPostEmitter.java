@@ -16,14 +16,18 @@
 
 package com.metamx.emitter.core;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.metamx.common.ISE;
-import com.metamx.common.RetryUtils;
 import com.metamx.common.StringUtils;
 import com.metamx.common.lifecycle.LifecycleStart;
 import com.metamx.common.lifecycle.LifecycleStop;
@@ -32,33 +36,97 @@ import com.metamx.http.client.HttpClient;
 import com.metamx.http.client.Request;
 import com.metamx.http.client.response.StatusResponseHandler;
 import com.metamx.http.client.response.StatusResponseHolder;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpMethod;
 
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
-import java.util.concurrent.Callable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.LockSupport;
-import java.util.zip.GZIPOutputStream;
 
+/**
+ * Memory used by HttpPostEmitter is bounded by {@link BaseHttpEmittingConfig#getMaxBufferSize()}: batch buffers of
+ * {@link BaseHttpEmittingConfig#getMaxBatchSize()} bytes are accounted while they are being filled, queued for
+ * emitting, sent, kept for retrying after failure, or pooled for reuse. See {@link #maxLiveBuffers} and
+ * {@link BufferPool}. Output buffers of compression, see {@link #compressionBuffers}, are accounted too.
+ *
+ * When the budget is used up, a batch sealed by {@link #emit(Event)} cannot be followed by a new batch immediately.
+ * What {@link #emit(Event)} does in this case is defined by {@link BaseHttpEmittingConfig#getOverflowPolicy()}. Events
+ * dropped because of that, including events in discarded batches, are counted in {@link #getDroppedEvents()}, along
+ * with events of batches rejected by the collector as too large, which cannot be split.
+ *
+ * If {@link BaseHttpEmittingConfig#getSpillDirectory()} is configured, batches which failed to be sent are moved to a
+ * {@link SpillQueue} on disk, so that their buffers are freed, and sent from there in order, when the collector is
+ * available again. Batches which are left in the spill queue on {@link #close()} are sent by the next HttpPostEmitter
+ * started with the same spillDirectory.
+ *
+ * Up to {@link BaseHttpEmittingConfig#getMaxInFlightBatches()} batches are sent concurrently, using the asynchronous
+ * API of {@link HttpClient}. Batches are still reported to {@link EmittedBatchCounter} in the order of batch numbers,
+ * see {@link #pendingBatches}, so {@link #flush()} returns when all batches sealed before it are emitted (or failed).
+ * A batch which failed to be sent asynchronously is retried by {@link EmittingThread} as any other failed buffer.
+ *
+ * Failed batches are retried by {@link EmittingThread} with exponential backoff, and fresh batches are not sent while
+ * the collector looks unavailable, see {@link CircuitBreaker}. Waiting for retries doesn't block sending fresh
+ * batches.
+ *
+ * With {@link BaseHttpEmittingConfig#getBatchStripes()} greater than 1, there are several concurrently filled batches,
+ * see {@link #concurrentBatches}, to reduce contention between writer threads. Batch numbers are assigned when batches
+ * are sealed, in {@link #onSealExclusive(Batch, Batch.SealReason)}, so that batches are emitted in the order of batch
+ * numbers, as {@link EmittedBatchCounter} requires.
+ */
 public class HttpPostEmitter implements Flushable, Closeable, Emitter
 {
   private static final int MAX_EVENT_SIZE = 1023 * 1024; // Set max size slightly less than 1M to allow for metadata
 
-  private static final int MAX_SEND_RETRIES = 3;
+  /**
+   * See {@link #awaitNextBatch}.
+   */
+  private static final int NEXT_BATCH_SPINS = 100;
+  private static final int NEXT_BATCH_YIELDS = 100;
+  /**
+   * Parked writers are woken up explicitly, the timeout is just a safety net.
+   */
+  private static final long NEXT_BATCH_MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  /**
+   * With {@link BaseHttpEmittingConfig#isIncrementalCompression()}, the written part of a batch is compressed in chunks
+   * of at least this size, and EmittingThread checks for new chunks at least this often.
+   */
+  private static final int INCREMENTAL_COMPRESSION_MIN_CHUNK = 64 * 1024;
+  private static final long INCREMENTAL_COMPRESSION_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  /**
+   * If a retry of a failed batch couldn't proceed, e. g. because the memory budget is exhausted, EmittingThread parks
+   * until a buffer is freed, or at most for this time.
+   */
+  static final long STALLED_RETRY_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
   /**
    * Used in {@link EmittingThread#emitLargeEvents()} to ensure fair emitting of both large events and batched events.
    */
@@ -70,25 +138,137 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
   final BatchingStrategy batchingStrategy;
   final HttpEmitterConfig config;
   private final int bufferSize;
+  /**
+   * The maximum number of buffers of {@link #bufferSize} that could be allocated at the same time, computed as
+   * maxBufferSize / maxBatchSize, but not less than 2, so that one batch could be filled while another one is sent.
+   */
+  private final int maxLiveBuffers;
   final int maxBufferWatermark;
+  private final AdaptiveBatchSize adaptiveBatchSize;
   private final int largeEventThreshold;
+  /** The framing of batches of large events, see {@link EmittingThread#emitLargeEvents()} */
+  private final byte[] batchStart;
+  private final byte[] messageSeparator;
+  private final byte[] batchEnd;
   private final HttpClient client;
   private final ObjectMapper jsonMapper;
+  /**
+   * The factory of generators, with which {@link #jsonMapper} serializes events: the mapper's own, or the binary
+   * format's factory, see {@link BatchingStrategy#getBinaryFactory()}.
+   */
+  private final JsonFactory eventFactory;
+  /**
+   * Whether events are serialized with {@link #eventSerializers}, i. e. with {@link ObjectMapper#writeValue(
+   * JsonGenerator, Object)} into a reused buffer. For JSON, only if the mapper is a plain ObjectMapper, because
+   * subclasses may customize {@link ObjectMapper#writeValueAsBytes}, which is used for them, as before. Binary formats
+   * are always written with generators of {@link #eventFactory}, so the serializers are reused with any mapper.
+   */
+  private final boolean reuseEventSerializers;
   private final URL url;
 
-  private final ConcurrentLinkedQueue<byte[]> buffersToReuse = new ConcurrentLinkedQueue<>();
+  private final BufferPool bufferPool;
+  /** See {@link BaseHttpEmittingConfig#getInitialBatchBufferSize()}, 0 if batch buffers are not growable. */
+  private final int initialBatchBufferSize;
+  private final ThreadLocal<EventSerializer> eventSerializers = new ThreadLocal<EventSerializer>()
+  {
+    @Override
+    protected EventSerializer initialValue()
+    {
+      return new EventSerializer(jsonMapper, eventFactory);
+    }
+  };
+  private final int maxInFlightBatches;
+  private final Semaphore inFlightBatches;
+  /**
+   * Requests sent by {@link EmittingThread#sendBatchAsync}, which are completed. The HttpClient's
+   * threads, which are usually shared with the rest of the process, only record the outcome here, and EmittingThread
+   * handles it: spills, splits and requeues failed batches, see {@link SentBatch#onCompleted}.
+   */
+  private final ConcurrentLinkedQueue<SentBatch> completedSends = new ConcurrentLinkedQueue<>();
+  /**
+   * Batches polled from {@link #buffersToEmit} and not reported to {@link #emittedBatchCounter} yet, in the order of
+   * batch numbers. Guarded by itself. See {@link #completePendingBatch(PendingBatch)}.
+   */
+  private final ArrayDeque<PendingBatch> pendingBatches = new ArrayDeque<>();
+  /**
+   * Futures of batches awaited by {@link #flushAsync()}, keyed by batch number. Guarded by {@link #pendingBatches}.
+   */
+  private final Map<Integer, CompletableFuture<Void>> batchEmittedFutures = new HashMap<>();
+  /**
+   * Compressed payloads of in-flight requests must not be overwritten until the requests are completed, so each
+   * request takes a separate buffer from this pool. The capacity of these buffers is accounted against the memory
+   * budget of {@link #bufferPool}, see {@link #tryAcquireCompressionBuffer}.
+   */
+  private final ConcurrentLinkedQueue<ZeroCopyByteArrayOutputStream> compressionBuffers =
+      new ConcurrentLinkedQueue<>();
+  /**
+   * Compressors are reused for many batches, see {@link BatchCompressor}. Closed when {@link EmittingThread} exits.
+   */
+  private final ConcurrentLinkedQueue<BatchCompressor> compressors = new ConcurrentLinkedQueue<>();
+  private final CompressionStats compressionStats = new CompressionStats();
+  /**
+   * If {@link BaseHttpEmittingConfig#getCompressionThreads()} is positive and more than one batch could be in flight,
+   * batches are compressed and handed to the HttpClient by the {@link SharedCompressionExecutor}, so that
+   * {@link EmittingThread} could proceed to the next batch meanwhile. The number of batches submitted by this emitter
+   * and not completed is limited by {@link #inFlightBatches}.
+   */
+  @Nullable
+  private final Executor compressionExecutor;
 
   /**
-   * concurrentBatch.get() == null means the service is closed.
+   * Batches which are currently filled, writer threads choose one by thread id, see {@link #stripeOfCurrentThread()}.
+   * The stripe 0 batch == null means the service is closed.
    */
-  private final AtomicReference<Batch> concurrentBatch = new AtomicReference<>();
+  private final AtomicReferenceArray<Batch> concurrentBatches;
+  /**
+   * The number to be assigned to the next sealed batch. Guarded by {@link #sealLock}.
+   */
+  private int nextBatchNumber = 0;
+  private final Object sealLock = new Object();
 
   private final ConcurrentLinkedQueue<Batch> buffersToEmit = new ConcurrentLinkedQueue<>();
   private final ConcurrentLinkedQueue<byte[]> largeEventsToEmit = new ConcurrentLinkedQueue<>();
   private final EmittedBatchCounter emittedBatchCounter = new EmittedBatchCounter();
   private final EmittingThread emittingThread = new EmittingThread();
   private final AtomicLong totalEmittedEvents = new AtomicLong();
-  private final AtomicInteger allocatedBuffers = new AtomicInteger();
+  private final AtomicLong droppedEvents = new AtomicLong();
+  /**
+   * Used to log about the exhausted memory budget once per period of exhaustion, rather than for every dropped event.
+   */
+  private final AtomicBoolean bufferBudgetExhausted = new AtomicBoolean(false);
+  /**
+   * Used to log once per period of exhaustion of the memory budget that batches are sent uncompressed, see
+   * {@link #tryAcquireCompressionBuffer}.
+   */
+  private final AtomicBoolean compressionBudgetExhausted = new AtomicBoolean(false);
+  private final OverflowPolicy overflowPolicy;
+  /**
+   * Serializes {@link OverflowPolicy#DROP_OLDEST} evictions, so that concurrent writers don't discard more batches than
+   * needed, and is used to wait and notify about freed buffers with {@link OverflowPolicy#BLOCK}.
+   */
+  private final Object bufferBudgetLock = new Object();
+  /**
+   * Batches to be retried, in order. Halves of a batch rejected as too large are pushed to the head, see
+   * {@link #trySplitTooLargeBatch}.
+   */
+  private final ConcurrentLinkedDeque<FailedBuffer> failedBuffers = new ConcurrentLinkedDeque<>();
+  private final CircuitBreaker circuitBreaker;
+  private final AtomicLong droppedBatches = new AtomicLong();
+  /**
+   * Counted in the hot path of {@link #emit(Event)} by many threads, so LongAdder rather than AtomicLong.
+   */
+  private final LongAdder acceptedEvents = new LongAdder();
+  private final AtomicLong oversizedEvents = new AtomicLong();
+  /**
+   * Indexed by {@link Batch.SealReason#ordinal()}.
+   */
+  private final AtomicLongArray sealedBatches = new AtomicLongArray(Batch.SealReason.values().length);
+  private final AtomicLong retriedBatches = new AtomicLong();
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+  private final AtomicLong sentBytes = new AtomicLong();
+  private final AtomicLongArray sendLatencyCounts = new AtomicLongArray(EmitterStats.SEND_LATENCY_BUCKETS);
+  @Nullable
+  private final SpillQueue spillQueue;
 
   private final Object startLock = new Object();
   private final CountDownLatch startLatch = new CountDownLatch(1);
@@ -120,18 +300,128 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
     );
     this.config = config;
     this.bufferSize = config.getMaxBatchSize();
+    this.maxLiveBuffers = (int) Math.max(2, Math.min(Integer.MAX_VALUE, config.getMaxBufferSize() / bufferSize));
+    Preconditions.checkArgument(
+        config.getBatchStripes() > 0 && config.getBatchStripes() < maxLiveBuffers,
+        "batchStripes[%s] must be positive, and maxBufferSize must fit at least batchStripes + 1 batches",
+        config.getBatchStripes()
+    );
+    Preconditions.checkArgument(
+        config.getInitialBatchBufferSize() >= 0,
+        "initialBatchBufferSize[%s] must be non-negative",
+        config.getInitialBatchBufferSize()
+    );
+    this.initialBatchBufferSize = Math.min(config.getInitialBatchBufferSize(), bufferSize);
+    this.bufferPool = new BufferPool(
+        bufferSize,
+        minBufferSizeClass(),
+        (long) maxLiveBuffers * bufferSize,
+        config.getMaxPooledBufferSize(),
+        config.getBufferPoolIdleMillis()
+    );
+    this.concurrentBatches = new AtomicReferenceArray<>(config.getBatchStripes());
+    Preconditions.checkArgument(
+        config.getContentEncoding() == null ||
+        config.getContentEncoding().isSupportedCompressionLevel(config.getCompressionLevel()),
+        "compressionLevel[%s] is not supported by contentEncoding[%s]",
+        config.getCompressionLevel(),
+        config.getContentEncoding()
+    );
+    this.overflowPolicy = Preconditions.checkNotNull(config.getOverflowPolicy(), "overflowPolicy");
+    Preconditions.checkArgument(config.getMaxInFlightBatches() > 0, "maxInFlightBatches must be positive");
+    this.maxInFlightBatches = config.getMaxInFlightBatches();
+    this.inFlightBatches = new Semaphore(maxInFlightBatches);
+    Preconditions.checkArgument(
+        !config.isIncrementalCompression() ||
+        (config.getContentEncoding() != null && config.getContentEncoding().supportsIncrementalCompression()),
+        "incrementalCompression is not supported by contentEncoding[%s]",
+        config.getContentEncoding()
+    );
+    Preconditions.checkArgument(config.getCompressionThreads() >= 0, "compressionThreads must be non-negative");
+    if (config.getContentEncoding() != null && config.getCompressionThreads() > 0 && maxInFlightBatches > 1) {
+      this.compressionExecutor = SharedCompressionExecutor.acquire(config.getCompressionThreads());
+    } else {
+      if (config.getCompressionThreads() > 0) {
+        log.warn(
+            "compressionThreads[%d] is ignored for url[%s] with contentEncoding[%s] and maxInFlightBatches[%d]",
+            config.getCompressionThreads(),
+            config.getRecipientBaseUrl(),
+            config.getContentEncoding(),
+            maxInFlightBatches
+        );
+      }
+      this.compressionExecutor = null;
+    }
+    this.circuitBreaker = new CircuitBreaker(
+        config.getRecipientBaseUrl(),
+        config.getMinRetryBackoffMillis(),
+        config.getMaxRetryBackoffMillis(),
+        config.getCircuitBreakerFailureThreshold()
+    );
     this.maxBufferWatermark = bufferSize - batchingStrategy.batchEndLength();
+    this.adaptiveBatchSize = new AdaptiveBatchSize(config.getRecipientBaseUrl(), bufferSize);
     // Chosen so that if event size < largeEventThreshold, at least 2 events could fit the standard buffer.
     this.largeEventThreshold = (bufferSize - batchOverhead - batchingStrategy.separatorLength()) / 2;
+    this.batchStart = new byte[batchingStrategy.batchStartLength()];
+    batchingStrategy.writeBatchStart(batchStart);
+    this.messageSeparator = new byte[batchingStrategy.separatorLength()];
+    batchingStrategy.writeMessageSeparator(messageSeparator, 0);
+    this.batchEnd = new byte[batchingStrategy.batchEndLength()];
+    batchingStrategy.writeBatchEnd(batchEnd, 0);
     this.client = client;
     this.jsonMapper = jsonMapper;
+    JsonFactory binaryFactory;
+    try {
+      binaryFactory = batchingStrategy.getBinaryFactory();
+    }
+    catch (NoClassDefFoundError e) {
+      throw new ISE(e, "batchingStrategy[%s] requires its jackson-dataformat dependency", batchingStrategy);
+    }
+    this.eventFactory = binaryFactory != null ? binaryFactory : jsonMapper.getFactory();
+    this.reuseEventSerializers = jsonMapper.getClass() == ObjectMapper.class || binaryFactory != null;
     try {
       this.url = new URL(config.getRecipientBaseUrl());
     }
     catch (MalformedURLException e) {
       throw new ISE(e, "Bad URL: %s", config.getRecipientBaseUrl());
     }
-    concurrentBatch.set(new Batch(this, acquireBuffer(), 0));
+    Preconditions.checkArgument(
+        overflowPolicy != OverflowPolicy.SPILL || config.getSpillDirectory() != null,
+        "spillDirectory must be set with overflowPolicy[SPILL]"
+    );
+    if (config.getSpillDirectory() != null) {
+      File spillDirectory = new File(config.getSpillDirectory());
+      try {
+        this.spillQueue = new SpillQueue(
+            spillDirectory,
+            bufferSize,
+            config.getSpillSegmentSize(),
+            config.getMaxSpillSize()
+        );
+      }
+      catch (IOException e) {
+        throw new ISE(e, "Cannot open spill directory [%s]", spillDirectory);
+      }
+    } else {
+      this.spillQueue = null;
+    }
+    for (int stripe = 0; stripe < concurrentBatches.length(); stripe++) {
+      concurrentBatches.set(stripe, new Batch(this, tryAcquireBatchBuffer(newBatchBufferSize()), stripe));
+    }
+  }
+
+  /**
+   * Batch buffers of all sizes, that could be requested from {@link #bufferPool}, are pooled, if either
+   * {@link BaseHttpEmittingConfig#isBufferSizeClasses()} or {@link BaseHttpEmittingConfig#getInitialBatchBufferSize()}
+   * is set. Otherwise, only the buffers of the full batch size are pooled.
+   */
+  private int minBufferSizeClass()
+  {
+    int minSizeClass = config.isBufferSizeClasses() ? Math.min(BufferPool.MIN_SIZE_CLASS, bufferSize) : bufferSize;
+    if (initialBatchBufferSize > 0) {
+      minSizeClass = Math.min(minSizeClass, initialBatchBufferSize);
+    }
+    return minSizeClass;
   }
 
   @Override
@@ -169,7 +459,13 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
 
   private boolean isTerminated()
   {
-    return concurrentBatch.get() == null;
+    return concurrentBatches.get(0) == null;
+  }
+
+  private int stripeOfCurrentThread()
+  {
+    int stripes = concurrentBatches.length();
+    return stripes == 1 ? 0 : (int) (Thread.currentThread().getId() % stripes);
   }
 
   @Override
@@ -183,40 +479,255 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
   {
     awaitStarted();
 
-    final byte[] eventBytes = eventToBytes(event);
+    EventSerializer eventSerializer = reuseEventSerializers ? eventSerializers.get() : null;
+    if (eventSerializer == null || !eventSerializer.tryAcquire()) {
+      // Slow path, for ObjectMapper subclasses with JSON, or for an event emitted during serialization of another event
+      // in the same thread.
+      byte[] eventBytes = eventToBytes(event);
+      return emitAndReturnBatch(eventBytes, eventBytes.length);
+    }
+    try {
+      try {
+        eventSerializer.serialize(event);
+      }
+      catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+      return emitAndReturnBatch(eventSerializer.getBuffer(), eventSerializer.getLength());
+    }
+    finally {
+      eventSerializer.release();
+    }
+  }
 
-    if (eventBytes.length > MAX_EVENT_SIZE) {
+  /**
+   * The event bytes are copied into the batch, so the given buffer could be reused after this method returns.
+   */
+  @Nullable
+  private Batch emitAndReturnBatch(byte[] eventBuffer, int eventLength)
+  {
+    if (eventLength > MAX_EVENT_SIZE) {
+      oversizedEvents.incrementAndGet();
       log.error(
           "Event too large to emit (%,d > %,d): %s ...",
-          eventBytes.length,
+          eventLength,
           MAX_EVENT_SIZE,
-          StringUtils.fromUtf8(ByteBuffer.wrap(eventBytes), 1024)
+          StringUtils.fromUtf8(ByteBuffer.wrap(eventBuffer, 0, eventLength), 1024)
       );
       return null;
     }
 
-    if (eventBytes.length > largeEventThreshold) {
-      writeLargeEvent(eventBytes);
+    if (eventLength > largeEventThreshold) {
+      writeLargeEvent(Arrays.copyOf(eventBuffer, eventLength));
+      acceptedEvents.increment();
       return null;
     }
 
+    final int stripe = stripeOfCurrentThread();
+    Batch awaitedBatch = null;
+    int waits = 0;
     while (true) {
-      Batch batch = concurrentBatch.get();
+      Batch batch = concurrentBatches.get(stripe);
       if (batch == null) {
         throw new RejectedExecutionException("Service is closed.");
       }
-      if (batch.tryAddEvent(eventBytes)) {
+      if (batch.tryAddEvent(eventBuffer, eventLength)) {
+        acceptedEvents.increment();
         return batch;
       }
-      // Spin loop, until the thread calling onSealExclusive() updates the concurrentBatch. This update becomes visible
-      // eventually, because concurrentBatch.get() is a volatile read.
+      if (batch.noBufferForNextBatch) {
+        if (!tryInstallNextBatch(batch)
+            && concurrentBatches.get(stripe) == batch
+            && !handleExhaustedBudget(batch)) {
+          dropEventOnExhaustedBudget();
+          return null;
+        }
+      } else {
+        if (batch != awaitedBatch) {
+          awaitedBatch = batch;
+          waits = 0;
+        }
+        awaitNextBatch(batch, stripe, waits++);
+      }
+    }
+  }
+
+  /**
+   * Waits until the thread calling {@link #onSealExclusive(Batch, Batch.SealReason)} for the given batch installs the
+   * next batch of the stripe. It usually takes very little time, so the caller spins first, then yields, then parks
+   * until woken up by {@link Batch#wakeUpWaitersForNextBatch()}, e. g. if the sealing thread is descheduled, or
+   * allocates a new buffer.
+   *
+   * @param waits the number of preceding calls of this method for this batch from the current thread
+   */
+  private void awaitNextBatch(Batch batch, int stripe, int waits)
+  {
+    if (waits < NEXT_BATCH_SPINS) {
+      // Spin. The update of the stripe becomes visible eventually, because concurrentBatches.get() is a volatile read.
+      return;
+    }
+    if (waits < NEXT_BATCH_SPINS + NEXT_BATCH_YIELDS) {
+      Thread.yield();
+      return;
+    }
+    if (waits == NEXT_BATCH_SPINS + NEXT_BATCH_YIELDS) {
+      // Register once per batch, the registration stays until the batch wakes up its waiters.
+      batch.addWaiterForNextBatch(Thread.currentThread());
+    }
+    // Re-check after registration, to not miss the wake up.
+    if (concurrentBatches.get(stripe) == batch && !batch.noBufferForNextBatch) {
+      LockSupport.parkNanos(batch, NEXT_BATCH_MAX_PARK_NANOS);
+    }
+  }
+
+  /**
+   * Applies {@link #overflowPolicy}, when the given sealed batch couldn't be followed by the next batch because the
+   * memory budget is exhausted. Returns true if the caller should retry to add the event, false if the event should be
+   * dropped.
+   */
+  private boolean handleExhaustedBudget(Batch sealedBatch)
+  {
+    switch (overflowPolicy) {
+      case DROP_NEWEST:
+        return false;
+      case DROP_OLDEST:
+      case SPILL:
+        synchronized (bufferBudgetLock) {
+          if (concurrentBatches.get(sealedBatch.stripe) != sealedBatch || tryInstallNextBatch(sealedBatch)) {
+            return true;
+          }
+          byte[] buffer = tryEvictOldestBatch();
+          if (buffer == null) {
+            return false;
+          }
+          if (buffer.length < sealedBatch.nextBatchBufferSize) {
+            // The budget is freed, but the buffer is too small for a batch, the caller will retry to acquire one.
+            discardBuffer(buffer);
+            return true;
+          }
+          if (!tryInstallNextBatch(sealedBatch, buffer)) {
+            returnBufferToPool(buffer);
+          }
+          return true;
+        }
+      case BLOCK:
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.getOverflowBlockTimeOut());
+        synchronized (bufferBudgetLock) {
+          while (true) {
+            if (concurrentBatches.get(sealedBatch.stripe) != sealedBatch || tryInstallNextBatch(sealedBatch)) {
+              return true;
+            }
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+              return false;
+            }
+            try {
+              TimeUnit.NANOSECONDS.timedWait(bufferBudgetLock, remainingNanos);
+            }
+            catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              return false;
+            }
+          }
+        }
+      default:
+        throw new ISE("Unsupported overflow policy [%s]", overflowPolicy);
+    }
+  }
+
+  /**
+   * Discards (or spills, with {@link OverflowPolicy#SPILL}) the oldest failed or queued batch, which is not being sent
+   * at the moment, and returns it's buffer, or returns null, if there is no such batch.
+   */
+  @Nullable
+  private byte[] tryEvictOldestBatch()
+  {
+    for (FailedBuffer failedBuffer : failedBuffers) {
+      if (failedBuffer.tryClaim()) {
+        failedBuffers.remove(failedBuffer);
+        spillOrDrop(failedBuffer.buffer, failedBuffer.length, failedBuffer.eventCount);
+        return failedBuffer.buffer;
+      }
+    }
+    for (Batch batch : buffersToEmit) {
+      if (batch.tryClaim()) {
+        // Wait until all concurrent writers finish writing into the buffer of the batch, before reusing it. The
+        // EmittingThread still polls this batch from buffersToEmit, to count it in emittedBatchCounter.
+        batch.awaitEmittingAllowed();
+        int bufferWatermark = batch.getSealedBufferWatermark();
+        if (bufferWatermark > 0) {
+          int bufferEndOffset = batchingStrategy.writeBatchEnd(batch.buffer, bufferWatermark);
+          spillOrDrop(batch.buffer, bufferEndOffset, batch.eventCount.get());
+        }
+        return batch.buffer;
+      }
+    }
+    return null;
+  }
+
+  private void spillOrDrop(byte[] buffer, int length, int eventCount)
+  {
+    if (overflowPolicy != OverflowPolicy.SPILL || !trySpill(buffer, length, eventCount)) {
+      onBatchDropped(eventCount);
+    }
+  }
+
+  /**
+   * Returns true if the batch is appended to {@link #spillQueue}, then the buffer could be reused.
+   */
+  private boolean trySpill(byte[] buffer, int length, int eventCount)
+  {
+    if (spillQueue == null) {
+      return false;
+    }
+    try {
+      if (spillQueue.append(buffer, length, eventCount)) {
+        return true;
+      }
+      log.debug("Spill size limit is reached in [%s]", spillQueue);
+    }
+    catch (IOException e) {
+      log.error(e, "Failed to spill a batch to [%s]", spillQueue);
+    }
+    return false;
+  }
+
+  private void onBatchDropped(int eventCount)
+  {
+    droppedBatches.incrementAndGet();
+    droppedEvents.addAndGet(eventCount);
+    logBudgetExhaustedOnce();
+  }
+
+  private void dropEventOnExhaustedBudget()
+  {
+    droppedEvents.incrementAndGet();
+    logBudgetExhaustedOnce();
+  }
+
+  private void logBudgetExhaustedOnce()
+  {
+    if (!bufferBudgetExhausted.get() && bufferBudgetExhausted.compareAndSet(false, true)) {
+      log.warn(
+          "Buffer memory budget of [%,d] bytes is exhausted, dropping events to url[%s] with overflow policy [%s]",
+          (long) maxLiveBuffers * bufferSize,
+          config.getRecipientBaseUrl(),
+          overflowPolicy
+      );
     }
   }
 
   private byte[] eventToBytes(Event event)
   {
     try {
-      return jsonMapper.writeValueAsBytes(event);
+      if (eventFactory == jsonMapper.getFactory()) {
+        return jsonMapper.writeValueAsBytes(event);
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (JsonGenerator generator = eventFactory.createGenerator(out)) {
+        jsonMapper.writeValue(generator, event);
+      }
+      return out.toByteArray();
     }
     catch (IOException e) {
       throw Throwables.propagate(e);
@@ -229,20 +740,67 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
     wakeUpEmittingThread();
   }
 
+  /**
+   * Returns the limit of {@link Batch}'s bufferWatermark, which is lower than {@link #maxBufferWatermark}, when
+   * {@link #adaptiveBatchSize} is lowered after HTTP 413 responses.
+   */
+  int bufferWatermarkLimit()
+  {
+    return adaptiveBatchSize.getTarget() - batchingStrategy.batchEndLength();
+  }
+
   /**
    * Called from {@link Batch} only once for each Batch in existence.
    */
-  void onSealExclusive(Batch batch)
+  void onSealExclusive(Batch batch, Batch.SealReason reason)
   {
-    buffersToEmit.add(batch);
+    sealedBatches.incrementAndGet(reason.ordinal());
+    // Batches of different stripes are sealed concurrently, numbering and enqueueing them atomically keeps
+    // buffersToEmit in the order of batch numbers.
+    synchronized (sealLock) {
+      batch.batchNumber = nextBatchNumber;
+      nextBatchNumber = EmittedBatchCounter.nextBatchNumber(nextBatchNumber);
+      buffersToEmit.add(batch);
+    }
     wakeUpEmittingThread();
     if (!isTerminated()) {
-      int nextBatchNumber = EmittedBatchCounter.nextBatchNumber(batch.batchNumber);
-      if (!concurrentBatch.compareAndSet(batch, new Batch(this, acquireBuffer(), nextBatchNumber))) {
-        // If compareAndSet failed, the service is closed concurrently.
-        Preconditions.checkState(isTerminated());
+      if (!tryInstallNextBatch(batch) && !isTerminated()) {
+        // The memory budget is exhausted. Writers will retry installing the next batch, see emitAndReturnBatch().
+        batch.noBufferForNextBatch = true;
+        batch.wakeUpWaitersForNextBatch();
+      }
+    }
+  }
+
+  /**
+   * Tries to replace the given sealed batch with the next one in {@link #concurrentBatches}. Returns false if the
+   * memory budget is exhausted, or if the next batch is already installed by another thread, or if the service is closed.
+   */
+  private boolean tryInstallNextBatch(Batch sealedBatch)
+  {
+    byte[] buffer = tryAcquireBatchBuffer(sealedBatch.nextBatchBufferSize);
+    if (buffer == null) {
+      return false;
+    }
+    if (tryInstallNextBatch(sealedBatch, buffer)) {
+      return true;
+    }
+    returnBufferToPool(buffer);
+    return false;
+  }
+
+  private boolean tryInstallNextBatch(Batch sealedBatch, byte[] buffer)
+  {
+    if (concurrentBatches.compareAndSet(sealedBatch.stripe, sealedBatch, new Batch(this, buffer, sealedBatch.stripe))) {
+      sealedBatch.wakeUpWaitersForNextBatch();
+      if (bufferBudgetExhausted.get()) {
+        bufferBudgetExhausted.set(false);
       }
+      return true;
     }
+    // If compareAndSet failed, either the service is closed concurrently, or another writer thread has installed the
+    // next batch, after the memory budget was exhausted in onSealExclusive().
+    return false;
   }
 
   private void wakeUpEmittingThread()
@@ -250,21 +808,109 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
     LockSupport.unpark(emittingThread);
   }
 
+  /**
+   * Called from {@link Batch} after the first event is added to it. If all open batches were empty, the emitting thread
+   * may be parked indefinitely, it's woken up to wait for the time-based flush of this batch.
+   */
+  void onFirstEventAdded()
+  {
+    if (emittingThread.awaitingFirstEvent) {
+      wakeUpEmittingThread();
+    }
+  }
+
   @Override
   public void flush() throws IOException
   {
     awaitStarted();
-    flush(concurrentBatch.get());
+    flush(currentBatches(false));
   }
 
-  private void flush(Batch batch) throws IOException
+  /**
+   * Seals the current batches and returns a future, which is completed when they are emitted (or failed, as
+   * {@link #flush()} returns in this case too). Unlike {@link #flush()},
+   * {@link BaseHttpEmittingConfig#getFlushTimeOut()} is not applied, callers could wait for the returned future with a timeout.
+   *
+   * The future is completed in the thread which completes sending of the last batch, that may be {@link EmittingThread}
+   * or an HttpClient's thread, so dependent actions shouldn't block.
+   */
+  @Override
+  public CompletableFuture<Void> flushAsync()
   {
-    if (batch == null) {
-      return;
+    if (startLatch.getCount() != 0) {
+      return failedFuture(new RejectedExecutionException("Service is not started."));
+    }
+    List<Batch> batches = currentBatches(false);
+    if (batches.isEmpty()) {
+      return failedFuture(new RejectedExecutionException("Service is closed."));
+    }
+    for (Batch batch : batches) {
+      batch.seal();
+    }
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[batches.size()];
+    for (int i = 0; i < futures.length; i++) {
+      futures[i] = batchEmittedFuture(batches.get(i).awaitBatchNumber());
+    }
+    // allOf() returns a new future even for a single batch, so that callers cannot complete the shared one.
+    return CompletableFuture.allOf(futures);
+  }
+
+  private CompletableFuture<Void> batchEmittedFuture(int batchNumber)
+  {
+    synchronized (pendingBatches) {
+      if (emittedBatchCounter.isBatchEmitted(batchNumber)) {
+        return CompletableFuture.completedFuture(null);
+      }
+      CompletableFuture<Void> future = batchEmittedFutures.get(batchNumber);
+      if (future == null) {
+        future = new CompletableFuture<>();
+        batchEmittedFutures.put(batchNumber, future);
+      }
+      return future;
+    }
+  }
+
+  private static CompletableFuture<Void> failedFuture(Throwable t)
+  {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    future.completeExceptionally(t);
+    return future;
+  }
+
+  /**
+   * Returns the batches of all stripes, skipping nulls. If close is true, replaces them with nulls, that means the
+   * service is closed.
+   */
+  private List<Batch> currentBatches(boolean close)
+  {
+    List<Batch> batches = new ArrayList<>(concurrentBatches.length());
+    for (int stripe = 0; stripe < concurrentBatches.length(); stripe++) {
+      Batch batch = close ? concurrentBatches.getAndSet(stripe, null) : concurrentBatches.get(stripe);
+      if (batch != null) {
+        batches.add(batch);
+        if (close) {
+          batch.wakeUpWaitersForNextBatch();
+        }
+      }
+    }
+    return batches;
+  }
+
+  private void flush(List<Batch> batches) throws IOException
+  {
+    for (Batch batch : batches) {
+      batch.seal();
     }
-    batch.seal();
     try {
-      emittedBatchCounter.awaitBatchEmitted(batch.batchNumber, config.getFlushTimeOut(), TimeUnit.MILLISECONDS);
+      long deadline = System.currentTimeMillis() + config.getFlushTimeOut();
+      for (Batch batch : batches) {
+        // The batch could be sealed concurrently by another thread, which may have not assigned the batch number yet.
+        int batchNumber = batch.awaitBatchNumber();
+        long timeout = config.getFlushTimeOut() == Long.MAX_VALUE
+                       ? Long.MAX_VALUE
+                       : Math.max(deadline - System.currentTimeMillis(), 0);
+        emittedBatchCounter.awaitBatchEmitted(batchNumber, timeout, TimeUnit.MILLISECONDS);
+      }
     }
     catch (TimeoutException e) {
       String message = String.format("Timed out after [%d] millis during flushing", config.getFlushTimeOut());
@@ -284,78 +930,273 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
     synchronized (startLock) {
       if (running) {
         running = false;
-        Batch lastBatch = concurrentBatch.getAndSet(null);
-        flush(lastBatch);
-        emittingThread.shuttingDown = true;
-        // EmittingThread is interrupted after the last batch is flushed.
-        emittingThread.interrupt();
+        try {
+          flush(currentBatches(true));
+        }
+        finally {
+          emittingThread.shuttingDown = true;
+          // EmittingThread is interrupted after the last batch is flushed.
+          emittingThread.interrupt();
+          // Waiting until EmittingThread makes the last attempt to send failed batches, and closes the spill queue, so
+          // that another emitter could use the spill directory right after this one is closed.
+          awaitEmittingThreadTermination();
+          if (config.getContentEncoding() != null) {
+            log.info("Compression of batches sent to url[%s]: %s", url, compressionStats);
+          }
+        }
+      } else if (startLatch.getCount() != 0) {
+        // Never started
+        closeSpillQueue();
+        releaseCompressionExecutor();
       }
     }
   }
 
-  @Override
-  public String toString()
+  private void awaitEmittingThreadTermination()
   {
-    return "HttpPostEmitter{" +
-           "config=" + config +
-           '}';
+    try {
+      emittingThread.join();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
-  private class EmittingThread extends Thread
+  private void closeSpillQueue()
   {
-    private final ArrayDeque<FailedBuffer> failedBuffers = new ArrayDeque<>();
-    private boolean shuttingDown = false;
-    private ZeroCopyByteArrayOutputStream gzipBaos;
+    if (spillQueue == null) {
+      return;
+    }
+    if (!spillQueue.isEmpty()) {
+      log.info("[%,d] batches are left in [%s] to be sent after restart", spillQueue.size(), spillQueue);
+    }
+    try {
+      spillQueue.close();
+    }
+    catch (IOException e) {
+      log.error(e, "Failed to close [%s]", spillQueue);
+    }
+  }
 
-    EmittingThread()
-    {
-      super("HttpPostEmitter-" + instanceCounter.incrementAndGet());
-      setDaemon(true);
+  /**
+   * Returns a snapshot of the statistics of this emitter.
+   */
+  public EmitterStats getStats()
+  {
+    long[] counters = new long[EmitterStats.COUNTERS];
+    counters[EmitterStats.ACCEPTED_EVENTS] = acceptedEvents.sum();
+    counters[EmitterStats.DROPPED_EVENTS] = droppedEvents.get();
+    counters[EmitterStats.OVERSIZED_EVENTS] = oversizedEvents.get();
+    counters[EmitterStats.EMITTED_EVENTS] = totalEmittedEvents.get();
+    counters[EmitterStats.BATCHES_SEALED_BY_COUNT] = sealedBatches.get(Batch.SealReason.COUNT.ordinal());
+    counters[EmitterStats.BATCHES_SEALED_BY_SIZE] = sealedBatches.get(Batch.SealReason.SIZE.ordinal());
+    counters[EmitterStats.BATCHES_SEALED_BY_TIME] = sealedBatches.get(Batch.SealReason.TIME.ordinal());
+    counters[EmitterStats.BATCHES_SEALED_BY_FLUSH] = sealedBatches.get(Batch.SealReason.FLUSH.ordinal());
+    counters[EmitterStats.DROPPED_BATCHES] = droppedBatches.get();
+    counters[EmitterStats.RETRIED_BATCHES] = retriedBatches.get();
+    counters[EmitterStats.UNCOMPRESSED_BYTES] = uncompressedBytes.get();
+    counters[EmitterStats.SENT_BYTES] = sentBytes.get();
+    counters[EmitterStats.ALLOCATED_BUFFERS] = bufferPool.getAllocatedBuffers();
+    counters[EmitterStats.TRIMMED_BUFFERS] = bufferPool.getTrimmedBuffers();
+    long[] gauges = new long[EmitterStats.GAUGES];
+    // ConcurrentLinkedQueue.size() is O(n), but the queues are short, because their elements are batches.
+    gauges[EmitterStats.BATCHES_TO_EMIT] = buffersToEmit.size();
+    gauges[EmitterStats.FAILED_BATCHES] = failedBuffers.size();
+    gauges[EmitterStats.LARGE_EVENTS_TO_EMIT] = largeEventsToEmit.size();
+    gauges[EmitterStats.SPILLED_BATCHES] = getSpilledBatches();
+    gauges[EmitterStats.LIVE_BUFFER_BYTES] = bufferPool.getLiveBytes();
+    gauges[EmitterStats.POOLED_BUFFER_BYTES] = bufferPool.getPooledBytes();
+    long[] sendLatencyCounts = new long[EmitterStats.SEND_LATENCY_BUCKETS];
+    for (int bucket = 0; bucket < sendLatencyCounts.length; bucket++) {
+      sendLatencyCounts[bucket] = this.sendLatencyCounts.get(bucket);
     }
+    return new EmitterStats(counters, gauges, sendLatencyCounts);
+  }
 
-    @Override
-    public void run()
-    {
-      while (true) {
+  String getUrl()
+  {
+    return config.getRecipientBaseUrl();
+  }
+
+  /**
+   * Returns the statistics of compression of batches with {@link BaseHttpEmittingConfig#getContentEncoding()}.
+   */
+  public CompressionStats getCompressionStats()
+  {
+    return compressionStats;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "HttpPostEmitter{" +
+           "config=" + config +
+           '}';
+  }
+
+  private class EmittingThread extends Thread
+  {
+    private volatile boolean shuttingDown = false;
+    /** True while this thread is parked, or about to park, without a deadline for a time-based flush. */
+    private volatile boolean awaitingFirstEvent = false;
+    /** True while this thread is parked, or about to park, after a retry which couldn't proceed, see {@link #park}. */
+    private volatile boolean awaitingFreedBuffer = false;
+    /**
+     * True if the last retry of a failed or spilled batch neither completed, nor was reported as a failure to {@link
+     * #circuitBreaker}, e. g. there was no memory to read a spilled batch, or to split a batch rejected as too large.
+     * Accessed only by this thread.
+     */
+    private boolean retryStalled = false;
+    /** When the retry has stalled, see {@link #nanosUntilStalledRetry()}. */
+    private long retryStalledNanos;
+    /** Set by {@link #notifyBufferFreed()}, a stalled retry is attempted again when a buffer is freed. */
+    private volatile boolean bufferFreed = false;
+    /**
+     * True while a retry of a failed or spilled batch is in flight. Batches are retried one at a time, to keep their
+     * order. Accessed only by this thread.
+     */
+    private boolean retryInFlight = false;
+
+    EmittingThread()
+    {
+      super("HttpPostEmitter-" + instanceCounter.incrementAndGet());
+      setDaemon(true);
+    }
+
+    @Override
+    public void run()
+    {
+      while (true) {
         boolean needsToShutdown = needsToShutdown();
         try {
+          handleCompletedSends();
           emitLargeEvents();
           emitBatches();
           tryEmitOneFailedBuffer();
 
           if (needsToShutdown) {
+            awaitInFlightBatches();
+            handleCompletedSends();
             tryEmitAndDrainAllFailedBuffers();
+            closeSpillQueue();
             // Make GC life easier
-            drainBuffersToReuse();
+            bufferPool.drain();
+            releaseCompressionBuffers();
+            releaseCompressionExecutor();
+            closeCompressors();
             return;
           }
+          // Spilled batches are sent after in-memory failed buffers, to keep the order of batches.
+          if (failedBuffers.isEmpty()) {
+            tryEmitOneSpilledBatch();
+          }
+          compressOpenBatchesIncrementally();
+          if (bufferPool.trim()) {
+            notifyBufferFreed();
+          }
         }
         catch (Throwable t) {
           log.error(t, "Uncaught exception in EmittingThread.run()");
         }
-        if (failedBuffers.isEmpty()) {
-          // Waiting for 1/2 of config.getFlushMillis() in order to flush events not more than 50% later than specified.
-          // If nanos=0 parkNanos() doesn't wait at all, then we don't want.
-          long waitNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(config.getFlushMillis()) / 2, 1);
-          LockSupport.parkNanos(HttpPostEmitter.this, waitNanos);
+        park();
+      }
+    }
+
+    /**
+     * Parks until the earliest of: the time-based flush of an open batch, the next retry of failed batches, incremental
+     * compression, or trimming of the buffer pool. If there is nothing to wait for, i. e. the emitter is idle, parks
+     * until woken up by {@link #wakeUpEmittingThread()}: when a batch is sealed, a large event is queued, a batch is
+     * failed, or the first event is added to an open batch, see {@link #onFirstEventAdded()}.
+     *
+     * The circuit breaker allows a retry immediately unless the last one failed, so if the last retry couldn't proceed,
+     * the next one waits until a buffer is freed, see {@link #notifyBufferFreed()}, or {@link
+     * #STALLED_RETRY_BACKOFF_NANOS} pass, rather than spinning.
+     */
+    private void park()
+    {
+      long waitNanos = nanosUntilTimeBasedFlush();
+      boolean openBatchesEmpty = waitNanos == Long.MAX_VALUE;
+      // If a retry is in flight, or all permits are taken, a completed send wakes up this thread.
+      boolean retryAwaitsSend = retryInFlight || inFlightBatches.availablePermits() == 0;
+      if (!retryAwaitsSend && (!failedBuffers.isEmpty() || (spillQueue != null && !spillQueue.isEmpty()))) {
+        // Wake up when the next retry is allowed.
+        long nanosUntilRetry = circuitBreaker.nanosUntilRetry();
+        if (retryStalled) {
+          // Must be set before checking bufferFreed, see notifyBufferFreed().
+          awaitingFreedBuffer = true;
+          nanosUntilRetry = Math.max(nanosUntilRetry, nanosUntilStalledRetry());
+        }
+        waitNanos = Math.min(waitNanos, nanosUntilRetry);
+      }
+      if (config.isIncrementalCompression() && !openBatchesEmpty) {
+        waitNanos = Math.min(waitNanos, INCREMENTAL_COMPRESSION_PERIOD_NANOS);
+      }
+      if (bufferPool.getPooledBytes() > 0) {
+        // Wake up to trim the buffers, which are not used after a burst of traffic.
+        waitNanos = Math.min(waitNanos, bufferPool.nanosUntilTrim());
+      }
+      if (openBatchesEmpty) {
+        // Must be set before checking the batches again, see onFirstEventAdded().
+        awaitingFirstEvent = true;
+        if (nanosUntilTimeBasedFlush() != Long.MAX_VALUE) {
+          waitNanos = 0;
         }
       }
+      if (!largeEventsToEmit.isEmpty() || !buffersToEmit.isEmpty() || !completedSends.isEmpty()) {
+        // Added while this thread was sending, the wake-up could be consumed by the send.
+        waitNanos = 0;
+      }
+      if (waitNanos == Long.MAX_VALUE) {
+        LockSupport.park(HttpPostEmitter.this);
+      } else if (waitNanos > 0) {
+        LockSupport.parkNanos(HttpPostEmitter.this, waitNanos);
+      }
+      awaitingFirstEvent = false;
+      awaitingFreedBuffer = false;
+    }
+
+    /**
+     * Returns the time until the earliest open batch should be sealed by {@link Batch#sealIfFlushNeeded()}, or
+     * Long.MAX_VALUE if all open batches are empty.
+     */
+    private long nanosUntilTimeBasedFlush()
+    {
+      boolean openBatchesEmpty = true;
+      long waitMillis = Long.MAX_VALUE;
+      long now = System.currentTimeMillis();
+      for (int stripe = 0; stripe < concurrentBatches.length(); stripe++) {
+        Batch batch = concurrentBatches.get(stripe);
+        long firstEventTimestamp = batch != null ? batch.getFirstEventTimestamp() : -1;
+        if (firstEventTimestamp > 0) {
+          openBatchesEmpty = false;
+          long timeSinceFirstEvent = Math.max(now - firstEventTimestamp, 0);
+          waitMillis = Math.min(waitMillis, config.getFlushMillis() - timeSinceFirstEvent);
+        }
+      }
+      if (openBatchesEmpty) {
+        return Long.MAX_VALUE;
+      }
+      // The batch is sealed when strictly more than flushMillis have passed since the first event, hence + 1.
+      long waitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(Math.min(waitMillis, Long.MAX_VALUE - 1) + 1, 0));
+      // Long.MAX_VALUE means that all open batches are empty.
+      return Math.min(waitNanos, Long.MAX_VALUE - 1);
     }
 
     private boolean needsToShutdown()
     {
       boolean needsToShutdown = Thread.interrupted() || shuttingDown;
       if (needsToShutdown) {
-        Batch lastBatch = concurrentBatch.getAndSet(null);
-        if (lastBatch != null) {
+        for (Batch lastBatch : currentBatches(true)) {
           lastBatch.seal();
         }
       } else {
-        Batch batch = concurrentBatch.get();
-        if (batch != null) {
-          batch.sealIfFlushNeeded();
-        } else {
-          needsToShutdown = true;
+        for (int stripe = 0; stripe < concurrentBatches.length(); stripe++) {
+          Batch batch = concurrentBatches.get(stripe);
+          // A null batch means that close() is in progress. It seals the last batches and sets shuttingDown after
+          // they are emitted, so this thread must not exit before that.
+          if (batch != null) {
+            batch.sealIfFlushNeeded();
+          }
         }
       }
       return needsToShutdown;
@@ -370,12 +1211,23 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
 
     private void emit(final Batch batch)
     {
+      final PendingBatch pendingBatch = addPendingBatch(batch.batchNumber);
+      final IncrementalCompression incrementalCompression = batch.incrementalCompression;
+      batch.incrementalCompression = null;
+      if (!batch.tryClaim()) {
+        // The batch is discarded according to OverflowPolicy.DROP_OLDEST.
+        releaseIncrementalCompression(incrementalCompression);
+        completePendingBatch(pendingBatch);
+        return;
+      }
       // Awaits until all concurrent event writers finish copy their event bytes to the buffer. This call provides
       // memory visibility guarantees.
       batch.awaitEmittingAllowed();
+      boolean sending = false;
       try {
         final int bufferWatermark = batch.getSealedBufferWatermark();
         if (bufferWatermark == 0) { // sealed while empty
+          returnBufferToPool(batch.buffer);
           return;
         }
         int eventCount = batch.eventCount.get();
@@ -387,17 +1239,243 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
             bufferWatermark
         );
         int bufferEndOffset = batchingStrategy.writeBatchEnd(batch.buffer, bufferWatermark);
+        if (!circuitBreaker.allowFreshBatch()) {
+          // The collector is unavailable, the batch will be sent with failed buffers, when the circuit is closed.
+          onSendFailed(batch.buffer, bufferEndOffset, eventCount);
+          return;
+        }
+        sending = true;
+        sendBatchAsync(batch.buffer, bufferEndOffset, eventCount, pendingBatch, incrementalCompression);
+      }
+      finally {
+        if (!sending) {
+          releaseIncrementalCompression(incrementalCompression);
+          completePendingBatch(pendingBatch);
+        }
+      }
+    }
+
+    /**
+     * Sends the batch without waiting for the response, once there are less than maxInFlightBatches batches in flight.
+     * The pendingBatch is completed when the request is completed.
+     */
+    private void sendBatchAsync(
+        final byte[] buffer,
+        final int length,
+        final int eventCount,
+        final PendingBatch pendingBatch,
+        @Nullable final IncrementalCompression incrementalCompression
+    )
+    {
+      inFlightBatches.acquireUninterruptibly();
+      if (compressionExecutor == null) {
+        sendBatch(buffer, length, eventCount, pendingBatch, incrementalCompression);
+        return;
+      }
+      try {
+        compressionExecutor.execute(
+            new Runnable()
+            {
+              @Override
+              public void run()
+              {
+                sendBatch(buffer, length, eventCount, pendingBatch, incrementalCompression);
+              }
+            }
+        );
+      }
+      catch (RejectedExecutionException e) {
+        // Not expected, the executor is shut down only after all emitters using it are closed
+        sendBatch(buffer, length, eventCount, pendingBatch, incrementalCompression);
+      }
+    }
+
+    /**
+     * Compresses the batch and hands it to the HttpClient, called either by {@link EmittingThread} itself, or by
+     * {@link #compressionExecutor}'s threads.
+     */
+    private void sendBatch(
+        final byte[] buffer,
+        final int length,
+        final int eventCount,
+        final PendingBatch pendingBatch,
+        @Nullable final IncrementalCompression incrementalCompression
+    )
+    {
+      SentBatch sentBatch = new FreshBatch(buffer, length, eventCount, pendingBatch);
+      ListenableFuture<StatusResponseHolder> future;
+      try {
+        future = sendAsync(buffer, length, incrementalCompression);
+      }
+      catch (Exception e) {
+        onSendCompleted(sentBatch, e);
+        return;
+      }
+      addCallback(sentBatch, future);
+    }
 
-        if (sendWithRetries(batch.buffer, bufferEndOffset, eventCount)) {
-          buffersToReuse.add(batch.buffer);
+    /**
+     * Compresses the content and hands it to the HttpClient. The caller must have acquired a permit of {@link
+     * #inFlightBatches}.
+     */
+    private void sendContentAsync(SentBatch sentBatch, ChannelBuffer content)
+    {
+      ListenableFuture<StatusResponseHolder> future;
+      try {
+        future = sendAsync(content);
+      }
+      catch (Exception e) {
+        onSendCompleted(sentBatch, e);
+        return;
+      }
+      addCallback(sentBatch, future);
+    }
+
+    private void addCallback(final SentBatch sentBatch, ListenableFuture<StatusResponseHolder> future)
+    {
+      Futures.addCallback(
+          future,
+          new FutureCallback<StatusResponseHolder>()
+          {
+            @Override
+            public void onSuccess(StatusResponseHolder response)
+            {
+              Throwable failure = null;
+              try {
+                checkResponse(response);
+              }
+              catch (Exception e) {
+                failure = e;
+              }
+              onSendCompleted(sentBatch, failure);
+            }
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+              onSendCompleted(sentBatch, t);
+            }
+          }
+      );
+    }
+
+    /**
+     * Called from the HttpClient's threads, when a request is completed. Only records the outcome, it is handled by
+     * this thread, see {@link #handleCompletedSends()}.
+     */
+    private void onSendCompleted(SentBatch sentBatch, @Nullable Throwable failure)
+    {
+      sentBatch.sendTimeNanos = System.nanoTime() - sentBatch.sendStartNanos;
+      sentBatch.failure = failure;
+      inFlightBatches.release();
+      completedSends.add(sentBatch);
+      wakeUpEmittingThread();
+    }
+
+    private void handleCompletedSends()
+    {
+      for (SentBatch sentBatch; (sentBatch = completedSends.poll()) != null; ) {
+        Throwable failure = sentBatch.failure;
+        if (failure == null) {
+          circuitBreaker.onSuccess();
+          adaptiveBatchSize.onSuccess(sentBatch.length, sentBatch.sendTimeNanos);
+          totalEmittedEvents.addAndGet(sentBatch.eventCount);
+        } else if (failure instanceof BatchTooLargeException) {
+          // The collector is available, but doesn't accept batches of this size.
+          circuitBreaker.onSuccess();
         } else {
-          failedBuffers.add(new FailedBuffer(batch.buffer, bufferEndOffset, eventCount));
+          circuitBreaker.onFailure();
+          log.error(failure, "Failed to send events to url[%s], will retry", config.getRecipientBaseUrl());
         }
+        sentBatch.onCompleted(failure);
       }
-      finally {
-        // Notify HttpPostEmitter.flush(), that the batch is emitted (or failed).
-        emittedBatchCounter.batchEmitted(batch.batchNumber);
+    }
+
+    private class FreshBatch extends SentBatch
+    {
+      private final byte[] buffer;
+      private final PendingBatch pendingBatch;
+
+      FreshBatch(byte[] buffer, int length, int eventCount, PendingBatch pendingBatch)
+      {
+        super(length, eventCount);
+        this.buffer = buffer;
+        this.pendingBatch = pendingBatch;
+      }
+
+      @Override
+      void onCompleted(@Nullable Throwable failure)
+      {
+        if (failure == null) {
+          returnBufferToPool(buffer);
+        } else if (failure instanceof BatchTooLargeException && trySplitTooLargeBatch(buffer, length, eventCount)) {
+          returnBufferToPool(buffer);
+        } else {
+          onSendFailed(buffer, length, eventCount);
+        }
+        completePendingBatch(pendingBatch);
+      }
+    }
+
+    /**
+     * Waits until all batches sent by {@link #sendBatchAsync} are completed.
+     */
+    private void awaitInFlightBatches()
+    {
+      inFlightBatches.acquireUninterruptibly(maxInFlightBatches);
+      inFlightBatches.release(maxInFlightBatches);
+    }
+
+    /**
+     * Compresses the written parts of the batches which are currently filled, see {@link IncrementalCompression}.
+     */
+    private void compressOpenBatchesIncrementally()
+    {
+      if (!config.isIncrementalCompression()) {
+        return;
+      }
+      for (int stripe = 0; stripe < concurrentBatches.length(); stripe++) {
+        Batch batch = concurrentBatches.get(stripe);
+        if (batch != null) {
+          compressIncrementally(batch);
+        }
+      }
+    }
+
+    private void compressIncrementally(Batch batch)
+    {
+      IncrementalCompression incrementalCompression = batch.incrementalCompression;
+      int compressedPrefixLength =
+          incrementalCompression != null ? incrementalCompression.getCompressedPrefixLength() : 0;
+      // -1 if writers are in progress, then try next time.
+      int writtenBufferWatermark = batch.getWrittenBufferWatermark();
+      if (writtenBufferWatermark - compressedPrefixLength < INCREMENTAL_COMPRESSION_MIN_CHUNK) {
+        return;
+      }
+      if (incrementalCompression == null) {
+        ZeroCopyByteArrayOutputStream compressionBuffer = tryAcquireCompressionBuffer(bufferSize);
+        if (compressionBuffer == null) {
+          // The memory budget is exhausted, the batch will be compressed when it is sent, if possible.
+          return;
+        }
+        incrementalCompression = new IncrementalCompression(
+            (IncrementalBatchCompressor) acquireCompressor(config.getContentEncoding()),
+            compressionBuffer
+        );
+        batch.incrementalCompression = incrementalCompression;
       }
+      int compressionBufferCapacity = incrementalCompression.out.getBuffer().length;
+      try {
+        incrementalCompression.update(batch.buffer, writtenBufferWatermark);
+      }
+      catch (RuntimeException e) {
+        accountCompressionBufferGrowth(incrementalCompression.out, compressionBufferCapacity);
+        // The state of the compressed stream is unknown, the batch will be compressed from scratch.
+        batch.incrementalCompression = null;
+        releaseIncrementalCompression(incrementalCompression);
+        throw e;
+      }
+      accountCompressionBufferGrowth(incrementalCompression.out, compressionBufferCapacity);
     }
 
     private void emitLargeEvents()
@@ -408,36 +1486,258 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
       // Don't try to emit large events until exhaustion, to avoid starvation of "normal" batches, if large event
       // posting rate is too high, though it should never happen in practice.
       largeEventsToEmit.add(LARGE_EVENTS_STOP);
+      List<byte[]> largeEvents = new ArrayList<>();
       for (byte[] largeEvent; (largeEvent = largeEventsToEmit.poll()) != LARGE_EVENTS_STOP; ) {
-        emitLargeEvent(largeEvent);
+        largeEvents.add(largeEvent);
+        if (largeEvents.size() == config.getMaxLargeEventsPerBatch()) {
+          // The list is kept until the send is completed
+          emitLargeEvents(largeEvents);
+          largeEvents = new ArrayList<>();
+        }
+      }
+      if (!largeEvents.isEmpty()) {
+        emitLargeEvents(largeEvents);
       }
     }
 
-    private void emitLargeEvent(byte[] eventBytes)
+    /**
+     * Sends the large events as a batch, which is a composite of the event arrays and the batch framing, without
+     * copying them into a batch buffer. Several large events don't fit a batch buffer, so only if the batch fails to be
+     * sent, each event is copied into a batch buffer of its own, to be retried like other batches.
+     */
+    private void emitLargeEvents(List<byte[]> largeEvents)
     {
-      byte[] buffer = acquireBuffer();
-      int bufferOffset = batchingStrategy.writeBatchStart(buffer);
-      System.arraycopy(eventBytes, 0, buffer, bufferOffset, eventBytes.length);
-      bufferOffset += eventBytes.length;
-      bufferOffset = batchingStrategy.writeBatchEnd(buffer, bufferOffset);
-      if (sendWithRetries(buffer, bufferOffset, 1)) {
-        buffersToReuse.add(buffer);
+      int eventCount = largeEvents.size();
+      ChannelBuffer[] parts = new ChannelBuffer[eventCount * 2 + 1];
+      parts[0] = ChannelBuffers.wrappedBuffer(batchStart);
+      for (int i = 0; i < eventCount; i++) {
+        parts[i * 2 + 1] = ChannelBuffers.wrappedBuffer(largeEvents.get(i));
+        parts[i * 2 + 2] = ChannelBuffers.wrappedBuffer(i < eventCount - 1 ? messageSeparator : batchEnd);
+      }
+      ChannelBuffer content = ChannelBuffers.wrappedBuffer(parts);
+      if (circuitBreaker.allowFreshBatch()) {
+        inFlightBatches.acquireUninterruptibly();
+        sendContentAsync(new LargeEventsBatch(largeEvents, content.readableBytes()), content);
       } else {
-        failedBuffers.add(new FailedBuffer(buffer, bufferOffset, 1));
+        onLargeEventsSendFailed(largeEvents, false);
+      }
+    }
+
+    private void onLargeEventsSendFailed(List<byte[]> largeEvents, boolean tooLarge)
+    {
+      int eventCount = largeEvents.size();
+      for (byte[] largeEvent : largeEvents) {
+        byte[] buffer = tryAcquireBuffer(
+            batchingStrategy.batchStartLength() + largeEvent.length + batchingStrategy.batchEndLength()
+        );
+        if (buffer == null) {
+          dropEventOnExhaustedBudget();
+          continue;
+        }
+        int bufferOffset = batchingStrategy.writeBatchStart(buffer);
+        System.arraycopy(largeEvent, 0, buffer, bufferOffset, largeEvent.length);
+        bufferOffset += largeEvent.length;
+        bufferOffset = batchingStrategy.writeBatchEnd(buffer, bufferOffset);
+        // A batch of several events is retried event by event, a batch of a single event is dropped.
+        if (tooLarge && eventCount == 1 && trySplitTooLargeBatch(buffer, bufferOffset, 1)) {
+          returnBufferToPool(buffer);
+        } else {
+          onSendFailed(buffer, bufferOffset, 1);
+        }
       }
     }
 
+    private class LargeEventsBatch extends SentBatch
+    {
+      private final List<byte[]> largeEvents;
+
+      LargeEventsBatch(List<byte[]> largeEvents, int length)
+      {
+        super(length, largeEvents.size());
+        this.largeEvents = largeEvents;
+      }
+
+      @Override
+      void onCompleted(@Nullable Throwable failure)
+      {
+        if (failure != null) {
+          onLargeEventsSendFailed(largeEvents, failure instanceof BatchTooLargeException);
+        }
+      }
+    }
+
+    private void onSendFailed(byte[] buffer, int length, int eventCount)
+    {
+      if (trySpill(buffer, length, eventCount)) {
+        returnBufferToPool(buffer);
+      } else {
+        failedBuffers.add(new FailedBuffer(buffer, length, eventCount));
+      }
+    }
+
+    /**
+     * Sends the oldest failed batch, without waiting for the response, like fresh batches, so that a hanging request
+     * doesn't block sealing and sending of fresh batches. The outcome is handled by {@link FailedBufferRetry}.
+     */
     private void tryEmitOneFailedBuffer()
     {
+      if (retryInFlight || nanosUntilStalledRetry() > 0) {
+        return;
+      }
       FailedBuffer failedBuffer = failedBuffers.peek();
-      if (failedBuffer != null) {
-        if (sendWithRetries(failedBuffer.buffer, failedBuffer.length, failedBuffer.eventCount)) {
+      if (failedBuffer == null || !circuitBreaker.tryAcquireRetry()) {
+        return;
+      }
+      // If failed to claim, the buffer is being discarded according to OverflowPolicy.DROP_OLDEST.
+      if (!failedBuffer.tryClaim()) {
+        circuitBreaker.cancelRetry();
+        onRetryStalled();
+        return;
+      }
+      if (!inFlightBatches.tryAcquire()) {
+        // Retried when a permit is released, see park()
+        failedBuffer.unclaim();
+        circuitBreaker.cancelRetry();
+        return;
+      }
+      retriedBatches.incrementAndGet();
+      retryInFlight = true;
+      sendContentAsync(
+          new FailedBufferRetry(failedBuffer),
+          ChannelBuffers.wrappedBuffer(failedBuffer.buffer, 0, failedBuffer.length)
+      );
+    }
+
+    private class FailedBufferRetry extends SentBatch
+    {
+      private final FailedBuffer failedBuffer;
+
+      FailedBufferRetry(FailedBuffer failedBuffer)
+      {
+        super(failedBuffer.length, failedBuffer.eventCount);
+        this.failedBuffer = failedBuffer;
+      }
+
+      @Override
+      void onCompleted(@Nullable Throwable failure)
+      {
+        retryInFlight = false;
+        if (failure == null
+            || (failure instanceof BatchTooLargeException
+                && trySplitTooLargeBatch(failedBuffer.buffer, length, eventCount))) {
           // Remove from the queue of failed buffer.
-          failedBuffers.poll();
-          // Don't add the failed buffer back to the buffersToReuse queue here, because in a situation when we were not
-          // able to emit events for a while we don't have a way to discard buffers that were used to accumulate events
-          // during that period, if they are added back to buffersToReuse. For instance it may result in having 100
-          // buffers in rotation even if we need just 2.
+          failedBuffers.remove(failedBuffer);
+          // Buffers used to accumulate events while the collector was unavailable don't stay in rotation after that,
+          // the pool discards them above its high-water mark, or when they are idle.
+          returnBufferToPool(failedBuffer.buffer);
+          retryStalled = false;
+        } else {
+          failedBuffer.unclaim();
+          onRetryFailed();
+        }
+      }
+    }
+
+    /**
+     * A failed send is reported to {@link #circuitBreaker}, which then delays the next retry. If the retry is allowed
+     * immediately, the batch wasn't sent at all.
+     */
+    private void onRetryFailed()
+    {
+      if (circuitBreaker.nanosUntilRetry() == 0) {
+        onRetryStalled();
+      } else {
+        retryStalled = false;
+      }
+    }
+
+    private void onRetryStalled()
+    {
+      retryStalled = true;
+      retryStalledNanos = System.nanoTime();
+      bufferFreed = false;
+    }
+
+    /**
+     * A stalled retry is attempted again when a buffer is freed, or after {@link #STALLED_RETRY_BACKOFF_NANOS}.
+     */
+    private long nanosUntilStalledRetry()
+    {
+      if (!retryStalled || bufferFreed) {
+        return 0;
+      }
+      return Math.max(STALLED_RETRY_BACKOFF_NANOS - (System.nanoTime() - retryStalledNanos), 0);
+    }
+
+    /**
+     * Sends the oldest spilled batch asynchronously, like {@link #tryEmitOneFailedBuffer()}. The batch is removed from
+     * the spill queue by {@link SpilledBatchRetry}, when it is sent.
+     */
+    private void tryEmitOneSpilledBatch()
+    {
+      if (retryInFlight
+          || nanosUntilStalledRetry() > 0
+          || spillQueue == null
+          || spillQueue.isEmpty()
+          || !circuitBreaker.tryAcquireRetry()) {
+        return;
+      }
+      byte[] buffer = tryAcquireBuffer();
+      if (buffer == null) {
+        circuitBreaker.cancelRetry();
+        onRetryStalled();
+        return;
+      }
+      boolean sending = false;
+      try {
+        SpillQueue.SpilledBatch spilledBatch = spillQueue.peek(buffer);
+        if (spilledBatch == null) {
+          circuitBreaker.cancelRetry();
+        } else if (!inFlightBatches.tryAcquire()) {
+          // Retried when a permit is released, see park()
+          circuitBreaker.cancelRetry();
+        } else {
+          retriedBatches.incrementAndGet();
+          retryInFlight = true;
+          sending = true;
+          sendContentAsync(
+              new SpilledBatchRetry(buffer, spilledBatch.length, spilledBatch.eventCount),
+              ChannelBuffers.wrappedBuffer(buffer, 0, spilledBatch.length)
+          );
+        }
+      }
+      finally {
+        if (!sending) {
+          returnBufferToPool(buffer);
+        }
+      }
+    }
+
+    private class SpilledBatchRetry extends SentBatch
+    {
+      private final byte[] buffer;
+
+      SpilledBatchRetry(byte[] buffer, int length, int eventCount)
+      {
+        super(length, eventCount);
+        this.buffer = buffer;
+      }
+
+      @Override
+      void onCompleted(@Nullable Throwable failure)
+      {
+        retryInFlight = false;
+        try {
+          if (failure == null
+              || (failure instanceof BatchTooLargeException && trySplitTooLargeBatch(buffer, length, eventCount))) {
+            spillQueue.remove();
+            retryStalled = false;
+          } else {
+            onRetryFailed();
+          }
+        }
+        finally {
+          returnBufferToPool(buffer);
         }
       }
     }
@@ -445,110 +1745,486 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
     private void tryEmitAndDrainAllFailedBuffers()
     {
       for (FailedBuffer failedBuffer; (failedBuffer = failedBuffers.poll()) != null; ) {
-        sendWithRetries(failedBuffer.buffer, failedBuffer.length, failedBuffer.eventCount);
+        if (failedBuffer.tryClaim()) {
+          // Make the last attempt, unless the collector is known to be unavailable.
+          if (!circuitBreaker.allowFreshBatch()
+              || !tryRetry(failedBuffer.buffer, failedBuffer.length, failedBuffer.eventCount)) {
+            // Keep the batch to be sent after restart, if possible.
+            trySpill(failedBuffer.buffer, failedBuffer.length, failedBuffer.eventCount);
+          }
+          discardBuffer(failedBuffer.buffer);
+        }
       }
     }
 
+    private boolean tryRetry(final byte[] buffer, final int length, final int eventCount)
+    {
+      retriedBatches.incrementAndGet();
+      return trySend(buffer, length, eventCount);
+    }
+
     /**
-     * Returns true if sent successfully.
+     * Makes a single attempt to send the batch synchronously, returns true if sent successfully. Used only for the last
+     * attempt at shutdown, see {@link #tryEmitAndDrainAllFailedBuffers()}, other batches are sent asynchronously.
      */
-    private boolean sendWithRetries(final byte[] buffer, final int length, final int eventCount)
+    private boolean trySend(final byte[] buffer, final int length, final int eventCount)
     {
       try {
-        RetryUtils.retry(
-            new Callable<Void>()
-            {
-              @Override
-              public Void call() throws Exception
-              {
-                send(buffer, length);
-                return null;
-              }
-            },
-            new Predicate<Throwable>()
-            {
-              @Override
-              public boolean apply(Throwable input)
-              {
-                return !(input instanceof InterruptedException);
-              }
-            },
-            MAX_SEND_RETRIES
-        );
-        totalEmittedEvents.addAndGet(eventCount);
-        return true;
+        send(ChannelBuffers.wrappedBuffer(buffer, 0, length));
       }
       catch (InterruptedException e) {
+        // The emitter is closed
+        circuitBreaker.cancelRetry();
         return false;
       }
+      catch (BatchTooLargeException e) {
+        circuitBreaker.onSuccess();
+        return trySplitTooLargeBatch(buffer, length, eventCount);
+      }
       catch (Exception e) {
+        circuitBreaker.onFailure();
         log.error(e, "Failed to send events to url[%s]", config.getRecipientBaseUrl());
         return false;
       }
+      circuitBreaker.onSuccess();
+      totalEmittedEvents.addAndGet(eventCount);
+      return true;
     }
 
-    private void send(byte[] buffer, int length) throws Exception
+    private void send(ChannelBuffer content) throws Exception
     {
-      final Request request = new Request(HttpMethod.POST, url);
-      byte[] payload;
-      int payloadLength;
-      ContentEncoding contentEncoding = config.getContentEncoding();
-      if (contentEncoding != null) {
-        switch (contentEncoding) {
-          case GZIP:
-            try (GZIPOutputStream gzipOutputStream = acquireGzipOutputStream(length)) {
-              gzipOutputStream.write(buffer, 0, length);
-            }
-            payload = gzipBaos.getBuffer();
-            payloadLength = gzipBaos.size();
-            request.setHeader(HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Values.GZIP);
-            break;
-          default:
-            throw new ISE("Unsupported content encoding [%s]", contentEncoding.name());
-        }
-      } else {
-        payload = buffer;
-        payloadLength = length;
+      inFlightBatches.acquire();
+      try {
+        long sendStartNanos = System.nanoTime();
+        int length = content.readableBytes();
+        checkResponse(sendAsync(content).get());
+        adaptiveBatchSize.onSuccess(length, System.nanoTime() - sendStartNanos);
+      }
+      finally {
+        inFlightBatches.release();
       }
+    }
+  }
 
+  /**
+   * Compresses the batch, or finishes the given incremental compression of it, and sends it to the collector.
+   */
+  private ListenableFuture<StatusResponseHolder> sendAsync(
+      byte[] buffer,
+      int length,
+      @Nullable IncrementalCompression incrementalCompression
+  ) throws IOException
+  {
+    if (incrementalCompression == null) {
+      return sendAsync(ChannelBuffers.wrappedBuffer(buffer, 0, length));
+    }
+    ZeroCopyByteArrayOutputStream compressionBuffer = incrementalCompression.out;
+    int compressionBufferCapacity = compressionBuffer.getBuffer().length;
+    try {
+      incrementalCompression.finish(buffer, length);
+    }
+    catch (RuntimeException e) {
+      accountCompressionBufferGrowth(compressionBuffer, compressionBufferCapacity);
+      compressionBuffers.add(compressionBuffer);
+      throw e;
+    }
+    finally {
+      compressors.add(incrementalCompression.compressor);
+    }
+    accountCompressionBufferGrowth(compressionBuffer, compressionBufferCapacity);
+    compressionStats.add(length, compressionBuffer.size(), incrementalCompression.getCpuTimeNanos());
+    return post(
+        ChannelBuffers.wrappedBuffer(compressionBuffer.getBuffer(), 0, compressionBuffer.size()),
+        length,
+        compressionBuffer
+    );
+  }
 
-      request.setContent("application/json", payload, 0, payloadLength);
+  /**
+   * Compresses the content, if {@link BaseHttpEmittingConfig#getContentEncoding()} is set, and sends it to the
+   * collector. The content may be a composite of several buffers, see {@link EmittingThread#emitLargeEvents()}.
+   */
+  private ListenableFuture<StatusResponseHolder> sendAsync(ChannelBuffer content) throws IOException
+  {
+    int length = content.readableBytes();
+    ContentEncoding contentEncoding = config.getContentEncoding();
+    if (contentEncoding == null) {
+      return post(content, length, null);
+    }
+    ZeroCopyByteArrayOutputStream compressionBuffer = tryAcquireCompressionBuffer(length);
+    if (compressionBuffer == null) {
+      return post(content, length, null);
+    }
+    int compressionBufferCapacity = compressionBuffer.getBuffer().length;
+    long startCpuTimeNanos = CompressionStats.currentThreadCpuTimeNanos();
+    BatchCompressor compressor = acquireCompressor(contentEncoding);
+    try {
+      compress(compressor, content, compressionBuffer);
+    }
+    catch (IOException | RuntimeException e) {
+      accountCompressionBufferGrowth(compressionBuffer, compressionBufferCapacity);
+      compressionBuffers.add(compressionBuffer);
+      throw e;
+    }
+    finally {
+      compressors.add(compressor);
+    }
+    accountCompressionBufferGrowth(compressionBuffer, compressionBufferCapacity);
+    long cpuTimeNanos = CompressionStats.currentThreadCpuTimeNanos() - startCpuTimeNanos;
+    compressionStats.add(length, compressionBuffer.size(), cpuTimeNanos);
+    return post(
+        ChannelBuffers.wrappedBuffer(compressionBuffer.getBuffer(), 0, compressionBuffer.size()),
+        length,
+        compressionBuffer
+    );
+  }
 
-      if (config.getBasicAuthentication() != null) {
-        final String[] parts = config.getBasicAuthentication().split(":", 2);
-        final String user = parts[0];
-        final String password = parts.length > 1 ? parts[1] : "";
-        request.setBasicAuthentication(user, password);
+  private static void compress(BatchCompressor compressor, ChannelBuffer content, ZeroCopyByteArrayOutputStream out)
+      throws IOException
+  {
+    if (content.hasArray()) {
+      compressor.compress(content.array(), content.arrayOffset() + content.readerIndex(), content.readableBytes(), out);
+    } else if (compressor instanceof IncrementalBatchCompressor) {
+      IncrementalBatchCompressor incrementalCompressor = (IncrementalBatchCompressor) compressor;
+      ByteBuffer[] parts = content.toByteBuffers();
+      incrementalCompressor.begin(out);
+      for (int i = 0; i < parts.length - 1; i++) {
+        ByteBuffer part = parts[i];
+        incrementalCompressor.update(part.array(), part.arrayOffset() + part.position(), part.remaining(), out);
       }
+      ByteBuffer lastPart = parts[parts.length - 1];
+      incrementalCompressor.finish(
+          lastPart.array(),
+          lastPart.arrayOffset() + lastPart.position(),
+          lastPart.remaining(),
+          out
+      );
+    } else {
+      // The compressor needs the whole content in a single array.
+      byte[] bytes = new byte[content.readableBytes()];
+      content.getBytes(content.readerIndex(), bytes);
+      compressor.compress(bytes, 0, bytes.length, out);
+    }
+  }
 
-      final StatusResponseHolder response = client.go(request, new StatusResponseHandler(Charsets.UTF_8)).get();
+  /**
+   * Sends the payload to the collector. If the compression buffer is given, the payload is compressed with
+   * {@link BaseHttpEmittingConfig#getContentEncoding()}, and the buffer is returned to the pool when the request is
+   * completed.
+   */
+  private ListenableFuture<StatusResponseHolder> post(
+      ChannelBuffer payload,
+      int uncompressedLength,
+      @Nullable final ZeroCopyByteArrayOutputStream compressionBuffer
+  )
+  {
+    final Request request = new Request(HttpMethod.POST, url);
+    if (compressionBuffer != null) {
+      request.setHeader(HttpHeaders.Names.CONTENT_ENCODING, config.getContentEncoding().getHeaderValue());
+    }
+    uncompressedBytes.addAndGet(uncompressedLength);
+    sentBytes.addAndGet(payload.readableBytes());
+    request.setContent(batchingStrategy.getContentType(), payload);
 
-      if (response.getStatus().getCode() == 413) {
-        throw new ISE(
-            "Received HTTP status 413 from [%s]. Batch size of [%d] may be too large, "
-            + "try adjusting maxBatchSizeBatch property",
-            config.getRecipientBaseUrl(),
-            config.getMaxBatchSize()
-        );
+    if (config.getBasicAuthentication() != null) {
+      final String[] parts = config.getBasicAuthentication().split(":", 2);
+      final String user = parts[0];
+      final String password = parts.length > 1 ? parts[1] : "";
+      request.setBasicAuthentication(user, password);
+    }
+
+    final long sendStartNanos = System.nanoTime();
+    final ListenableFuture<StatusResponseHolder> future;
+    try {
+      future = client.go(request, new StatusResponseHandler(Charsets.UTF_8));
+    }
+    catch (RuntimeException e) {
+      if (compressionBuffer != null) {
+        compressionBuffers.add(compressionBuffer);
       }
+      throw e;
+    }
+    future.addListener(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sendStartNanos);
+            sendLatencyCounts.incrementAndGet(EmitterStats.sendLatencyBucket(latencyMillis));
+          }
+        },
+        MoreExecutors.sameThreadExecutor()
+    );
+    if (compressionBuffer != null) {
+      future.addListener(
+          new Runnable()
+          {
+            @Override
+            public void run()
+            {
+              compressionBuffers.add(compressionBuffer);
+            }
+          },
+          MoreExecutors.sameThreadExecutor()
+      );
+    }
+    return future;
+  }
+
+  private void checkResponse(StatusResponseHolder response)
+  {
+    if (response.getStatus().getCode() == 413) {
+      throw new BatchTooLargeException(config.getRecipientBaseUrl());
+    }
+
+    if (response.getStatus().getCode() / 100 != 2) {
+      throw new ISE(
+          "Emissions of events not successful[%s], with message[%s].",
+          response.getStatus(),
+          response.getContent().trim()
+      );
+    }
+  }
 
-      if (response.getStatus().getCode() / 100 != 2) {
-        throw new ISE(
-            "Emissions of events not successful[%s], with message[%s].",
-            response.getStatus(),
-            response.getContent().trim()
+  /**
+   * Splits the batch, rejected by the collector with HTTP 413, into two halves, which are pushed to the head of failed
+   * buffers to be sent by {@link EmittingThread} before other failed batches, and lowers {@link #adaptiveBatchSize}. A
+   * batch of a single event is dropped.
+   *
+   * Returns false if the batch should be kept by the caller to be retried as a whole: if there is no memory for the
+   * halves, or if events in the batch are not recognized by {@link BatchSplitter}, e. g. they are custom-serialized.
+   * In the latter case it is reported as a failure to {@link #circuitBreaker}, so that the retries back off, as with
+   * any other unsuccessful response, while the following batches are sealed at the lowered size.
+   */
+  private boolean trySplitTooLargeBatch(byte[] buffer, int length, int eventCount)
+  {
+    adaptiveBatchSize.onTooLarge(length);
+    if (eventCount == 1) {
+      log.error(
+          "Batch of [%,d] bytes and a single event is too large for url[%s], dropping it",
+          length,
+          config.getRecipientBaseUrl()
+      );
+      droppedBatches.incrementAndGet();
+      droppedEvents.addAndGet(eventCount);
+      return true;
+    }
+    int splitOffset;
+    int firstHalfEventCount;
+    try {
+      splitOffset = BatchSplitter.findSplitOffset(buffer, length, batchingStrategy);
+      firstHalfEventCount = splitOffset >= 0 ? BatchSplitter.countEvents(buffer, splitOffset, batchingStrategy) : 0;
+    }
+    catch (IOException e) {
+      log.error(e, "Failed to find the boundaries of events in a batch sent to url[%s]", config.getRecipientBaseUrl());
+      splitOffset = -1;
+      firstHalfEventCount = 0;
+    }
+    if (splitOffset < 0) {
+      log.error(
+          "Batch of [%,d] bytes and [%,d] events is too large for url[%s] and cannot be split, will retry",
+          length,
+          eventCount,
+          config.getRecipientBaseUrl()
+      );
+      circuitBreaker.onFailure();
+      return false;
+    }
+    int secondHalfOffset = splitOffset + batchingStrategy.separatorLength();
+    int eventsEnd = length - batchingStrategy.batchEndLength();
+    byte[] firstHalf = tryAcquireBuffer(splitOffset + batchingStrategy.batchEndLength());
+    if (firstHalf == null) {
+      return false;
+    }
+    int secondHalfLength = eventsEnd - secondHalfOffset;
+    byte[] secondHalf = tryAcquireBuffer(
+        batchingStrategy.batchStartLength() + secondHalfLength + batchingStrategy.batchEndLength()
+    );
+    if (secondHalf == null) {
+      returnBufferToPool(firstHalf);
+      return false;
+    }
+    int firstHalfBatchLength = copyEvents(buffer, batchingStrategy.batchStartLength(), splitOffset, firstHalf);
+    int secondHalfBatchLength = copyEvents(buffer, secondHalfOffset, eventsEnd, secondHalf);
+    failedBuffers.addFirst(new FailedBuffer(secondHalf, secondHalfBatchLength, eventCount - firstHalfEventCount));
+    failedBuffers.addFirst(new FailedBuffer(firstHalf, firstHalfBatchLength, firstHalfEventCount));
+    wakeUpEmittingThread();
+    return true;
+  }
+
+  /**
+   * Writes a batch of events from the given range of another batch to the buffer, returns the length of the batch.
+   */
+  private int copyEvents(byte[] from, int eventsStart, int eventsEnd, byte[] buffer)
+  {
+    int offset = batchingStrategy.writeBatchStart(buffer);
+    System.arraycopy(from, eventsStart, buffer, offset, eventsEnd - eventsStart);
+    return batchingStrategy.writeBatchEnd(buffer, offset + eventsEnd - eventsStart);
+  }
+
+  /**
+   * Returns a buffer for compressed output from {@link #compressionBuffers}, or allocates a new one of the given
+   * capacity, if it doesn't exceed the memory budget. Returns null if the budget is exhausted, then the batch is sent
+   * uncompressed.
+   */
+  @Nullable
+  private ZeroCopyByteArrayOutputStream tryAcquireCompressionBuffer(int capacity)
+  {
+    ZeroCopyByteArrayOutputStream compressionBuffer = compressionBuffers.poll();
+    if (compressionBuffer != null) {
+      compressionBuffer.reset();
+    } else if (bufferPool.tryReserveBytes(capacity)) {
+      compressionBuffer = new ZeroCopyByteArrayOutputStream(capacity);
+    } else {
+      if (!compressionBudgetExhausted.get() && compressionBudgetExhausted.compareAndSet(false, true)) {
+        log.warn(
+            "Buffer memory budget of [%,d] bytes is exhausted, sending uncompressed batches to url[%s]",
+            (long) maxLiveBuffers * bufferSize,
+            config.getRecipientBaseUrl()
         );
       }
+      return null;
     }
+    compressionBudgetExhausted.set(false);
+    return compressionBuffer;
+  }
 
-    GZIPOutputStream acquireGzipOutputStream(int length) throws IOException
-    {
-      if (gzipBaos == null) {
-        gzipBaos = new ZeroCopyByteArrayOutputStream(length);
-      } else {
-        gzipBaos.reset();
+  /**
+   * Compression buffers grow when the compressed output doesn't fit. The growth is accounted after the fact, so the
+   * memory budget may be exceeded by it, until the buffers are released.
+   */
+  private void accountCompressionBufferGrowth(ZeroCopyByteArrayOutputStream compressionBuffer, int previousCapacity)
+  {
+    int growth = compressionBuffer.getBuffer().length - previousCapacity;
+    if (growth > 0) {
+      bufferPool.reserveBytes(growth);
+    }
+  }
+
+  private void releaseCompressionBuffers()
+  {
+    for (ZeroCopyByteArrayOutputStream compressionBuffer; (compressionBuffer = compressionBuffers.poll()) != null; ) {
+      bufferPool.releaseBytes(compressionBuffer.getBuffer().length);
+    }
+  }
+
+  private BatchCompressor acquireCompressor(ContentEncoding contentEncoding)
+  {
+    BatchCompressor compressor = compressors.poll();
+    if (compressor == null) {
+      return contentEncoding.createCompressor(config.getCompressionLevel());
+    }
+    return compressor;
+  }
+
+  private void releaseIncrementalCompression(@Nullable IncrementalCompression incrementalCompression)
+  {
+    if (incrementalCompression != null) {
+      compressors.add(incrementalCompression.compressor);
+      compressionBuffers.add(incrementalCompression.out);
+    }
+  }
+
+  private void releaseCompressionExecutor()
+  {
+    if (compressionExecutor != null) {
+      // All submitted batches are completed at this point, see EmittingThread.awaitInFlightBatches().
+      SharedCompressionExecutor.release();
+    }
+  }
+
+  private void closeCompressors()
+  {
+    for (BatchCompressor compressor; (compressor = compressors.poll()) != null; ) {
+      compressor.close();
+    }
+  }
+
+  private PendingBatch addPendingBatch(int batchNumber)
+  {
+    PendingBatch pendingBatch = new PendingBatch(batchNumber);
+    synchronized (pendingBatches) {
+      pendingBatches.add(pendingBatch);
+    }
+    return pendingBatch;
+  }
+
+  /**
+   * Marks the batch as completed, and reports all completed batches at the head of {@link #pendingBatches} to
+   * {@link #emittedBatchCounter}, which requires batches to be reported in order.
+   */
+  private void completePendingBatch(PendingBatch pendingBatch)
+  {
+    List<CompletableFuture<Void>> futuresToComplete = null;
+    synchronized (pendingBatches) {
+      pendingBatch.completed = true;
+      for (PendingBatch head; (head = pendingBatches.peek()) != null && head.completed; ) {
+        pendingBatches.poll();
+        // Notify HttpPostEmitter.flush(), that the batch is emitted (or failed).
+        emittedBatchCounter.batchEmitted(head.batchNumber);
+        CompletableFuture<Void> future = batchEmittedFutures.remove(head.batchNumber);
+        if (future != null) {
+          if (futuresToComplete == null) {
+            futuresToComplete = new ArrayList<>();
+          }
+          futuresToComplete.add(future);
+        }
       }
-      return new GZIPOutputStream(gzipBaos, true);
+    }
+    // Completing futures outside of the lock, because they may run dependent actions.
+    if (futuresToComplete != null) {
+      for (CompletableFuture<Void> future : futuresToComplete) {
+        future.complete(null);
+      }
+    }
+  }
+
+  /**
+   * A request to the collector, the outcome of which is handled by {@link EmittingThread}, see {@link #completedSends}.
+   */
+  private abstract static class SentBatch
+  {
+    final int length;
+    final int eventCount;
+    final long sendStartNanos = System.nanoTime();
+    /** Written by the thread which completes the request, read by EmittingThread after polling from the queue. */
+    long sendTimeNanos;
+    @Nullable
+    Throwable failure;
+
+    SentBatch(int length, int eventCount)
+    {
+      this.length = length;
+      this.eventCount = eventCount;
+    }
+
+    /**
+     * Called by EmittingThread after {@link #circuitBreaker} is updated with the outcome of the request.
+     */
+    abstract void onCompleted(@Nullable Throwable failure);
+  }
+
+  private static class PendingBatch
+  {
+    final int batchNumber;
+    /** Guarded by {@link #pendingBatches} */
+    boolean completed = false;
+
+    PendingBatch(int batchNumber)
+    {
+      this.batchNumber = batchNumber;
+    }
+  }
+
+  /**
+   * Thrown when the collector responds with HTTP 413 Payload Too Large.
+   */
+  private static class BatchTooLargeException extends ISE
+  {
+    BatchTooLargeException(String url)
+    {
+      super("Received HTTP status 413 from [%s], the batch is too large", url);
     }
   }
 
@@ -557,6 +2233,11 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
     final byte[] buffer;
     final int length;
     final int eventCount;
+    /**
+     * Claimed by {@link EmittingThread} while retrying to send the buffer, or by a writer thread, discarding the buffer
+     * according to {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
 
     private FailedBuffer(byte[] buffer, int length, int eventCount)
     {
@@ -564,29 +2245,161 @@ public class HttpPostEmitter implements Flushable, Closeable, Emitter
       this.length = length;
       this.eventCount = eventCount;
     }
+
+    boolean tryClaim()
+    {
+      return claimed.compareAndSet(false, true);
+    }
+
+    void unclaim()
+    {
+      claimed.set(false);
+    }
   }
 
-  private byte[] acquireBuffer()
+  /**
+   * Returns a buffer for a batch from {@link #bufferPool}. Returns null if the memory budget is exhausted.
+   */
+  @Nullable
+  private byte[] tryAcquireBuffer()
   {
-    byte[] buffer = buffersToReuse.poll();
-    if (buffer == null) {
-      buffer = new byte[bufferSize];
-      allocatedBuffers.incrementAndGet();
+    return bufferPool.tryAcquire(bufferSize);
+  }
+
+  /**
+   * Returns a buffer of at least the given size, which may be smaller than a batch buffer, if
+   * {@link BaseHttpEmittingConfig#isBufferSizeClasses()} is set. Returns null if the memory budget is exhausted.
+   */
+  @Nullable
+  private byte[] tryAcquireBuffer(int minSize)
+  {
+    return bufferPool.tryAcquire(minSize);
+  }
+
+  /**
+   * Returns the size of the buffer of a new {@link Batch}, 0 if it is allocated when the first event is added, see
+   * {@link BaseHttpEmittingConfig#getInitialBatchBufferSize()}.
+   */
+  int newBatchBufferSize()
+  {
+    return initialBatchBufferSize > 0 ? 0 : bufferSize;
+  }
+
+  @Nullable
+  private byte[] tryAcquireBatchBuffer(int size)
+  {
+    return size == 0 ? Batch.EMPTY_BUFFER : tryAcquireBuffer(size);
+  }
+
+  /**
+   * Called from {@link Batch#tryAddEvent} to replace a batch buffer, which is too small for the next event. Grows the
+   * buffer at least twice, up to the full batch size. Returns null if the memory budget is exhausted.
+   */
+  @Nullable
+  byte[] tryAcquireGrownBuffer(int currentSize, int requiredSize)
+  {
+    Preconditions.checkArgument(requiredSize <= bufferSize, "requiredSize[%s] > bufferSize", requiredSize);
+    int grownSize = (int) Math.min((long) currentSize * 2, bufferSize);
+    return tryAcquireBuffer(Math.max(requiredSize, Math.max(grownSize, initialBatchBufferSize)));
+  }
+
+  /**
+   * Called from {@link Batch#tryAddEvent} after a batch buffer is replaced with a grown one. With incremental
+   * compression, the emitting thread may be still compressing the outgrown buffer, so it couldn't be reused.
+   */
+  void releaseOutgrownBuffer(byte[] buffer)
+  {
+    if (config.isIncrementalCompression()) {
+      discardBuffer(buffer);
+    } else {
+      returnBufferToPool(buffer);
     }
-    return buffer;
   }
 
-  private void drainBuffersToReuse()
+  void returnBufferToPool(byte[] buffer)
+  {
+    bufferPool.release(buffer);
+    notifyBufferFreed();
+  }
+
+  /**
+   * Returns the buffer's share of the memory budget, the buffer itself is left for GC.
+   */
+  private void discardBuffer(byte[] buffer)
   {
-    while (buffersToReuse.poll() != null) {
-      // loop
+    bufferPool.discard(buffer);
+    notifyBufferFreed();
+  }
+
+  private void notifyBufferFreed()
+  {
+    if (!emittingThread.bufferFreed) {
+      emittingThread.bufferFreed = true;
+    }
+    if (emittingThread.awaitingFreedBuffer) {
+      wakeUpEmittingThread();
+    }
+    if (overflowPolicy == OverflowPolicy.BLOCK) {
+      for (int stripe = 0; stripe < concurrentBatches.length(); stripe++) {
+        Batch batch = concurrentBatches.get(stripe);
+        if (batch != null && batch.noBufferForNextBatch) {
+          synchronized (bufferBudgetLock) {
+            bufferBudgetLock.notifyAll();
+          }
+          return;
+        }
+      }
     }
   }
 
   @VisibleForTesting
   int getAllocatedBuffers()
   {
-    return allocatedBuffers.get();
+    return (int) bufferPool.getAllocatedBuffers();
+  }
+
+  @VisibleForTesting
+  int getLiveBuffers()
+  {
+    return bufferPool.getLiveBuffers();
+  }
+
+  @VisibleForTesting
+  Thread.State getEmittingThreadState()
+  {
+    return emittingThread.getState();
+  }
+
+  @VisibleForTesting
+  long getDroppedEvents()
+  {
+    return droppedEvents.get();
+  }
+
+  @VisibleForTesting
+  long getDroppedBatches()
+  {
+    return droppedBatches.get();
+  }
+
+  @VisibleForTesting
+  int getBatchSizeTarget()
+  {
+    return adaptiveBatchSize.getTarget();
+  }
+
+  @VisibleForTesting
+  int getSpilledBatches()
+  {
+    return spillQueue != null ? spillQueue.size() : 0;
+  }
+
+  @VisibleForTesting
+  int getPendingBatches()
+  {
+    synchronized (pendingBatches) {
+      return pendingBatches.size();
+    }
   }
 
   @VisibleForTesting
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+/**
+ * A {@link BatchCompressor} which could compress a batch in several steps, while the batch is being filled, see
+ * {@link IncrementalCompression}. {@link #compress} is equivalent to {@link #begin} followed by {@link #finish}.
+ */
+interface IncrementalBatchCompressor extends BatchCompressor
+{
+  /**
+   * Starts a new compressed stream in out, discarding the state of the previous stream, if any.
+   */
+  void begin(ZeroCopyByteArrayOutputStream out);
+
+  /**
+   * Compresses the next part of the batch, buffer[offset, offset + length). Some of the compressed bytes may be kept in
+   * the compressor's internal state, rather than appended to out, until the next calls.
+   */
+  void update(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out);
+
+  /**
+   * Compresses the last part of the batch, buffer[offset, offset + length), and completes the compressed stream in out.
+   */
+  void finish(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out);
+}
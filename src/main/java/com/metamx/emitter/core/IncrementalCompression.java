@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+/**
+ * The state of compression of a {@link Batch} while it is being filled, with
+ * {@link BaseHttpEmittingConfig#isIncrementalCompression()}. {@link HttpPostEmitter}'s EmittingThread compresses the
+ * prefix of the batch's buffer, which is already written by writer threads, between its other work, so that only the
+ * tail of the batch remains to be compressed after the batch is sealed.
+ *
+ * Not thread-safe, owned by the EmittingThread, until the batch is handed to the sender.
+ */
+final class IncrementalCompression
+{
+  final IncrementalBatchCompressor compressor;
+  final ZeroCopyByteArrayOutputStream out;
+  /**
+   * The length of the prefix of the batch's buffer, which is passed to the compressor.
+   */
+  private int compressedPrefixLength = 0;
+  private long cpuTimeNanos = 0;
+
+  IncrementalCompression(IncrementalBatchCompressor compressor, ZeroCopyByteArrayOutputStream out)
+  {
+    this.compressor = compressor;
+    this.out = out;
+    compressor.begin(out);
+  }
+
+  int getCompressedPrefixLength()
+  {
+    return compressedPrefixLength;
+  }
+
+  /**
+   * The CPU time spent on compression of this batch so far.
+   */
+  long getCpuTimeNanos()
+  {
+    return cpuTimeNanos;
+  }
+
+  /**
+   * Compresses buffer[compressedPrefixLength, writtenLength), which must not change after this call.
+   */
+  void update(byte[] buffer, int writtenLength)
+  {
+    long startCpuTimeNanos = CompressionStats.currentThreadCpuTimeNanos();
+    compressor.update(buffer, compressedPrefixLength, writtenLength - compressedPrefixLength, out);
+    compressedPrefixLength = writtenLength;
+    cpuTimeNanos += CompressionStats.currentThreadCpuTimeNanos() - startCpuTimeNanos;
+  }
+
+  /**
+   * Compresses the rest of the batch, buffer[compressedPrefixLength, length), and completes the compressed stream in
+   * {@link #out}.
+   */
+  void finish(byte[] buffer, int length)
+  {
+    long startCpuTimeNanos = CompressionStats.currentThreadCpuTimeNanos();
+    compressor.finish(buffer, compressedPrefixLength, length - compressedPrefixLength, out);
+    compressedPrefixLength = length;
+    cpuTimeNanos += CompressionStats.currentThreadCpuTimeNanos() - startCpuTimeNanos;
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+import java.io.IOException;
+
+/**
+ * An {@link Event} which writes itself to a {@link JsonGenerator}, field by field, instead of being serialized via the
+ * map returned from {@link #toMap()}, so that no map is built for each emitted event.
+ *
+ * Jackson prefers {@link JsonSerializable} over {@link com.fasterxml.jackson.annotation.JsonValue}, so all emitters, as
+ * well as any other ObjectMapper, use {@link #serialize(JsonGenerator, SerializerProvider)} for such events.
+ * Implementations must write the same JSON object as the serialized {@link #toMap()}, with the same order of fields.
+ */
+public interface JsonSerializableEvent extends Event, JsonSerializable
+{
+  /**
+   * Events are not serialized with type information, typeSer is ignored.
+   */
+  @Override
+  default void serializeWithType(JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+      throws IOException
+  {
+    serialize(gen, serializers);
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHash32;
+import net.jpountz.xxhash.XXHashFactory;
+
+import java.io.IOException;
+
+/**
+ * Uses the pure-Java implementation of LZ4, to not depend on availability of the native library on the platform.
+ */
+final class Lz4BatchCompressor implements BatchCompressor
+{
+  private final LZ4Compressor compressor;
+  private final XXHash32 checksum = XXHashFactory.fastestJavaInstance().hash32();
+
+  Lz4BatchCompressor(int level)
+  {
+    LZ4Factory factory = LZ4Factory.fastestJavaInstance();
+    this.compressor = level == BaseHttpEmittingConfig.DEFAULT_COMPRESSION_LEVEL
+                      ? factory.fastCompressor()
+                      : factory.highCompressor(level);
+  }
+
+  @Override
+  public void compress(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out) throws IOException
+  {
+    try (LZ4FrameOutputStream lz4OutputStream = new LZ4FrameOutputStream(
+        out,
+        LZ4FrameOutputStream.BLOCKSIZE.SIZE_64KB,
+        length,
+        compressor,
+        checksum,
+        LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE,
+        LZ4FrameOutputStream.FLG.Bits.CONTENT_SIZE
+    )) {
+      lz4OutputStream.write(buffer, offset, length);
+    }
+  }
+
+  @Override
+  public void close()
+  {
+    // Nothing to release, the compressor allocates only heap memory.
+  }
+}
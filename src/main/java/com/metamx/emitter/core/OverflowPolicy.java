@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+/**
+ * What {@link HttpPostEmitter#emit(Event)} does, when the memory budget of the emitter ({@link
+ * BaseHttpEmittingConfig#getMaxBufferSize()}) is exhausted and there is no buffer to start the next batch.
+ */
+public enum OverflowPolicy
+{
+  /**
+   * Wait up to {@link BaseHttpEmittingConfig#getOverflowBlockTimeOut()} milliseconds until some buffer is freed by
+   * the emitting thread, then drop the event, if the budget is still exhausted.
+   */
+  BLOCK,
+  /**
+   * Drop the emitted event immediately. Batches which are already queued or failed are delivered in order.
+   */
+  DROP_NEWEST,
+  /**
+   * Discard the oldest batch which is not being sent at the moment (failed batches first, then queued batches), and
+   * reuse its buffer for the next batch.
+   */
+  DROP_OLDEST,
+  /**
+   * Like {@link #DROP_OLDEST}, but the oldest batch is appended to the spill queue in {@link
+   * BaseHttpEmittingConfig#getSpillDirectory()} instead of being discarded. Requires spillDirectory to be configured.
+   * Batches are discarded only if the spill size limit is also reached.
+   */
+  SPILL
+}
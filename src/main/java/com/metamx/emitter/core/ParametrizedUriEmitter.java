@@ -15,7 +15,12 @@ import java.io.Flushable;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ParametrizedUriEmitter implements Flushable, Closeable, Emitter
@@ -175,6 +180,37 @@ public class ParametrizedUriEmitter implements Flushable, Closeable, Emitter
     }
   }
 
+  @Override
+  public CompletableFuture<Void> flushAsync()
+  {
+    List<CompletableFuture<Void>> futures = new ArrayList<>();
+    for (Map.Entry<URI, HttpPostEmitter> entry : emitters.entrySet()) {
+      CompletableFuture<Void> future;
+      try {
+        future = entry.getValue().flushAsync();
+      }
+      catch (RuntimeException e) {
+        log.error(e, "Failed to flush the HttpPostEmitter for URI[%s]", entry.getKey());
+        future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+      }
+      futures.add(future);
+    }
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * Returns snapshots of the statistics of the emitters of all URIs, see {@link HttpPostEmitter#getStats()}.
+   */
+  public Map<String, EmitterStats> getStats()
+  {
+    Map<String, EmitterStats> stats = new LinkedHashMap<>();
+    for (Map.Entry<URI, HttpPostEmitter> entry : emitters.entrySet()) {
+      stats.put(entry.getKey().toString(), entry.getValue().getStats());
+    }
+    return stats;
+  }
+
   @Override
   public String toString()
   {
@@ -1,12 +1,21 @@
 package com.metamx.emitter.core;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
 
 import javax.validation.constraints.NotNull;
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 
 public class ParametrizedUriEmitterConfig
 {
   private static final BaseHttpEmittingConfig DEFAULT_HTTP_EMITTING_CONFIG = new BaseHttpEmittingConfig();
+  /** The limit of file name length in bytes of most file systems */
+  private static final int MAX_FILE_NAME_LENGTH = 255;
 
   @NotNull
   @JsonProperty
@@ -22,7 +31,36 @@ public class ParametrizedUriEmitterConfig
 
   public HttpEmitterConfig buildHttpEmitterConfig(String baseUri)
   {
-    return new HttpEmitterConfig(httpEmittingConfig, baseUri);
+    HttpEmitterConfig httpEmitterConfig = new HttpEmitterConfig(httpEmittingConfig, baseUri);
+    if (httpEmittingConfig.getSpillDirectory() != null) {
+      // Each HttpPostEmitter needs a spill directory of it's own.
+      String uriDirectory = spillDirectoryName(baseUri);
+      httpEmitterConfig.spillDirectory = new File(httpEmittingConfig.getSpillDirectory(), uriDirectory).getPath();
+    }
+    return httpEmitterConfig;
+  }
+
+  /**
+   * Returns the URL-encoded URI, or, if it is too long for a file name, its prefix followed by a SHA-256 hash of the
+   * whole URI.
+   */
+  @VisibleForTesting
+  static String spillDirectoryName(String baseUri)
+  {
+    String encodedUri;
+    try {
+      encodedUri = URLEncoder.encode(baseUri, "UTF-8");
+    }
+    catch (UnsupportedEncodingException e) {
+      throw Throwables.propagate(e);
+    }
+    // URL-encoded string is ASCII, so its length in chars is its length in bytes
+    if (encodedUri.length() <= MAX_FILE_NAME_LENGTH) {
+      return encodedUri;
+    }
+    String hash = Hashing.sha256().hashString(baseUri, Charsets.UTF_8).toString();
+    int prefixLength = MAX_FILE_NAME_LENGTH - hash.length() - 1;
+    return encodedUri.substring(0, prefixLength) + "-" + hash;
   }
 
   @Override
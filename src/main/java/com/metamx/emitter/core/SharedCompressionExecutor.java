@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.metamx.emitter.core;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The process-wide pool of threads which compress batches of {@link HttpPostEmitter}s configured with positive
+ * {@link BaseHttpEmittingConfig#getCompressionThreads()}. It is shared, so that the number of threads doesn't grow with
+ * the number of emitters, e. g. {@link ParametrizedUriEmitter} creates an emitter per URI.
+ *
+ * The pool has as many threads as the largest compressionThreads of the emitters which use it. It is created when the
+ * first emitter acquires it, and shut down when the last one releases it on close. Threads time out when idle.
+ *
+ * The queue is not bounded by itself, but each emitter has at most maxInFlightBatches batches submitted and not
+ * completed, see HttpPostEmitter's inFlightBatches.
+ */
+final class SharedCompressionExecutor
+{
+  private static final long KEEP_ALIVE_SECONDS = 60;
+
+  /** Guarded by SharedCompressionExecutor.class */
+  @Nullable
+  private static ThreadPoolExecutor executor = null;
+  private static int users = 0;
+
+  static synchronized Executor acquire(int threads)
+  {
+    Preconditions.checkArgument(threads > 0, "threads must be positive");
+    if (executor == null) {
+      executor = new ThreadPoolExecutor(
+          threads,
+          threads,
+          KEEP_ALIVE_SECONDS,
+          TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(),
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("HttpPostEmitter-compression-%d").build()
+      );
+      // Emitters which rarely send batches don't hold idle threads.
+      executor.allowCoreThreadTimeOut(true);
+    } else if (threads > executor.getMaximumPoolSize()) {
+      executor.setMaximumPoolSize(threads);
+      executor.setCorePoolSize(threads);
+    }
+    users++;
+    return executor;
+  }
+
+  /**
+   * Called by an emitter which acquired the executor, when all batches it submitted are completed.
+   */
+  static synchronized void release()
+  {
+    Preconditions.checkState(users > 0, "Not acquired");
+    users--;
+    if (users == 0) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  @VisibleForTesting
+  static synchronized int getPoolSize()
+  {
+    return executor != null ? executor.getMaximumPoolSize() : 0;
+  }
+
+  private SharedCompressionExecutor()
+  {
+  }
+}
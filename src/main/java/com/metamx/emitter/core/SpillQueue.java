@@ -0,0 +1,403 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.google.common.base.Preconditions;
+import com.metamx.common.ISE;
+import com.metamx.common.logger.Logger;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Persistent FIFO queue of sealed batches (already framed by {@link BatchingStrategy}), stored in memory-mapped segment
+ * files in a directory. Used by {@link HttpPostEmitter} to keep failed batches out of heap during collector outages,
+ * and to send them after the process is restarted.
+ *
+ * Segment file layout: [magic:int][readPosition:int], followed by records [length:int][eventCount:int][bytes]. The
+ * length of a record is written after the record's contents, so a zero length marks the end of complete records.
+ * The space after the last complete record is kept zeroed, see {@link #clearTail}. Records are not forced to disk
+ * when appended, so they survive a crash of the process, but not necessarily a crash of the OS.
+ * Segment files are named by their sequence numbers, so that the order of records is kept across restarts.
+ *
+ * All methods are synchronized, because batches are appended both by the emitting thread and by writer threads (see
+ * {@link OverflowPolicy#SPILL}). Only the emitting thread reads and removes batches.
+ */
+final class SpillQueue implements Closeable
+{
+  private static final Logger log = new Logger(SpillQueue.class);
+
+  private static final int MAGIC = 0x454D5350;
+  private static final int READ_POSITION_OFFSET = 4;
+  private static final int SEGMENT_HEADER_SIZE = 8;
+  private static final int RECORD_HEADER_SIZE = 8;
+  private static final String SEGMENT_SUFFIX = ".spill";
+  private static final String LOCK_FILE_NAME = "spill.lock";
+
+  static final class SpilledBatch
+  {
+    final int length;
+    final int eventCount;
+
+    private SpilledBatch(int length, int eventCount)
+    {
+      this.length = length;
+      this.eventCount = eventCount;
+    }
+  }
+
+  private static final class Segment
+  {
+    final File file;
+    final MappedByteBuffer buffer;
+    int readPosition;
+    int writePosition;
+
+    private Segment(File file, MappedByteBuffer buffer, int readPosition, int writePosition)
+    {
+      this.file = file;
+      this.buffer = buffer;
+      this.readPosition = readPosition;
+      this.writePosition = writePosition;
+    }
+
+    boolean isFullyRead()
+    {
+      return readPosition == writePosition;
+    }
+  }
+
+  private final File directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final RandomAccessFile lockFile;
+  private final FileLock lock;
+  private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+  private long nextSegmentNumber = 0;
+  private int spilledBatches = 0;
+  private boolean closed = false;
+
+  /**
+   * @param maxBatchLength the maximum length of a batch, segments are never smaller than needed to fit such a batch
+   * @param segmentSize    the preferred size of segment files
+   * @param maxSpillSize   the limit of the total size of segment files, but at least one segment is always allowed
+   */
+  SpillQueue(File directory, int maxBatchLength, int segmentSize, long maxSpillSize) throws IOException
+  {
+    this.directory = directory;
+    this.segmentSize = Math.max(segmentSize, SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + maxBatchLength);
+    this.maxSegments = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxSpillSize / this.segmentSize));
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create spill directory " + directory);
+    }
+    this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+    FileLock lock;
+    try {
+      lock = lockFile.getChannel().tryLock();
+    }
+    catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      lockFile.close();
+      throw new ISE("Spill directory [%s] is used by another emitter", directory);
+    }
+    this.lock = lock;
+    try {
+      openExistingSegments();
+    }
+    catch (IOException | RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private void openExistingSegments() throws IOException
+  {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Cannot list spill directory " + directory);
+    }
+    long[] segmentNumbers = new long[files.length];
+    int numSegments = 0;
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(SEGMENT_SUFFIX)) {
+        try {
+          segmentNumbers[numSegments] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+          numSegments++;
+        }
+        catch (NumberFormatException e) {
+          log.warn("Unexpected file [%s] in spill directory, ignoring", file);
+        }
+      }
+    }
+    Arrays.sort(segmentNumbers, 0, numSegments);
+    for (int i = 0; i < numSegments; i++) {
+      File file = segmentFile(segmentNumbers[i]);
+      Segment segment = openExistingSegment(file);
+      if (segment == null || segment.isFullyRead()) {
+        deleteSegmentFile(file);
+      } else {
+        segments.add(segment);
+        spilledBatches += countBatches(segment);
+      }
+      nextSegmentNumber = segmentNumbers[i] + 1;
+    }
+    if (spilledBatches > 0) {
+      log.info("Found [%,d] spilled batches in [%s]", spilledBatches, directory);
+    }
+  }
+
+  @Nullable
+  private static Segment openExistingSegment(File file) throws IOException
+  {
+    MappedByteBuffer buffer;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      if (raf.length() < SEGMENT_HEADER_SIZE || raf.length() > Integer.MAX_VALUE) {
+        log.warn("Spill segment [%s] has unexpected size [%,d], discarding", file, raf.length());
+        return null;
+      }
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+    if (buffer.getInt(0) != MAGIC) {
+      log.warn("Spill segment [%s] is corrupted, discarding", file);
+      return null;
+    }
+    int readPosition = buffer.getInt(READ_POSITION_OFFSET);
+    int writePosition = SEGMENT_HEADER_SIZE;
+    while (writePosition + RECORD_HEADER_SIZE <= buffer.capacity()) {
+      int length = buffer.getInt(writePosition);
+      if (length <= 0 || writePosition + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+        break;
+      }
+      writePosition += RECORD_HEADER_SIZE + length;
+    }
+    if (readPosition < SEGMENT_HEADER_SIZE || readPosition > writePosition) {
+      log.warn("Spill segment [%s] has invalid read position [%,d], discarding", file, readPosition);
+      return null;
+    }
+    clearTail(buffer, writePosition);
+    return new Segment(file, buffer, readPosition, writePosition);
+  }
+
+  /**
+   * Zeroes the bytes after the last complete record, that may be left by an append interrupted by a crash. Otherwise
+   * a shorter record appended at the same position would leave a part of them behind it, which could be read as a
+   * record after the next restart. Only non-zero words are written, not to allocate pages of sparse segment files.
+   */
+  private static void clearTail(MappedByteBuffer buffer, int position)
+  {
+    int capacity = buffer.capacity();
+    for (; position + 8 <= capacity; position += 8) {
+      if (buffer.getLong(position) != 0) {
+        buffer.putLong(position, 0);
+      }
+    }
+    for (; position < capacity; position++) {
+      if (buffer.get(position) != 0) {
+        buffer.put(position, (byte) 0);
+      }
+    }
+  }
+
+  private static int countBatches(Segment segment)
+  {
+    int count = 0;
+    for (int position = segment.readPosition; position < segment.writePosition; ) {
+      position += RECORD_HEADER_SIZE + segment.buffer.getInt(position);
+      count++;
+    }
+    return count;
+  }
+
+  private File segmentFile(long number)
+  {
+    return new File(directory, String.format("%019d%s", number, SEGMENT_SUFFIX));
+  }
+
+  private Segment createSegment() throws IOException
+  {
+    long number = nextSegmentNumber++;
+    File file = segmentFile(number);
+    MappedByteBuffer buffer;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(segmentSize);
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    }
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(READ_POSITION_OFFSET, SEGMENT_HEADER_SIZE);
+    return new Segment(file, buffer, SEGMENT_HEADER_SIZE, SEGMENT_HEADER_SIZE);
+  }
+
+  /**
+   * Returns false, if the batch cannot be appended because the spill size limit is reached, or the queue is closed.
+   */
+  synchronized boolean append(byte[] batch, int length, int eventCount) throws IOException
+  {
+    if (closed) {
+      return false;
+    }
+    Preconditions.checkArgument(length > 0 && length <= segmentSize - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE);
+    Segment segment = segments.peekLast();
+    if (segment == null || segment.writePosition + RECORD_HEADER_SIZE + length > segment.buffer.capacity()) {
+      if (segments.size() >= maxSegments) {
+        return false;
+      }
+      segment = createSegment();
+      segments.add(segment);
+    }
+    MappedByteBuffer buffer = segment.buffer;
+    int position = segment.writePosition;
+    buffer.putInt(position + 4, eventCount);
+    ByteBuffer recordBuffer = buffer.duplicate();
+    recordBuffer.position(position + RECORD_HEADER_SIZE);
+    recordBuffer.put(batch, 0, length);
+    // Writing the length last, it "commits" the record for openExistingSegment() if the process crashes. Writes to the
+    // mapped buffer are not ordered without force(), so an OS crash may still leave the last records incomplete.
+    buffer.putInt(position, length);
+    segment.writePosition = position + RECORD_HEADER_SIZE + length;
+    spilledBatches++;
+    return true;
+  }
+
+  /**
+   * Copies the oldest spilled batch into the given buffer. Returns null if the queue is empty. Batches which don't fit
+   * the buffer are discarded.
+   */
+  @Nullable
+  synchronized SpilledBatch peek(byte[] target)
+  {
+    Segment segment;
+    int position;
+    int length;
+    while (true) {
+      segment = firstNonEmptySegment();
+      if (segment == null) {
+        return null;
+      }
+      position = segment.readPosition;
+      length = segment.buffer.getInt(position);
+      if (length <= target.length) {
+        break;
+      }
+      // Possible if the emitter was restarted with a smaller maxBatchSize.
+      log.warn("Spilled batch of [%,d] bytes is larger than [%,d], discarding", length, target.length);
+      remove();
+    }
+    int eventCount = segment.buffer.getInt(position + 4);
+    ByteBuffer recordBuffer = segment.buffer.duplicate();
+    recordBuffer.position(position + RECORD_HEADER_SIZE);
+    recordBuffer.get(target, 0, length);
+    return new SpilledBatch(length, eventCount);
+  }
+
+  /**
+   * Removes the oldest spilled batch, the one returned from the preceding {@link #peek(byte[])} call.
+   */
+  synchronized void remove()
+  {
+    Segment segment = Preconditions.checkNotNull(firstNonEmptySegment(), "spill queue is empty");
+    segment.readPosition += RECORD_HEADER_SIZE + segment.buffer.getInt(segment.readPosition);
+    segment.buffer.putInt(READ_POSITION_OFFSET, segment.readPosition);
+    spilledBatches--;
+    // Deletes the segment if it's fully read, to free the space for new batches.
+    firstNonEmptySegment();
+  }
+
+  @Nullable
+  private Segment firstNonEmptySegment()
+  {
+    while (true) {
+      Segment segment = segments.peekFirst();
+      if (segment == null) {
+        return null;
+      }
+      if (!segment.isFullyRead()) {
+        return segment;
+      }
+      if (segments.size() == 1) {
+        // The only segment is kept for writing, unless it's full.
+        if (segment.writePosition + RECORD_HEADER_SIZE < segment.buffer.capacity()) {
+          return null;
+        }
+      }
+      segments.pollFirst();
+      deleteSegmentFile(segment.file);
+    }
+  }
+
+  private static void deleteSegmentFile(File file)
+  {
+    if (!file.delete()) {
+      log.warn("Failed to delete spill segment [%s]", file);
+    }
+  }
+
+  synchronized boolean isEmpty()
+  {
+    return spilledBatches == 0;
+  }
+
+  synchronized int size()
+  {
+    return spilledBatches;
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    for (Segment segment : segments) {
+      segment.buffer.force();
+    }
+    // Mapped buffers are unmapped when collected by GC.
+    segments.clear();
+    spilledBatches = 0;
+    try {
+      if (lock != null) {
+        lock.release();
+      }
+    }
+    finally {
+      lockFile.close();
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SpillQueue{" +
+           "directory=" + directory +
+           ", segmentSize=" + segmentSize +
+           ", maxSegments=" + maxSegments +
+           '}';
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+import java.io.IOException;
+
+/**
+ * Formats timestamps of events the same as {@link DateTime#toString()}, i. e. with
+ * {@link ISODateTimeFormat#dateTime()}, but much faster: the part of the timestamp up to seconds, and the time zone
+ * offset are formatted with Joda once per second and cached, and only the milliseconds are formatted for each event.
+ *
+ * Events are emitted at about the current time, so a single cached second is shared by all threads.
+ */
+public final class TimestampEncoder
+{
+  private static final DateTimeFormatter FORMATTER = ISODateTimeFormat.dateTime();
+  /** Enough for any year, which is formatted by Joda with up to 9 digits, and the zone offset. */
+  private static final int MAX_LENGTH = 64;
+
+  private static final ThreadLocal<char[]> BUFFERS = new ThreadLocal<char[]>()
+  {
+    @Override
+    protected char[] initialValue()
+    {
+      return new char[MAX_LENGTH];
+    }
+  };
+
+  private static volatile CachedSecond cachedSecond = new CachedSecond(Long.MIN_VALUE, null, "", "");
+
+  /**
+   * Returns the same string as {@link DateTime#toString()}.
+   */
+  public static String toString(DateTime dateTime)
+  {
+    if (!(dateTime.getChronology() instanceof ISOChronology)) {
+      return dateTime.toString();
+    }
+    char[] buffer = BUFFERS.get();
+    int length = encode(dateTime.getMillis(), dateTime.getZone(), buffer);
+    return new String(buffer, 0, length);
+  }
+
+  /**
+   * Returns the same string as {@link DateTime#toString()} of a DateTime with the given millis and zone, without
+   * creating the DateTime.
+   */
+  public static String toString(long millis, DateTimeZone zone)
+  {
+    char[] buffer = BUFFERS.get();
+    int length = encode(millis, zone, buffer);
+    return new String(buffer, 0, length);
+  }
+
+  /**
+   * Writes a string field with the same value as {@link DateTime#toString()}, without creating the string.
+   */
+  public static void writeStringField(JsonGenerator gen, String fieldName, DateTime dateTime) throws IOException
+  {
+    if (!(dateTime.getChronology() instanceof ISOChronology)) {
+      gen.writeStringField(fieldName, dateTime.toString());
+      return;
+    }
+    char[] buffer = BUFFERS.get();
+    int length = encode(dateTime.getMillis(), dateTime.getZone(), buffer);
+    gen.writeFieldName(fieldName);
+    gen.writeString(buffer, 0, length);
+  }
+
+  /**
+   * Writes a string field with the same value as {@link #toString(long, DateTimeZone)}.
+   */
+  public static void writeStringField(JsonGenerator gen, String fieldName, long millis, DateTimeZone zone)
+      throws IOException
+  {
+    char[] buffer = BUFFERS.get();
+    int length = encode(millis, zone, buffer);
+    gen.writeFieldName(fieldName);
+    gen.writeString(buffer, 0, length);
+  }
+
+  private static int encode(long millis, DateTimeZone zone, char[] buffer)
+  {
+    long second = Math.floorDiv(millis, 1000);
+    CachedSecond cached = cachedSecond;
+    if (cached.second != second || !zone.equals(cached.zone)) {
+      cached = CachedSecond.format(second, zone);
+      cachedSecond = cached;
+    }
+    int position = cached.prefix.length;
+    System.arraycopy(cached.prefix, 0, buffer, 0, position);
+    int millisOfSecond = (int) Math.floorMod(millis, 1000);
+    buffer[position++] = (char) ('0' + millisOfSecond / 100);
+    buffer[position++] = (char) ('0' + millisOfSecond / 10 % 10);
+    buffer[position++] = (char) ('0' + millisOfSecond % 10);
+    System.arraycopy(cached.suffix, 0, buffer, position, cached.suffix.length);
+    return position + cached.suffix.length;
+  }
+
+  private static class CachedSecond
+  {
+    static CachedSecond format(long second, DateTimeZone zone)
+    {
+      String formatted = FORMATTER.withZone(zone).print(second * 1000);
+      // The milliseconds, always "000" for the start of the second, are between the last '.' and the zone offset
+      int millisStart = formatted.lastIndexOf('.') + 1;
+      return new CachedSecond(
+          second,
+          zone,
+          formatted.substring(0, millisStart),
+          formatted.substring(millisStart + 3)
+      );
+    }
+
+    final long second;
+    final DateTimeZone zone;
+    /** The timestamp up to the dot before milliseconds, inclusive */
+    final char[] prefix;
+    /** The zone offset */
+    final char[] suffix;
+
+    CachedSecond(long second, DateTimeZone zone, String prefix, String suffix)
+    {
+      this.second = second;
+      this.zone = zone;
+      this.prefix = prefix.toCharArray();
+      this.suffix = suffix.toCharArray();
+    }
+  }
+
+  private TimestampEncoder()
+  {
+  }
+}
@@ -17,6 +17,7 @@
 package com.metamx.emitter.core;
 
 import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 class ZeroCopyByteArrayOutputStream extends ByteArrayOutputStream
 {
@@ -30,4 +31,20 @@ class ZeroCopyByteArrayOutputStream extends ByteArrayOutputStream
   {
     return buf;
   }
+
+  /**
+   * Grows the buffer, so that at least n bytes could be written directly into {@link #getBuffer()} from
+   * {@link #size()} offset. Then they should be accounted with {@link #advance(int)}.
+   */
+  void ensureRemaining(int n)
+  {
+    if (buf.length - count < n) {
+      buf = Arrays.copyOf(buf, Math.max(count + n, buf.length * 2));
+    }
+  }
+
+  void advance(int n)
+  {
+    count += n;
+  }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import io.airlift.compress.zstd.ZstdCompressor;
+
+final class ZstdBatchCompressor implements BatchCompressor
+{
+  private final ZstdCompressor compressor = new ZstdCompressor();
+
+  @Override
+  public void compress(byte[] buffer, int offset, int length, ZeroCopyByteArrayOutputStream out)
+  {
+    int maxCompressedLength = compressor.maxCompressedLength(length);
+    out.ensureRemaining(maxCompressedLength);
+    int compressedLength = compressor.compress(
+        buffer,
+        offset,
+        length,
+        out.getBuffer(),
+        out.size(),
+        maxCompressedLength
+    );
+    out.advance(compressedLength);
+  }
+
+  @Override
+  public void close()
+  {
+    // Nothing to release, the compressor allocates only heap memory.
+  }
+}
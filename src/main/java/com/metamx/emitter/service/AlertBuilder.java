@@ -18,7 +18,6 @@ package com.metamx.emitter.service;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
-import org.joda.time.DateTime;
 
 import java.util.Map;
 
@@ -72,7 +71,13 @@ public class AlertBuilder extends ServiceEventBuilder<AlertEvent>
   @Override
   public AlertEvent build(ImmutableMap<String, String> serviceDimensions)
   {
-    return new AlertEvent(new DateTime(), serviceDimensions, severity, description, dataMap);
+    return new AlertEvent(System.currentTimeMillis(), serviceDimensions, severity, description, dataMap);
+  }
+
+  @Override
+  public AlertEvent build(ServiceDimensions serviceDimensions)
+  {
+    return new AlertEvent(System.currentTimeMillis(), serviceDimensions, severity, description, dataMap);
   }
 
   public void emit()
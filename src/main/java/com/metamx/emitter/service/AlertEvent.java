@@ -17,21 +17,45 @@
 package com.metamx.emitter.service;
 
 import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.metamx.emitter.core.JsonSerializableEvent;
+import com.metamx.emitter.core.TimestampEncoder;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  */
-public class AlertEvent implements ServiceEvent
+public class AlertEvent implements ServiceEvent, JsonSerializableEvent
 {
+  private static final ImmutableSet<String> FIELDS = ImmutableSet.of(
+      "feed",
+      "timestamp",
+      "severity",
+      "description",
+      "data"
+  );
+
   private final ImmutableMap<String, String> serviceDimensions;
+  /** Set if the event is built by {@link ServiceEmitter}, then serviceDimensions are the same dimensions. */
+  @Nullable
+  private final ServiceDimensions serializedServiceDimensions;
   private final Severity severity;
   private final String description;
-  private final DateTime createdTime;
+  private final long createdTimeMillis;
+  /** The zone of createdTime, or the default zone when the alert is created. */
+  private final DateTimeZone createdTimeZone;
+  /** Set if given to the constructor, otherwise created lazily by {@link #getCreatedTime()}. */
+  @Nullable
+  private DateTime createdTime;
 
   private final Map<String, Object> dataMap;
 
@@ -43,8 +67,57 @@ public class AlertEvent implements ServiceEvent
       Map<String, Object> dataMap
   )
   {
+    this(createdTime.getMillis(), createdTime, serviceDimensions, null, severity, description, dataMap);
+  }
+
+  public AlertEvent(
+      long createdTimeMillis,
+      ImmutableMap<String, String> serviceDimensions,
+      Severity severity,
+      String description,
+      Map<String, Object> dataMap
+  )
+  {
+    this(createdTimeMillis, null, serviceDimensions, null, severity, description, dataMap);
+  }
+
+  /**
+   * Keeps the pre-serialized service dimensions, see {@link ServiceDimensions#writeFields}.
+   */
+  public AlertEvent(
+      long createdTimeMillis,
+      ServiceDimensions serviceDimensions,
+      Severity severity,
+      String description,
+      Map<String, Object> dataMap
+  )
+  {
+    this(
+        createdTimeMillis,
+        null,
+        serviceDimensions.getDimensions(),
+        serviceDimensions,
+        severity,
+        description,
+        dataMap
+    );
+  }
+
+  private AlertEvent(
+      long createdTimeMillis,
+      @Nullable DateTime createdTime,
+      ImmutableMap<String, String> serviceDimensions,
+      @Nullable ServiceDimensions serializedServiceDimensions,
+      Severity severity,
+      String description,
+      Map<String, Object> dataMap
+  )
+  {
+    this.createdTimeMillis = createdTimeMillis;
     this.createdTime = createdTime;
+    this.createdTimeZone = createdTime != null ? createdTime.getZone() : DateTimeZone.getDefault();
     this.serviceDimensions = serviceDimensions;
+    this.serializedServiceDimensions = serializedServiceDimensions;
     this.severity = severity;
     this.description = description;
     this.dataMap = dataMap;
@@ -70,7 +143,13 @@ public class AlertEvent implements ServiceEvent
       Map<String, Object> dataMap
   )
   {
-    this(new DateTime(), service, host, severity, description, dataMap);
+    this(
+        System.currentTimeMillis(),
+        ImmutableMap.of("service", service, "host", host),
+        severity,
+        description,
+        dataMap
+    );
   }
 
   public AlertEvent(
@@ -80,7 +159,7 @@ public class AlertEvent implements ServiceEvent
       Map<String, Object> dataMap
   )
   {
-    this(new DateTime(), service, host, Severity.DEFAULT, description, dataMap);
+    this(service, host, Severity.DEFAULT, description, dataMap);
   }
 
   public AlertEvent(
@@ -89,14 +168,26 @@ public class AlertEvent implements ServiceEvent
       String description
   )
   {
-    this(new DateTime(), service, host, Severity.DEFAULT, description, ImmutableMap.<String, Object>of());
+    this(service, host, Severity.DEFAULT, description, ImmutableMap.<String, Object>of());
   }
 
   public DateTime getCreatedTime()
   {
+    DateTime createdTime = this.createdTime;
+    if (createdTime == null) {
+      // Created only for the callers which need it, DateTime is immutable and safe to publish via a data race.
+      createdTime = new DateTime(createdTimeMillis, createdTimeZone);
+      this.createdTime = createdTime;
+    }
     return createdTime;
   }
 
+  @Override
+  public long getCreatedTimeMillis()
+  {
+    return createdTimeMillis;
+  }
+
   public String getFeed()
   {
     return "alerts";
@@ -138,7 +229,7 @@ public class AlertEvent implements ServiceEvent
   {
     return ImmutableMap.<String, Object>builder()
         .put("feed", getFeed())
-        .put("timestamp", createdTime.toString())
+        .put("timestamp", timestamp())
         .putAll(serviceDimensions)
         .put("severity", severity.toString())
         .put("description", description)
@@ -146,6 +237,45 @@ public class AlertEvent implements ServiceEvent
         .build();
   }
 
+  private String timestamp()
+  {
+    DateTime createdTime = this.createdTime;
+    return createdTime != null
+           ? TimestampEncoder.toString(createdTime)
+           : TimestampEncoder.toString(createdTimeMillis, createdTimeZone);
+  }
+
+  /**
+   * Writes the same object as {@link #toMap()}, without building it: a service dimension with the same name as another
+   * field fails the serialization.
+   */
+  @Override
+  public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException
+  {
+    if (serializedServiceDimensions != null) {
+      serializedServiceDimensions.checkNotNamedAs(FIELDS);
+    } else {
+      ServiceDimensions.checkNotNamedAs(serviceDimensions, FIELDS);
+    }
+    gen.writeStartObject();
+    gen.writeStringField("feed", getFeed());
+    DateTime createdTime = this.createdTime;
+    if (createdTime != null) {
+      TimestampEncoder.writeStringField(gen, "timestamp", createdTime);
+    } else {
+      TimestampEncoder.writeStringField(gen, "timestamp", createdTimeMillis, createdTimeZone);
+    }
+    if (serializedServiceDimensions != null) {
+      serializedServiceDimensions.writeFields(gen);
+    } else {
+      ServiceDimensions.writeFields(gen, serviceDimensions);
+    }
+    gen.writeStringField("severity", severity.toString());
+    gen.writeStringField("description", description);
+    serializers.defaultSerializeField("data", dataMap, gen);
+    gen.writeEndObject();
+  }
+
   public static enum Severity
   {
     ANOMALY
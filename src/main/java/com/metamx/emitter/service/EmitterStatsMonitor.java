@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.service;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.lifecycle.LifecycleStart;
+import com.metamx.common.lifecycle.LifecycleStop;
+import com.metamx.common.logger.Logger;
+import com.metamx.emitter.core.Emitter;
+import com.metamx.emitter.core.EmitterStats;
+import com.metamx.emitter.core.HttpPostEmitter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically emits the statistics of the {@link HttpPostEmitter}s, which the given emitter consists of (see
+ * {@link EmitterStats#collect(Emitter)}), as {@link ServiceMetricEvent}s with the "url" dimension. The events are
+ * emitted via a {@link ServiceEmitter}, usually backed by the monitored emitter itself.
+ *
+ * Counters are emitted as the changes since the previous emission, gauges as they are at the moment of emission.
+ */
+public class EmitterStatsMonitor
+{
+  private static final Logger log = new Logger(EmitterStatsMonitor.class);
+
+  private static final double[] SEND_LATENCY_PERCENTILES = {50, 90, 99};
+
+  private final ServiceEmitter serviceEmitter;
+  private final Emitter emitter;
+  private final long periodMillis;
+  private final ScheduledExecutorService exec;
+  /**
+   * Accessed only by the thread of {@link #exec}.
+   */
+  private Map<String, EmitterStats> previousStats = new HashMap<>();
+
+  public EmitterStatsMonitor(ServiceEmitter serviceEmitter, Emitter emitter, long periodMillis)
+  {
+    Preconditions.checkArgument(periodMillis > 0, "periodMillis must be positive");
+    this.serviceEmitter = Preconditions.checkNotNull(serviceEmitter, "serviceEmitter");
+    this.emitter = Preconditions.checkNotNull(emitter, "emitter");
+    this.periodMillis = periodMillis;
+    this.exec = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("EmitterStatsMonitor-%d").build()
+    );
+  }
+
+  @LifecycleStart
+  public void start()
+  {
+    exec.scheduleAtFixedRate(
+        new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            try {
+              monitor();
+            }
+            catch (Exception e) {
+              log.error(e, "Failed to emit stats of [%s]", emitter);
+            }
+          }
+        },
+        periodMillis,
+        periodMillis,
+        TimeUnit.MILLISECONDS
+    );
+  }
+
+  @LifecycleStop
+  public void stop()
+  {
+    exec.shutdownNow();
+  }
+
+  @VisibleForTesting
+  void monitor()
+  {
+    Map<String, EmitterStats> currentStats = EmitterStats.collect(emitter);
+    for (Map.Entry<String, EmitterStats> entry : currentStats.entrySet()) {
+      String url = entry.getKey();
+      EmitterStats stats = entry.getValue();
+      EmitterStats previous = previousStats.get(url);
+      emitStats(url, previous != null ? stats.minus(previous) : stats);
+    }
+    previousStats = currentStats;
+  }
+
+  private void emitStats(String url, EmitterStats stats)
+  {
+    emitMetric(url, "emitter/events/accepted", stats.getAcceptedEvents());
+    emitMetric(url, "emitter/events/dropped", stats.getDroppedEvents());
+    emitMetric(url, "emitter/events/oversized", stats.getOversizedEvents());
+    emitMetric(url, "emitter/events/emitted", stats.getEmittedEvents());
+    emitSealedBatches(url, "count", stats.getBatchesSealedByCount());
+    emitSealedBatches(url, "size", stats.getBatchesSealedBySize());
+    emitSealedBatches(url, "time", stats.getBatchesSealedByTime());
+    emitSealedBatches(url, "flush", stats.getBatchesSealedByFlush());
+    emitMetric(url, "emitter/batches/dropped", stats.getDroppedBatches());
+    emitMetric(url, "emitter/batches/retried", stats.getRetriedBatches());
+    emitMetric(url, "emitter/bytes/uncompressed", stats.getUncompressedBytes());
+    emitMetric(url, "emitter/bytes/sent", stats.getSentBytes());
+    long sends = stats.getSends();
+    emitMetric(url, "emitter/send/count", sends);
+    if (sends > 0) {
+      for (double percentile : SEND_LATENCY_PERCENTILES) {
+        emitMetric(
+            url,
+            String.format("emitter/send/time/p%d", (int) percentile),
+            stats.getSendLatencyPercentileMillis(percentile)
+        );
+      }
+      emitMetric(url, "emitter/send/time/max", stats.getSendLatencyPercentileMillis(100));
+    }
+    emitMetric(url, "emitter/queue/batches", stats.getBatchesToEmit());
+    emitMetric(url, "emitter/queue/failedBatches", stats.getFailedBatches());
+    emitMetric(url, "emitter/queue/largeEvents", stats.getLargeEventsToEmit());
+    emitMetric(url, "emitter/queue/spilledBatches", stats.getSpilledBatches());
+    emitMetric(url, "emitter/buffers/liveBytes", stats.getLiveBufferBytes());
+    emitMetric(url, "emitter/buffers/pooledBytes", stats.getPooledBufferBytes());
+    emitMetric(url, "emitter/buffers/allocated", stats.getAllocatedBuffers());
+    emitMetric(url, "emitter/buffers/trimmed", stats.getTrimmedBuffers());
+  }
+
+  private void emitSealedBatches(String url, String reason, long value)
+  {
+    serviceEmitter.emit(
+        ServiceMetricEvent.builder()
+                          .setDimension("url", url)
+                          .setDimension("reason", reason)
+                          .build("emitter/batches/sealed", value)
+    );
+  }
+
+  private void emitMetric(String url, String metric, long value)
+  {
+    serviceEmitter.emit(ServiceMetricEvent.builder().setDimension("url", url).build(metric, value));
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.json.JsonGeneratorImpl;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.metamx.common.IAE;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The service dimensions of a {@link ServiceEmitter}, which are the same in all its events, serialized to JSON once.
+ * {@link #writeFields} splices the serialized dimensions into each event written to a JSON generator, instead of
+ * writing and escaping the same strings for every event.
+ */
+public final class ServiceDimensions
+{
+  private final ImmutableMap<String, String> dimensions;
+  /** The dimensions as fields of a JSON object, each preceded by a comma, as Jackson writes them by default. */
+  private final SerializedString serializedFields;
+  /** The field names of events, which are already checked not to collide with the dimensions. */
+  private final Set<ImmutableSet<String>> checkedFieldNames = Sets.newConcurrentHashSet();
+
+  public ServiceDimensions(ImmutableMap<String, String> dimensions)
+  {
+    this.dimensions = dimensions;
+    JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+    StringBuilder fields = new StringBuilder();
+    for (Map.Entry<String, String> dimension : dimensions.entrySet()) {
+      fields.append(",\"").append(encoder.quoteAsString(dimension.getKey()));
+      fields.append("\":\"").append(encoder.quoteAsString(dimension.getValue())).append('"');
+    }
+    this.serializedFields = new SerializedString(fields.toString());
+  }
+
+  public ImmutableMap<String, String> getDimensions()
+  {
+    return dimensions;
+  }
+
+  /**
+   * Writes the dimensions as fields of the current object of the generator, in which at least one field must be
+   * already written.
+   */
+  public void writeFields(JsonGenerator gen) throws IOException
+  {
+    if (canWriteSerializedFields(gen)) {
+      gen.writeRaw(serializedFields);
+    } else {
+      writeFields(gen, dimensions);
+    }
+  }
+
+  /**
+   * Fails if a dimension has the same name as one of the given fields of an event, the same way as building the event's
+   * map fails on duplicate keys. Each set of names is checked once, events pass the same constant set every time.
+   */
+  void checkNotNamedAs(ImmutableSet<String> fieldNames)
+  {
+    if (!checkedFieldNames.contains(fieldNames)) {
+      checkNotNamedAs(dimensions, fieldNames);
+      checkedFieldNames.add(fieldNames);
+    }
+  }
+
+  static void checkNotNamedAs(Map<String, String> dimensions, Set<String> fieldNames)
+  {
+    for (String dimension : dimensions.keySet()) {
+      if (fieldNames.contains(dimension)) {
+        throw new IAE("Multiple entries with same key: %s", dimension);
+      }
+    }
+  }
+
+  static void writeFields(JsonGenerator gen, Map<String, String> dimensions) throws IOException
+  {
+    for (Map.Entry<String, String> dimension : dimensions.entrySet()) {
+      gen.writeStringField(dimension.getKey(), dimension.getValue());
+    }
+  }
+
+  /**
+   * The pre-serialized fields could be written only by the JSON generators with the default formatting and escaping.
+   * Other formats, e. g. Smile, don't support raw writes.
+   */
+  private static boolean canWriteSerializedFields(JsonGenerator gen)
+  {
+    if (!(gen instanceof JsonGeneratorImpl)) {
+      return false;
+    }
+    JsonGeneratorImpl jsonGen = (JsonGeneratorImpl) gen;
+    return jsonGen.getPrettyPrinter() == null
+           && jsonGen.getCharacterEscapes() == null
+           && jsonGen.getHighestEscapedChar() == 0
+           && jsonGen.isEnabled(JsonGenerator.Feature.QUOTE_FIELD_NAMES);
+  }
+
+  @Override
+  public String toString()
+  {
+    return dimensions.toString();
+  }
+}
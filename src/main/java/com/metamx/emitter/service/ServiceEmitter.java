@@ -24,10 +24,12 @@ import com.metamx.emitter.core.Emitter;
 import com.metamx.emitter.core.Event;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 public class ServiceEmitter implements Emitter
 {
   private final ImmutableMap<String, String> serviceDimensions;
+  private final ServiceDimensions serializedServiceDimensions;
   private final Emitter emitter;
 
   public ServiceEmitter(String service, String host, Emitter emitter)
@@ -48,6 +50,7 @@ public class ServiceEmitter implements Emitter
         .put("host", Preconditions.checkNotNull(host))
         .putAll(otherServiceDimensions)
         .build();
+    this.serializedServiceDimensions = new ServiceDimensions(serviceDimensions);
     this.emitter = emitter;
   }
 
@@ -74,7 +77,7 @@ public class ServiceEmitter implements Emitter
 
   public void emit(ServiceEventBuilder builder)
   {
-    emit(builder.build(serviceDimensions));
+    emit(builder.build(serializedServiceDimensions));
   }
 
   public void flush() throws IOException
@@ -82,6 +85,12 @@ public class ServiceEmitter implements Emitter
     emitter.flush();
   }
 
+  @Override
+  public CompletableFuture<Void> flushAsync()
+  {
+    return emitter.flushAsync();
+  }
+
   @LifecycleStop
   public void close() throws IOException
   {
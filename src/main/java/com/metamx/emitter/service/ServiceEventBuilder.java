@@ -27,4 +27,13 @@ public abstract class ServiceEventBuilder<X extends Event>
   {
     return build(ImmutableMap.of("service", service, "host", host));
   }
+
+  /**
+   * Called by {@link ServiceEmitter}. Builders could override it to keep the pre-serialized service dimensions in the
+   * event, see {@link ServiceDimensions#writeFields}.
+   */
+  public X build(ServiceDimensions serviceDimensions)
+  {
+    return build(serviceDimensions.getDimensions());
+  }
 }
@@ -17,26 +17,49 @@
 package com.metamx.emitter.service;
 
 import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.metamx.common.IAE;
 import com.metamx.common.ISE;
+import com.metamx.emitter.core.JsonSerializableEvent;
+import com.metamx.emitter.core.TimestampEncoder;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
 
 /**
  */
-public class ServiceMetricEvent implements ServiceEvent
+public class ServiceMetricEvent implements ServiceEvent, JsonSerializableEvent
 {
+  private static final ImmutableSet<String> FIELDS = ImmutableSet.of("feed", "timestamp", "metric", "value");
+
   public static Builder builder()
   {
     return new Builder();
   }
 
-  private final DateTime createdTime;
+  private final long createdTimeMillis;
+  /**
+   * The default time zone at the time of creation, if the created time is not given. Then the timestamp is the same
+   * as if the DateTime was created with the event, even if the default zone is changed before the event is serialized.
+   */
+  private final DateTimeZone createdTimeZone;
+  /** Set if given to the builder, otherwise created lazily by {@link #getCreatedTime()}. */
+  @Nullable
+  private DateTime createdTime;
   private final ImmutableMap<String, String> serviceDims;
+  /** Set if the event is built by {@link ServiceEmitter}, then serviceDims are the same dimensions. */
+  @Nullable
+  private final ServiceDimensions serializedServiceDims;
   private final Map<String, Object> userDims;
   private final String feed;
   private final String metric;
@@ -45,14 +68,18 @@ public class ServiceMetricEvent implements ServiceEvent
   private ServiceMetricEvent(
       DateTime createdTime,
       ImmutableMap<String, String> serviceDims,
+      @Nullable ServiceDimensions serializedServiceDims,
       Map<String, Object> userDims,
       String feed,
       String metric,
       Number value
   )
   {
-    this.createdTime = createdTime != null ? createdTime : new DateTime();
+    this.createdTimeMillis = createdTime != null ? createdTime.getMillis() : System.currentTimeMillis();
+    this.createdTime = createdTime;
+    this.createdTimeZone = createdTime != null ? createdTime.getZone() : DateTimeZone.getDefault();
     this.serviceDims = serviceDims;
+    this.serializedServiceDims = serializedServiceDims;
     this.userDims = userDims;
     this.feed = feed;
     this.metric = metric;
@@ -61,9 +88,21 @@ public class ServiceMetricEvent implements ServiceEvent
 
   public DateTime getCreatedTime()
   {
+    DateTime createdTime = this.createdTime;
+    if (createdTime == null) {
+      // Created only for the callers which need it, DateTime is immutable and safe to publish via a data race.
+      createdTime = new DateTime(createdTimeMillis, createdTimeZone);
+      this.createdTime = createdTime;
+    }
     return createdTime;
   }
 
+  @Override
+  public long getCreatedTimeMillis()
+  {
+    return createdTimeMillis;
+  }
+
   public String getFeed()
   {
     return feed;
@@ -105,7 +144,7 @@ public class ServiceMetricEvent implements ServiceEvent
   {
     return ImmutableMap.<String, Object>builder()
                        .put("feed", getFeed())
-                       .put("timestamp", createdTime.toString())
+                       .put("timestamp", timestamp())
                        .putAll(serviceDims)
                        .put("metric", metric)
                        .put("value", value)
@@ -125,6 +164,55 @@ public class ServiceMetricEvent implements ServiceEvent
                        .build();
   }
 
+  private String timestamp()
+  {
+    DateTime createdTime = this.createdTime;
+    return createdTime != null
+           ? TimestampEncoder.toString(createdTime)
+           : TimestampEncoder.toString(createdTimeMillis, createdTimeZone);
+  }
+
+  /**
+   * Writes the same object as {@link #toMap()}, without building it: user dimensions with null names are skipped, and
+   * a null value or a dimension with the same name as another field fails the serialization.
+   */
+  @Override
+  public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException
+  {
+    if (serializedServiceDims != null) {
+      serializedServiceDims.checkNotNamedAs(FIELDS);
+    } else {
+      ServiceDimensions.checkNotNamedAs(serviceDims, FIELDS);
+    }
+    gen.writeStartObject();
+    gen.writeStringField("feed", feed);
+    DateTime createdTime = this.createdTime;
+    if (createdTime != null) {
+      TimestampEncoder.writeStringField(gen, "timestamp", createdTime);
+    } else {
+      TimestampEncoder.writeStringField(gen, "timestamp", createdTimeMillis, createdTimeZone);
+    }
+    if (serializedServiceDims != null) {
+      serializedServiceDims.writeFields(gen);
+    } else {
+      ServiceDimensions.writeFields(gen, serviceDims);
+    }
+    gen.writeStringField("metric", metric);
+    serializers.defaultSerializeField("value", value, gen);
+    for (Map.Entry<String, Object> userDim : userDims.entrySet()) {
+      String dim = userDim.getKey();
+      if (dim != null) {
+        // toMap() fails on null values and duplicate keys as well
+        Preconditions.checkNotNull(userDim.getValue(), "null value in entry: %s=null", dim);
+        if (FIELDS.contains(dim) || serviceDims.containsKey(dim)) {
+          throw new IAE("Multiple entries with same key: %s", dim);
+        }
+        serializers.defaultSerializeField(dim, userDim.getValue(), gen);
+      }
+    }
+    gen.writeEndObject();
+  }
+
   public static class Builder
   {
     private final Map<String, Object> userDims = Maps.newTreeMap();
@@ -182,6 +270,21 @@ public class ServiceMetricEvent implements ServiceEvent
           return new ServiceMetricEvent(
               createdTime,
               serviceDimensions,
+              null,
+              userDims,
+              feed,
+              metric,
+              value
+          );
+        }
+
+        @Override
+        public ServiceMetricEvent build(ServiceDimensions serviceDimensions)
+        {
+          return new ServiceMetricEvent(
+              createdTime,
+              serviceDimensions.getDimensions(),
+              serviceDimensions,
               userDims,
               feed,
               metric,
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.metamx.emitter.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class AdaptiveBatchSizeTest
+{
+  private static final int MAX_BATCH_SIZE = 1024 * 1024;
+
+  @Test
+  public void testTargetDecreasesOnTooLargeAndRecoversOnSuccess()
+  {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize("test", MAX_BATCH_SIZE);
+    Assert.assertEquals(MAX_BATCH_SIZE, batchSize.getTarget());
+
+    batchSize.onTooLarge(MAX_BATCH_SIZE);
+    Assert.assertEquals(MAX_BATCH_SIZE / 2, batchSize.getTarget());
+    // A rejection of a batch larger than the target doesn't raise the target.
+    batchSize.onTooLarge(MAX_BATCH_SIZE);
+    Assert.assertEquals(MAX_BATCH_SIZE / 2, batchSize.getTarget());
+    batchSize.onTooLarge(1024);
+    Assert.assertEquals(AdaptiveBatchSize.MIN_TARGET, batchSize.getTarget());
+
+    // Small batches don't raise the target.
+    batchSize.onSuccess(AdaptiveBatchSize.MIN_TARGET / 4, TimeUnit.MILLISECONDS.toNanos(1));
+    Assert.assertEquals(AdaptiveBatchSize.MIN_TARGET, batchSize.getTarget());
+
+    int previousTarget = batchSize.getTarget();
+    while (batchSize.getTarget() < MAX_BATCH_SIZE) {
+      int target = batchSize.getTarget();
+      batchSize.onSuccess(target, target);
+      Assert.assertTrue(batchSize.getTarget() > previousTarget);
+      previousTarget = batchSize.getTarget();
+    }
+    Assert.assertEquals(MAX_BATCH_SIZE, batchSize.getTarget());
+  }
+
+  @Test
+  public void testTargetDoesNotGrowWhenLatencyGrows()
+  {
+    AdaptiveBatchSize batchSize = new AdaptiveBatchSize("test", MAX_BATCH_SIZE);
+    batchSize.onTooLarge(MAX_BATCH_SIZE);
+    int target = batchSize.getTarget();
+    batchSize.onSuccess(target, target);
+    Assert.assertEquals(1.0, batchSize.getAverageNanosPerByte(), 0.0);
+    target = batchSize.getTarget();
+    batchSize.onSuccess(target, 10L * target);
+    Assert.assertEquals(target, batchSize.getTarget());
+  }
+}
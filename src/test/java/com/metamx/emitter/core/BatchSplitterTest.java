@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class BatchSplitterTest
+{
+  @Test
+  public void testFindSplitOffset() throws Exception
+  {
+    String batch = "[{\"a\":\"}\"},{\"b\":[1,2]},{\"c\":\"\\\"{\"},{\"d\":{}}]\n";
+    byte[] buffer = batch.getBytes(Charsets.UTF_8);
+    int splitOffset = BatchSplitter.findSplitOffset(buffer, buffer.length, BatchingStrategy.ARRAY);
+    Assert.assertEquals("[{\"a\":\"}\"},{\"b\":[1,2]}", batch.substring(0, splitOffset));
+    Assert.assertEquals(2, BatchSplitter.countEvents(buffer, splitOffset, BatchingStrategy.ARRAY));
+
+    String twoEvents = "{\"a\":1}\n{\"b\":2}\n";
+    buffer = twoEvents.getBytes(Charsets.UTF_8);
+    splitOffset = BatchSplitter.findSplitOffset(buffer, buffer.length, BatchingStrategy.NEWLINES);
+    Assert.assertEquals("{\"a\":1}", twoEvents.substring(0, splitOffset));
+    Assert.assertEquals(1, BatchSplitter.countEvents(buffer, splitOffset, BatchingStrategy.NEWLINES));
+
+    buffer = "[{\"a\":1}]\n".getBytes(Charsets.UTF_8);
+    Assert.assertEquals(-1, BatchSplitter.findSplitOffset(buffer, buffer.length, BatchingStrategy.ARRAY));
+  }
+
+  @Test
+  public void testFindSplitOffsetOfBinaryScalars() throws Exception
+  {
+    List<?> events = Arrays.asList(
+        "foo",
+        Strings.repeat("x", 1000),
+        -12345678901L,
+        1.5,
+        true,
+        null,
+        new byte[]{1, 2, 3},
+        ImmutableMap.of("a", 1),
+        "bar"
+    );
+    ObjectMapper mapper = new ObjectMapper();
+    for (BatchingStrategy batchingStrategy : new BatchingStrategy[]{BatchingStrategy.SMILE, BatchingStrategy.CBOR}) {
+      byte[] buffer = new byte[64 * 1024];
+      int length = batchingStrategy.writeBatchStart(buffer);
+      for (Object event : events) {
+        ZeroCopyByteArrayOutputStream out = new ZeroCopyByteArrayOutputStream(1024);
+        try (JsonGenerator generator = batchingStrategy.getBinaryFactory().createGenerator(out)) {
+          mapper.writeValue(generator, event);
+        }
+        System.arraycopy(out.getBuffer(), 0, buffer, length, out.size());
+        length += out.size();
+      }
+      length = batchingStrategy.writeBatchEnd(buffer, length);
+      int eventsEnd = length - batchingStrategy.batchEndLength();
+      Assert.assertEquals(events.size(), BatchSplitter.countEvents(buffer, eventsEnd, batchingStrategy));
+      int splitOffset = BatchSplitter.findSplitOffset(buffer, length, batchingStrategy);
+      // The long string is in the middle
+      Assert.assertEquals(2, BatchSplitter.countEvents(buffer, splitOffset, batchingStrategy));
+
+      // Truncated in the middle of the long string
+      try {
+        BatchSplitter.countEvents(buffer, splitOffset - 100, batchingStrategy);
+        Assert.fail();
+      }
+      catch (IOException e) {
+        // Expected
+      }
+    }
+  }
+}
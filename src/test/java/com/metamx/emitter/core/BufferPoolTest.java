@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.metamx.emitter.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class BufferPoolTest
+{
+  private static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+  @Test
+  public void testMemoryBudget()
+  {
+    BufferPool pool = new BufferPool(MAX_BUFFER_SIZE, MAX_BUFFER_SIZE, 2 * MAX_BUFFER_SIZE, Long.MAX_VALUE, 60_000);
+    byte[] buffer1 = pool.tryAcquire(MAX_BUFFER_SIZE);
+    byte[] buffer2 = pool.tryAcquire(1);
+    Assert.assertEquals(MAX_BUFFER_SIZE, buffer2.length);
+    Assert.assertNull(pool.tryAcquire(MAX_BUFFER_SIZE));
+    Assert.assertEquals(2L * MAX_BUFFER_SIZE, pool.getLiveBytes());
+
+    pool.release(buffer1);
+    Assert.assertEquals(MAX_BUFFER_SIZE, pool.getPooledBytes());
+    Assert.assertSame(buffer1, pool.tryAcquire(MAX_BUFFER_SIZE));
+    Assert.assertEquals(0, pool.getPooledBytes());
+    Assert.assertEquals(2, pool.getAllocatedBuffers());
+
+    pool.discard(buffer2);
+    Assert.assertEquals(1, pool.getLiveBuffers());
+    Assert.assertNotNull(pool.tryAcquire(MAX_BUFFER_SIZE));
+    Assert.assertEquals(3, pool.getAllocatedBuffers());
+  }
+
+  @Test
+  public void testReservedBytes()
+  {
+    BufferPool pool = new BufferPool(MAX_BUFFER_SIZE, MAX_BUFFER_SIZE, 2 * MAX_BUFFER_SIZE, Long.MAX_VALUE, 60_000);
+    byte[] buffer = pool.tryAcquire(MAX_BUFFER_SIZE);
+    pool.release(buffer);
+    // The pooled buffer is discarded to make room.
+    Assert.assertTrue(pool.tryReserveBytes(MAX_BUFFER_SIZE + 1));
+    Assert.assertEquals(0, pool.getPooledBytes());
+    Assert.assertEquals(0, pool.getLiveBuffers());
+    Assert.assertNull(pool.tryAcquire(MAX_BUFFER_SIZE));
+    Assert.assertFalse(pool.tryReserveBytes(MAX_BUFFER_SIZE));
+
+    pool.reserveBytes(MAX_BUFFER_SIZE);
+    Assert.assertEquals(2L * MAX_BUFFER_SIZE + 1, pool.getLiveBytes());
+    pool.releaseBytes(2L * MAX_BUFFER_SIZE + 1);
+    Assert.assertEquals(0, pool.getLiveBytes());
+    Assert.assertNotNull(pool.tryAcquire(MAX_BUFFER_SIZE));
+  }
+
+  @Test
+  public void testHighWaterMark()
+  {
+    BufferPool pool = new BufferPool(MAX_BUFFER_SIZE, MAX_BUFFER_SIZE, 4 * MAX_BUFFER_SIZE, MAX_BUFFER_SIZE, 60_000);
+    byte[] buffer1 = pool.tryAcquire(MAX_BUFFER_SIZE);
+    byte[] buffer2 = pool.tryAcquire(MAX_BUFFER_SIZE);
+    pool.release(buffer1);
+    pool.release(buffer2);
+    // The second buffer is discarded, because the pool already holds a buffer of MAX_BUFFER_SIZE.
+    Assert.assertEquals(MAX_BUFFER_SIZE, pool.getPooledBytes());
+    Assert.assertEquals(1, pool.getLiveBuffers());
+  }
+
+  @Test
+  public void testHighWaterMarkConcurrentReleases() throws InterruptedException
+  {
+    final int bufferSize = BufferPool.MIN_SIZE_CLASS;
+    final int threads = 8;
+    for (int round = 0; round < 100; round++) {
+      final BufferPool pool = new BufferPool(bufferSize, bufferSize, threads * bufferSize, bufferSize, 60_000);
+      final CountDownLatch start = new CountDownLatch(1);
+      List<Thread> releasingThreads = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        final byte[] buffer = pool.tryAcquire(bufferSize);
+        Thread thread = new Thread()
+        {
+          @Override
+          public void run()
+          {
+            try {
+              start.await();
+            }
+            catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            pool.release(buffer);
+          }
+        };
+        thread.start();
+        releasingThreads.add(thread);
+      }
+      start.countDown();
+      for (Thread thread : releasingThreads) {
+        thread.join();
+      }
+      Assert.assertEquals(bufferSize, pool.getPooledBytes());
+      Assert.assertEquals(1, pool.getLiveBuffers());
+    }
+  }
+
+  @Test
+  public void testIdleBuffersTrimmed() throws InterruptedException
+  {
+    BufferPool pool = new BufferPool(MAX_BUFFER_SIZE, MAX_BUFFER_SIZE, 4 * MAX_BUFFER_SIZE, Long.MAX_VALUE, 10);
+    byte[][] buffers = new byte[3][];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = pool.tryAcquire(MAX_BUFFER_SIZE);
+    }
+    for (byte[] buffer : buffers) {
+      pool.release(buffer);
+    }
+    Thread.sleep(20);
+    // The first trim only starts counting idle buffers.
+    Assert.assertFalse(pool.trim());
+    Assert.assertEquals(3, pool.getLiveBuffers());
+
+    // A single buffer is in use during the period, two other buffers are idle.
+    for (int i = 0; i < 5; i++) {
+      pool.release(pool.tryAcquire(MAX_BUFFER_SIZE));
+    }
+    Assert.assertFalse(pool.trim());
+    Thread.sleep(20);
+    Assert.assertTrue(pool.trim());
+    Assert.assertEquals(1, pool.getLiveBuffers());
+    Assert.assertEquals(MAX_BUFFER_SIZE, pool.getPooledBytes());
+    Assert.assertEquals(2, pool.getTrimmedBuffers());
+    Assert.assertEquals(3, pool.getAllocatedBuffers());
+  }
+
+  @Test
+  public void testSizeClasses()
+  {
+    BufferPool pool =
+        new BufferPool(MAX_BUFFER_SIZE, BufferPool.MIN_SIZE_CLASS, 2 * MAX_BUFFER_SIZE, Long.MAX_VALUE, 60_000);
+    // 64 KB, 128 KB, 256 KB, 512 KB and 1 MB
+    Assert.assertEquals(5, pool.getSizeClasses());
+    byte[] small = pool.tryAcquire(100 * 1024);
+    Assert.assertEquals(128 * 1024, small.length);
+    byte[] large = pool.tryAcquire(MAX_BUFFER_SIZE - 1);
+    Assert.assertEquals(MAX_BUFFER_SIZE, large.length);
+    pool.release(small);
+    Assert.assertSame(small, pool.tryAcquire(BufferPool.MIN_SIZE_CLASS + 1));
+    pool.release(small);
+
+    // The pooled small buffer is discarded to make room for a large one.
+    Assert.assertNotNull(pool.tryAcquire(MAX_BUFFER_SIZE));
+    Assert.assertEquals(0, pool.getPooledBytes());
+    Assert.assertEquals(2L * MAX_BUFFER_SIZE, pool.getLiveBytes());
+    Assert.assertNull(pool.tryAcquire(1));
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreakerTest
+{
+  @Test
+  public void testOpenAfterConsecutiveFailures()
+  {
+    CircuitBreaker circuitBreaker = new CircuitBreaker("test", 1000, 60_000, 2);
+    Assert.assertTrue(circuitBreaker.allowFreshBatch());
+    Assert.assertTrue(circuitBreaker.tryAcquireRetry());
+
+    circuitBreaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    // Fresh batches are sent, but failed batches are retried after backoff.
+    Assert.assertTrue(circuitBreaker.allowFreshBatch());
+    Assert.assertFalse(circuitBreaker.tryAcquireRetry());
+    assertBackoffBetween(circuitBreaker, 500, 1000);
+
+    circuitBreaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    Assert.assertFalse(circuitBreaker.allowFreshBatch());
+    Assert.assertFalse(circuitBreaker.tryAcquireRetry());
+    assertBackoffBetween(circuitBreaker, 1000, 2000);
+
+    circuitBreaker.onSuccess();
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+    Assert.assertTrue(circuitBreaker.allowFreshBatch());
+    Assert.assertTrue(circuitBreaker.tryAcquireRetry());
+    Assert.assertEquals(0, circuitBreaker.nanosUntilRetry());
+  }
+
+  @Test
+  public void testHalfOpenProbe() throws InterruptedException
+  {
+    CircuitBreaker circuitBreaker = new CircuitBreaker("test", 10, 10, 1);
+    circuitBreaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    Thread.sleep(20);
+
+    // Only one probe is allowed
+    Assert.assertTrue(circuitBreaker.tryAcquireRetry());
+    Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+    Assert.assertFalse(circuitBreaker.tryAcquireRetry());
+    Assert.assertFalse(circuitBreaker.allowFreshBatch());
+
+    // Cancelled probe could be retried
+    circuitBreaker.cancelRetry();
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    Assert.assertTrue(circuitBreaker.tryAcquireRetry());
+
+    // Failed probe opens the circuit again
+    circuitBreaker.onFailure();
+    Assert.assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+    Assert.assertFalse(circuitBreaker.tryAcquireRetry());
+    Thread.sleep(20);
+
+    Assert.assertTrue(circuitBreaker.tryAcquireRetry());
+    circuitBreaker.onSuccess();
+    Assert.assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+  }
+
+  @Test
+  public void testBackoffCappedByMax()
+  {
+    CircuitBreaker circuitBreaker = new CircuitBreaker("test", 1000, 5000, 1);
+    for (int i = 0; i < 100; i++) {
+      circuitBreaker.onFailure();
+    }
+    assertBackoffBetween(circuitBreaker, 2500, 5000);
+  }
+
+  @Test
+  public void testBackoffDoubles()
+  {
+    CircuitBreaker circuitBreaker = new CircuitBreaker("test", 1000, 60_000, 1);
+    for (int i = 0; i < 3; i++) {
+      circuitBreaker.onFailure();
+    }
+    assertBackoffBetween(circuitBreaker, 2000, 4000);
+  }
+
+  @Test
+  public void testZeroMinBackoff()
+  {
+    CircuitBreaker circuitBreaker = new CircuitBreaker("test", 0, Long.MAX_VALUE / 1_000_000, 1);
+    for (int i = 0; i < 100; i++) {
+      circuitBreaker.onFailure();
+    }
+    Assert.assertEquals(0, circuitBreaker.nanosUntilRetry());
+  }
+
+  private static void assertBackoffBetween(CircuitBreaker circuitBreaker, long minMillis, long maxMillis)
+  {
+    long backoffNanos = circuitBreaker.nanosUntilRetry();
+    // Some time has passed since the failure
+    Assert.assertTrue(backoffNanos > TimeUnit.MILLISECONDS.toNanos(minMillis) - TimeUnit.MILLISECONDS.toNanos(100));
+    Assert.assertTrue(backoffNanos <= TimeUnit.MILLISECONDS.toNanos(maxMillis));
+  }
+}
@@ -22,11 +22,13 @@ package com.metamx.emitter.core;
 import com.google.common.collect.ImmutableList;
 import org.easymock.EasyMock;
 import org.junit.After;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class ComposingEmitterTest
 {
@@ -79,6 +81,37 @@ public class ComposingEmitterTest
     composingEmitter.flush();
   }
 
+  @Test
+  public void testFlushAsync() throws Exception
+  {
+    CompletableFuture<Void> secondFlushed = new CompletableFuture<>();
+    EasyMock.expect(childEmitters.get(0).flushAsync()).andReturn(CompletableFuture.<Void>completedFuture(null));
+    EasyMock.expect(childEmitters.get(1).flushAsync()).andReturn(secondFlushed);
+    for (Emitter emitter : childEmitters) {
+      EasyMock.replay(emitter);
+    }
+
+    CompletableFuture<Void> flushed = composingEmitter.flushAsync();
+    Assert.assertFalse(flushed.isDone());
+    secondFlushed.complete(null);
+    Assert.assertTrue(flushed.isDone());
+    flushed.get();
+  }
+
+  @Test
+  public void testFlushAsyncFailure() throws Exception
+  {
+    CompletableFuture<Void> secondFlushed = new CompletableFuture<>();
+    EasyMock.expect(childEmitters.get(0).flushAsync()).andThrow(new IllegalStateException("closed"));
+    EasyMock.expect(childEmitters.get(1).flushAsync()).andReturn(secondFlushed);
+    for (Emitter emitter : childEmitters) {
+      EasyMock.replay(emitter);
+    }
+
+    CompletableFuture<Void> flushed = composingEmitter.flushAsync();
+    Assert.assertTrue(flushed.isCompletedExceptionally());
+  }
+
   @Test
   public void testClose() throws IOException
   {
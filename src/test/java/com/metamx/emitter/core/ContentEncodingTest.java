@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.metamx.http.client.MockHttpClient;
+import io.airlift.compress.snappy.SnappyFramedInputStream;
+import io.airlift.compress.zstd.ZstdDecompressor;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class ContentEncodingTest
+{
+  private static final byte[] BATCH = Strings
+      .repeat("{\"feed\":\"metrics\",\"metric\":\"query/time\",\"value\":10},", 1000)
+      .getBytes(Charsets.UTF_8);
+
+  static byte[] decompress(ContentEncoding contentEncoding, byte[] compressed, int offset, int length)
+      throws IOException
+  {
+    InputStream in = new ByteArrayInputStream(compressed, offset, length);
+    switch (contentEncoding) {
+      case GZIP:
+        return ByteStreams.toByteArray(new GZIPInputStream(in));
+      case DEFLATE:
+        return ByteStreams.toByteArray(new InflaterInputStream(in, new Inflater(true)));
+      case LZ4:
+        return ByteStreams.toByteArray(new LZ4FrameInputStream(in));
+      case SNAPPY:
+        return ByteStreams.toByteArray(new SnappyFramedInputStream(in));
+      case ZSTD:
+        byte[] decompressed = new byte[(int) ZstdDecompressor.getDecompressedSize(compressed, offset, length)];
+        new ZstdDecompressor().decompress(compressed, offset, length, decompressed, 0, decompressed.length);
+        return decompressed;
+      default:
+        throw new AssertionError(contentEncoding);
+    }
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException
+  {
+    for (ContentEncoding contentEncoding : ContentEncoding.values()) {
+      for (int level : new int[]{BaseHttpEmittingConfig.DEFAULT_COMPRESSION_LEVEL, 1, 9}) {
+        if (!contentEncoding.isSupportedCompressionLevel(level)) {
+          continue;
+        }
+        ZeroCopyByteArrayOutputStream out = new ZeroCopyByteArrayOutputStream(16);
+        // Compressors append to the existing content
+        out.write(42);
+        contentEncoding.createCompressor(level).compress(BATCH, 0, BATCH.length, out);
+        String message = contentEncoding + " level " + level;
+        Assert.assertEquals(message, 42, out.getBuffer()[0]);
+        Assert.assertTrue(message, out.size() < BATCH.length / 10);
+        Assert.assertArrayEquals(message, BATCH, decompress(contentEncoding, out.getBuffer(), 1, out.size() - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testRoundTripOfPartOfBuffer() throws IOException
+  {
+    for (ContentEncoding contentEncoding : ContentEncoding.values()) {
+      ZeroCopyByteArrayOutputStream out = new ZeroCopyByteArrayOutputStream(16);
+      contentEncoding
+          .createCompressor(BaseHttpEmittingConfig.DEFAULT_COMPRESSION_LEVEL)
+          .compress(BATCH, 10, 100, out);
+      Assert.assertArrayEquals(
+          contentEncoding.toString(),
+          Arrays.copyOfRange(BATCH, 10, 110),
+          decompress(contentEncoding, out.getBuffer(), 0, out.size())
+      );
+    }
+  }
+
+  @Test
+  public void testCompressorReused() throws IOException
+  {
+    byte[] otherBatch = Strings.repeat("{\"feed\":\"alerts\"},", 100).getBytes(Charsets.UTF_8);
+    for (ContentEncoding contentEncoding : ContentEncoding.values()) {
+      BatchCompressor compressor = contentEncoding.createCompressor(BaseHttpEmittingConfig.DEFAULT_COMPRESSION_LEVEL);
+      try {
+        for (byte[] batch : new byte[][]{BATCH, otherBatch, BATCH}) {
+          ZeroCopyByteArrayOutputStream out = new ZeroCopyByteArrayOutputStream(16);
+          compressor.compress(batch, 0, batch.length, out);
+          Assert.assertArrayEquals(
+              contentEncoding.toString(),
+              batch,
+              decompress(contentEncoding, out.getBuffer(), 0, out.size())
+          );
+        }
+      }
+      finally {
+        compressor.close();
+      }
+    }
+  }
+
+  @Test
+  public void testIncrementalCompression() throws IOException
+  {
+    for (ContentEncoding contentEncoding : ContentEncoding.values()) {
+      BatchCompressor compressor = contentEncoding.createCompressor(BaseHttpEmittingConfig.DEFAULT_COMPRESSION_LEVEL);
+      Assert.assertEquals(
+          contentEncoding.toString(),
+          contentEncoding.supportsIncrementalCompression(),
+          compressor instanceof IncrementalBatchCompressor
+      );
+      if (!contentEncoding.supportsIncrementalCompression()) {
+        continue;
+      }
+      IncrementalCompression abandoned =
+          new IncrementalCompression((IncrementalBatchCompressor) compressor, new ZeroCopyByteArrayOutputStream(16));
+      abandoned.update(BATCH, 100);
+      // The compressor is reused after an abandoned incremental compression
+      IncrementalCompression incrementalCompression =
+          new IncrementalCompression((IncrementalBatchCompressor) compressor, new ZeroCopyByteArrayOutputStream(16));
+      incrementalCompression.update(BATCH, 0);
+      incrementalCompression.update(BATCH, 1);
+      incrementalCompression.update(BATCH, BATCH.length / 2);
+      Assert.assertEquals(BATCH.length / 2, incrementalCompression.getCompressedPrefixLength());
+      incrementalCompression.finish(BATCH, BATCH.length);
+      ZeroCopyByteArrayOutputStream out = incrementalCompression.out;
+      Assert.assertArrayEquals(
+          contentEncoding.toString(),
+          BATCH,
+          decompress(contentEncoding, out.getBuffer(), 0, out.size())
+      );
+      compressor.close();
+    }
+  }
+
+  @Test
+  public void testSupportedCompressionLevels()
+  {
+    Assert.assertTrue(ContentEncoding.GZIP.isSupportedCompressionLevel(0));
+    Assert.assertTrue(ContentEncoding.GZIP.isSupportedCompressionLevel(9));
+    Assert.assertFalse(ContentEncoding.GZIP.isSupportedCompressionLevel(10));
+    Assert.assertTrue(ContentEncoding.LZ4.isSupportedCompressionLevel(17));
+    Assert.assertFalse(ContentEncoding.LZ4.isSupportedCompressionLevel(0));
+    Assert.assertTrue(
+        ContentEncoding.ZSTD.isSupportedCompressionLevel(BaseHttpEmittingConfig.DEFAULT_COMPRESSION_LEVEL)
+    );
+    Assert.assertFalse(ContentEncoding.ZSTD.isSupportedCompressionLevel(3));
+    Assert.assertFalse(ContentEncoding.SNAPPY.isSupportedCompressionLevel(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedCompressionLevelRejected()
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder("http://metrics.foo.bar")
+        .setContentEncoding(ContentEncoding.SNAPPY)
+        .setCompressionLevel(5)
+        .build();
+    new HttpPostEmitter(config, new MockHttpClient());
+  }
+}
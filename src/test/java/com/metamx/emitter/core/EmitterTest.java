@@ -16,14 +16,23 @@
 
 package com.metamx.emitter.core;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.metamx.common.CompressionUtils;
 import com.metamx.common.lifecycle.Lifecycle;
+import com.metamx.emitter.service.ServiceMetricEvent;
 import com.metamx.emitter.service.UnitEvent;
 import com.metamx.http.client.GoHandler;
 import com.metamx.http.client.GoHandlers;
@@ -33,6 +42,7 @@ import com.metamx.http.client.response.HttpResponseHandler;
 import com.metamx.http.client.response.StatusResponseHandler;
 import com.metamx.http.client.response.StatusResponseHolder;
 import org.jboss.netty.handler.codec.http.DefaultHttpResponse;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.handler.codec.http.HttpHeaders;
 import org.jboss.netty.handler.codec.http.HttpResponseStatus;
 import org.jboss.netty.handler.codec.http.HttpVersion;
@@ -40,16 +50,31 @@ import org.joda.time.Duration;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -63,6 +88,9 @@ public class EmitterTest
   );
   public static String TARGET_URL = "http://metrics.foo.bar/";
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   MockHttpClient httpClient;
   HttpPostEmitter emitter;
 
@@ -185,6 +213,44 @@ public class EmitterTest
     return emitter;
   }
 
+  /**
+   * Emitter with a memory budget of two batch buffers.
+   */
+  private HttpPostEmitter overflowPolicyEmitter(OverflowPolicy overflowPolicy, long overflowBlockTimeOut)
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setMaxBatchSize(1024 * 1024)
+        .setMaxBufferSize(2 * 1024 * 1024)
+        .setOverflowPolicy(overflowPolicy)
+        .setOverflowBlockTimeOut(overflowBlockTimeOut)
+        .build();
+    HttpPostEmitter emitter = new HttpPostEmitter(
+        config,
+        httpClient,
+        jsonMapper
+    );
+    emitter.start();
+    return emitter;
+  }
+
+  private HttpPostEmitter spillingEmitter(File spillDirectory)
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setSpillDirectory(spillDirectory.getPath())
+        .build();
+    HttpPostEmitter emitter = new HttpPostEmitter(
+        config,
+        httpClient,
+        jsonMapper
+    );
+    emitter.start();
+    return emitter;
+  }
+
   @Test
   public void testSanity() throws Exception
   {
@@ -585,6 +651,1256 @@ public class EmitterTest
     Assert.assertTrue(httpClient.succeeded());
   }
 
+  @Test
+  public void testContentEncodings() throws Exception
+  {
+    final UnitEvent event = new UnitEvent("plain-text", 1);
+    for (final ContentEncoding contentEncoding : ContentEncoding.values()) {
+      emitter = sizeBasedEmitterWithContentEncoding(Integer.MAX_VALUE, contentEncoding);
+      httpClient.setGoHandler(
+          new GoHandler()
+          {
+            @Override
+            public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+            {
+              Assert.assertEquals(
+                  ImmutableList.of(contentEncoding.getHeaderValue()),
+                  request.getHeaders().get(HttpHeaders.Names.CONTENT_ENCODING)
+              );
+              ChannelBuffer content = request.getContent();
+              byte[] batch = ContentEncodingTest.decompress(
+                  contentEncoding,
+                  content.array(),
+                  content.arrayOffset() + content.readerIndex(),
+                  content.readableBytes()
+              );
+              Assert.assertEquals(
+                  String.format("[%s]\n", jsonMapper.writeValueAsString(event)),
+                  new String(batch, Charsets.UTF_8)
+              );
+              return Futures.immediateFuture((Final) okResponse());
+            }
+          }.times(1)
+      );
+      emitter.emit(event);
+      emitter.flush();
+      closeNoFlush(emitter);
+      Assert.assertTrue(httpClient.succeeded());
+      CompressionStats compressionStats = emitter.getCompressionStats();
+      Assert.assertEquals(1, compressionStats.getCompressedBatches());
+      Assert.assertEquals(jsonMapper.writeValueAsBytes(event).length + 3, compressionStats.getUncompressedBytes());
+      Assert.assertTrue(compressionStats.getCompressedBytes() > 0);
+    }
+  }
+
+  @Test
+  public void testBinaryBatchingStrategies() throws Exception
+  {
+    final Map<BatchingStrategy, ObjectMapper> binaryMappers = ImmutableMap.of(
+        BatchingStrategy.SMILE, new ObjectMapper(new SmileFactory()),
+        BatchingStrategy.CBOR, new ObjectMapper(new CBORFactory())
+    );
+    final List<Event> events = Arrays.asList(
+        new UnitEvent("test", 1, ImmutableMap.of("dim", "value")),
+        ServiceMetricEvent.builder()
+                          .setDimension("foo", "bar")
+                          .setDimension("baz", new String[]{"foo", "qux"})
+                          .build("test-metric", 1234)
+                          .build("test", "localhost"),
+        new UnitEvent("test", 3)
+    );
+    final List<Object> expected = new ArrayList<>();
+    for (Event event : events) {
+      expected.add(jsonMapper.readValue(jsonMapper.writeValueAsBytes(event), Map.class));
+    }
+    for (final Map.Entry<BatchingStrategy, ObjectMapper> entry : binaryMappers.entrySet()) {
+      final BatchingStrategy batchingStrategy = entry.getKey();
+      for (final ContentEncoding contentEncoding : Arrays.asList(null, ContentEncoding.GZIP)) {
+        HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+            .setFlushMillis(Long.MAX_VALUE)
+            .setFlushCount(Integer.MAX_VALUE)
+            .setBatchingStrategy(batchingStrategy)
+            .setContentEncoding(contentEncoding)
+            .build();
+        emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+        emitter.start();
+        httpClient.setGoHandler(
+            new GoHandler()
+            {
+              @Override
+              public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+              {
+                Assert.assertEquals(
+                    ImmutableList.of(batchingStrategy.getContentType()),
+                    request.getHeaders().get(HttpHeaders.Names.CONTENT_TYPE)
+                );
+                ChannelBuffer content = request.getContent();
+                byte[] batch = new byte[content.readableBytes()];
+                content.getBytes(content.readerIndex(), batch);
+                if (contentEncoding != null) {
+                  batch = ContentEncodingTest.decompress(contentEncoding, batch, 0, batch.length);
+                }
+                Assert.assertEquals(expected, entry.getValue().readValue(batch, List.class));
+                return Futures.immediateFuture((Final) okResponse());
+              }
+            }.times(1)
+        );
+        for (Event event : events) {
+          emitter.emit(event);
+        }
+        emitter.flush();
+        closeNoFlush(emitter);
+        Assert.assertTrue(httpClient.succeeded());
+      }
+    }
+  }
+
+  @Test
+  public void testEventsDroppedWhenBufferBudgetExhausted() throws Exception
+  {
+    emitter = overflowPolicyEmitter(OverflowPolicy.DROP_NEWEST, 0);
+    final CountDownLatch requestReceived = new CountDownLatch(1);
+    final CountDownLatch collectorUnblocked = new CountDownLatch(1);
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(blockingCollector(requestReceived, collectorUnblocked, batches));
+
+    final List<UnitEvent> events = Arrays.asList(
+        new UnitEvent("test", 1),
+        new UnitEvent("test", 2),
+        new UnitEvent("test", 3),
+        new UnitEvent("test", 4)
+    );
+    // The first batch is stuck in sending, the second one is queued, so there is no buffer for the third batch.
+    emitter.emitAndReturnBatch(events.get(0)).seal();
+    emitter.emitAndReturnBatch(events.get(1)).seal();
+    Assert.assertNull(emitter.emitAndReturnBatch(events.get(2)));
+    Assert.assertEquals(1, emitter.getDroppedEvents());
+    Assert.assertEquals(2, emitter.getLiveBuffers());
+
+    collectorUnblocked.countDown();
+    waitForEmission(emitter, 1);
+    emitter.emit(events.get(3));
+    emitter.flush();
+    Assert.assertEquals(2, emitter.getLiveBuffers());
+    Assert.assertEquals(3, emitter.getTotalEmittedEvents());
+    Assert.assertEquals(
+        ImmutableList.of(
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(0))),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(1))),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(3)))
+        ),
+        batches
+    );
+  }
+
+  @Test
+  public void testOverflowPolicyDropOldest() throws Exception
+  {
+    emitter = overflowPolicyEmitter(OverflowPolicy.DROP_OLDEST, 0);
+    final CountDownLatch requestReceived = new CountDownLatch(1);
+    final CountDownLatch collectorUnblocked = new CountDownLatch(1);
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(blockingCollector(requestReceived, collectorUnblocked, batches));
+
+    final List<UnitEvent> events = Arrays.asList(
+        new UnitEvent("test", 1),
+        new UnitEvent("test", 2),
+        new UnitEvent("test", 3)
+    );
+    emitter.emitAndReturnBatch(events.get(0)).seal();
+    requestReceived.await();
+    emitter.emitAndReturnBatch(events.get(1)).seal();
+    // The first batch is being sent, so the second, queued batch is discarded to make room for the third event.
+    Assert.assertNotNull(emitter.emitAndReturnBatch(events.get(2)));
+    Assert.assertEquals(1, emitter.getDroppedBatches());
+    Assert.assertEquals(1, emitter.getDroppedEvents());
+
+    collectorUnblocked.countDown();
+    emitter.flush();
+    Assert.assertEquals(2, emitter.getLiveBuffers());
+    Assert.assertEquals(2, emitter.getTotalEmittedEvents());
+    Assert.assertEquals(
+        ImmutableList.of(
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(0))),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(2)))
+        ),
+        batches
+    );
+  }
+
+  @Test
+  public void testOverflowPolicyBlock() throws Exception
+  {
+    final long blockTimeOut = 1000;
+    emitter = overflowPolicyEmitter(OverflowPolicy.BLOCK, blockTimeOut);
+    final CountDownLatch requestReceived = new CountDownLatch(1);
+    final CountDownLatch collectorUnblocked = new CountDownLatch(1);
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(blockingCollector(requestReceived, collectorUnblocked, batches));
+
+    final List<UnitEvent> events = Arrays.asList(
+        new UnitEvent("test", 1),
+        new UnitEvent("test", 2),
+        new UnitEvent("test", 3),
+        new UnitEvent("test", 4)
+    );
+    emitter.emitAndReturnBatch(events.get(0)).seal();
+    requestReceived.await();
+    emitter.emitAndReturnBatch(events.get(1)).seal();
+
+    long startTime = System.currentTimeMillis();
+    Assert.assertNull(emitter.emitAndReturnBatch(events.get(2)));
+    Assert.assertTrue(System.currentTimeMillis() - startTime >= blockTimeOut);
+    Assert.assertEquals(1, emitter.getDroppedEvents());
+
+    new Thread()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          Thread.sleep(blockTimeOut / 10);
+        }
+        catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        collectorUnblocked.countDown();
+      }
+    }.start();
+    // Blocks until the collector is unblocked and the first batch's buffer is freed.
+    Assert.assertNotNull(emitter.emitAndReturnBatch(events.get(3)));
+    emitter.flush();
+    Assert.assertEquals(1, emitter.getDroppedEvents());
+    Assert.assertEquals(
+        ImmutableList.of(
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(0))),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(1))),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(3)))
+        ),
+        batches
+    );
+  }
+
+  @Test(timeout = 60_000)
+  public void testSpilledBatchesSentAfterRestart() throws Exception
+  {
+    final File spillDirectory = temporaryFolder.newFolder();
+    final UnitEvent event1 = new UnitEvent("test", 1);
+    final UnitEvent event2 = new UnitEvent("test", 2);
+    emitter = spillingEmitter(spillDirectory);
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout)
+              throws Exception
+          {
+            throw new IOException("Collector is down");
+          }
+        }
+    );
+    emitter.emit(event1);
+    emitter.flush();
+    Assert.assertEquals(0, emitter.getTotalEmittedEvents());
+    Assert.assertEquals(1, emitter.getSpilledBatches());
+    emitter.close();
+
+    final CountDownLatch requestReceived = new CountDownLatch(1);
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(blockingCollector(requestReceived, new CountDownLatch(0), batches));
+    emitter = spillingEmitter(spillDirectory);
+    requestReceived.await();
+    while (emitter.getSpilledBatches() > 0) {
+      Thread.sleep(10);
+    }
+    emitter.emit(event2);
+    emitter.flush();
+    Assert.assertEquals(
+        ImmutableList.of(
+            String.format("[%s]\n", jsonMapper.writeValueAsString(event1)),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(event2))
+        ),
+        batches
+    );
+  }
+
+  @Test(timeout = 60_000)
+  public void testHangingRetryDoesntBlockFreshBatches() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setMaxInFlightBatches(2)
+        .setMinRetryBackoffMillis(1)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final BlockingQueue<SettableFuture<StatusResponseHolder>> responses = new LinkedBlockingQueue<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout)
+              throws Exception
+          {
+            SettableFuture<StatusResponseHolder> response = SettableFuture.create();
+            responses.add(response);
+            return (ListenableFuture<Final>) response;
+          }
+        }
+    );
+
+    emitter.emitAndReturnBatch(new UnitEvent("test", 1)).seal();
+    responses.take().setException(new IOException("Collector is down"));
+    waitForEmission(emitter, 0);
+    // The retry of the failed batch hangs
+    SettableFuture<StatusResponseHolder> retryResponse = responses.take();
+
+    emitter.emitAndReturnBatch(new UnitEvent("test", 2)).seal();
+    SettableFuture<StatusResponseHolder> freshResponse = responses.poll(10, TimeUnit.SECONDS);
+    Assert.assertNotNull("The fresh batch is not sent while the retry is in flight", freshResponse);
+    freshResponse.set(okResponse());
+    waitForEmission(emitter, 1);
+    Assert.assertEquals(1, emitter.getTotalEmittedEvents());
+
+    retryResponse.set(okResponse());
+    while (emitter.getTotalEmittedEvents() < 2) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(1, emitter.getStats().getRetriedBatches());
+  }
+
+  @Test(timeout = 60_000)
+  public void testConcurrentInFlightBatches() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setMaxInFlightBatches(2)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final BlockingQueue<SettableFuture<StatusResponseHolder>> responses = new LinkedBlockingQueue<>();
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout)
+              throws Exception
+          {
+            batches.add(request.getContent().toString(Charsets.UTF_8));
+            SettableFuture<StatusResponseHolder> response = SettableFuture.create();
+            responses.add(response);
+            return (ListenableFuture<Final>) response;
+          }
+        }
+    );
+
+    final UnitEvent event1 = new UnitEvent("test", 1);
+    final UnitEvent event2 = new UnitEvent("test", 2);
+    emitter.emitAndReturnBatch(event1).seal();
+    emitter.emitAndReturnBatch(event2).seal();
+    // Both batches are sent without waiting for responses.
+    SettableFuture<StatusResponseHolder> response1 = responses.take();
+    SettableFuture<StatusResponseHolder> response2 = responses.take();
+    Assert.assertEquals(
+        ImmutableList.of(
+            String.format("[%s]\n", jsonMapper.writeValueAsString(event1)),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(event2))
+        ),
+        batches
+    );
+
+    // The second batch is not reported as emitted until the first one is completed.
+    response2.set(okResponse());
+    Assert.assertEquals(2, emitter.getPendingBatches());
+    response1.set(okResponse());
+    waitForEmission(emitter, 1);
+    Assert.assertEquals(0, emitter.getPendingBatches());
+    Assert.assertEquals(2, emitter.getTotalEmittedEvents());
+  }
+
+  @Test(timeout = 60_000)
+  public void testCompressionThreads() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setContentEncoding(ContentEncoding.GZIP)
+        .setMaxInFlightBatches(2)
+        .setCompressionThreads(2)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final BlockingQueue<SettableFuture<StatusResponseHolder>> responses = new LinkedBlockingQueue<>();
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    final List<String> sendingThreads = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout)
+              throws Exception
+          {
+            ChannelBuffer content = request.getContent();
+            byte[] batch = ContentEncodingTest.decompress(
+                ContentEncoding.GZIP,
+                content.array(),
+                content.arrayOffset() + content.readerIndex(),
+                content.readableBytes()
+            );
+            batches.add(new String(batch, Charsets.UTF_8));
+            sendingThreads.add(Thread.currentThread().getName());
+            SettableFuture<StatusResponseHolder> response = SettableFuture.create();
+            responses.add(response);
+            return (ListenableFuture<Final>) response;
+          }
+        }
+    );
+
+    final UnitEvent event1 = new UnitEvent("test", 1);
+    final UnitEvent event2 = new UnitEvent("test", 2);
+    emitter.emitAndReturnBatch(event1).seal();
+    emitter.emitAndReturnBatch(event2).seal();
+    SettableFuture<StatusResponseHolder> response1 = responses.take();
+    SettableFuture<StatusResponseHolder> response2 = responses.take();
+    // Batches are compressed in parallel, so they may be sent in any order.
+    Assert.assertEquals(
+        ImmutableSet.of(
+            String.format("[%s]\n", jsonMapper.writeValueAsString(event1)),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(event2))
+        ),
+        ImmutableSet.copyOf(batches)
+    );
+    for (String sendingThread : sendingThreads) {
+      Assert.assertTrue(sendingThread, sendingThread.contains("-compression-"));
+    }
+
+    response1.set(okResponse());
+    response2.set(okResponse());
+    waitForEmission(emitter, 1);
+    Assert.assertEquals(2, emitter.getTotalEmittedEvents());
+    Assert.assertEquals(2, emitter.getCompressionStats().getCompressedBatches());
+  }
+
+  @Test(timeout = 60_000)
+  public void testCompressionBuffersAccountedInMemoryBudget() throws Exception
+  {
+    final int batchSize = 1024 * 1024;
+    final List<Collection<String>> contentEncodings = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+          {
+            contentEncodings.add(request.getHeaders().get(HttpHeaders.Names.CONTENT_ENCODING));
+            return Futures.immediateFuture((Final) okResponse());
+          }
+        }.times(2)
+    );
+    for (int budgetBatches : new int[]{2, 3}) {
+      HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+          .setFlushMillis(Long.MAX_VALUE)
+          .setFlushCount(Integer.MAX_VALUE)
+          .setContentEncoding(ContentEncoding.GZIP)
+          .setMaxBatchSize(batchSize)
+          .setMaxBufferSize(budgetBatches * batchSize)
+          .build();
+      emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+      emitter.start();
+      emitter.emitAndReturnBatch(new UnitEvent("test", 1)).seal();
+      waitForEmission(emitter, 0);
+      long liveBufferBytes = emitter.getStats().getLiveBufferBytes();
+      if (budgetBatches == 2) {
+        // The sent batch and the next open batch take the whole budget, so the batch is sent uncompressed, unless the
+        // emitting thread has taken the compression buffer before the next open batch is installed. Either way the
+        // budget is not exceeded.
+        if (contentEncodings.get(0).isEmpty()) {
+          Assert.assertEquals(0, emitter.getCompressionStats().getCompressedBatches());
+        }
+        Assert.assertTrue(liveBufferBytes <= 2 * batchSize);
+      } else {
+        Assert.assertEquals(ImmutableList.of(HttpHeaders.Values.GZIP), ImmutableList.copyOf(contentEncodings.get(1)));
+        Assert.assertEquals(1, emitter.getCompressionStats().getCompressedBatches());
+        // The compression buffer is retained for reuse. The sent batch's buffer is pooled, or reused by the next open
+        // batch, if it is installed after the batch is sent.
+        Assert.assertTrue(liveBufferBytes > batchSize);
+        Assert.assertTrue(liveBufferBytes < 3 * batchSize);
+      }
+      closeNoFlush(emitter);
+    }
+    Assert.assertTrue(httpClient.succeeded());
+  }
+
+  @Test
+  public void testCompressionThreadsSharedBetweenEmitters() throws Exception
+  {
+    HttpEmitterConfig.Builder builder = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setContentEncoding(ContentEncoding.GZIP)
+        .setMaxInFlightBatches(2);
+    HttpPostEmitter emitter1 = new HttpPostEmitter(builder.setCompressionThreads(2).build(), httpClient, jsonMapper);
+    HttpPostEmitter emitter2 = new HttpPostEmitter(builder.setCompressionThreads(3).build(), httpClient, jsonMapper);
+    Assert.assertEquals(3, SharedCompressionExecutor.getPoolSize());
+    // Compression threads don't help without concurrent sending
+    HttpPostEmitter emitter3 = new HttpPostEmitter(
+        builder.setCompressionThreads(4).setMaxInFlightBatches(1).build(),
+        httpClient,
+        jsonMapper
+    );
+    Assert.assertEquals(3, SharedCompressionExecutor.getPoolSize());
+    emitter1.start();
+    emitter1.close();
+    emitter2.close();
+    emitter3.close();
+    Assert.assertEquals(0, SharedCompressionExecutor.getPoolSize());
+  }
+
+  @Test(timeout = 60_000)
+  public void testIncrementalCompression() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setContentEncoding(ContentEncoding.GZIP)
+        .setIncrementalCompression(true)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout)
+              throws Exception
+          {
+            ChannelBuffer content = request.getContent();
+            byte[] batch = ContentEncodingTest.decompress(
+                ContentEncoding.GZIP,
+                content.array(),
+                content.arrayOffset() + content.readerIndex(),
+                content.readableBytes()
+            );
+            batches.add(new String(batch, Charsets.UTF_8));
+            return Futures.immediateFuture((Final) okResponse());
+          }
+        }.times(1)
+    );
+
+    List<String> events = new ArrayList<>();
+    Batch batch = null;
+    // More than a chunk of incremental compression
+    for (int i = 0; i < 2000; i++) {
+      UnitEvent event = new UnitEvent("test", i);
+      events.add(jsonMapper.writeValueAsString(event));
+      batch = emitter.emitAndReturnBatch(event);
+    }
+    while (batch.incrementalCompression == null) {
+      Thread.sleep(10);
+    }
+    UnitEvent lastEvent = new UnitEvent("test", 2000);
+    events.add(jsonMapper.writeValueAsString(lastEvent));
+    Assert.assertSame(batch, emitter.emitAndReturnBatch(lastEvent));
+    emitter.flush();
+
+    Assert.assertTrue(httpClient.succeeded());
+    Assert.assertEquals(ImmutableList.of("[" + Joiner.on(',').join(events) + "]\n"), batches);
+    Assert.assertEquals(1, emitter.getCompressionStats().getCompressedBatches());
+    Assert.assertEquals(events.size(), emitter.getTotalEmittedEvents());
+  }
+
+  @Test(timeout = 60_000)
+  public void testStats() throws Exception
+  {
+    emitter = sizeBasedEmitter(2);
+    httpClient.setGoHandler(GoHandlers.passingHandler(okResponse()).times(2));
+
+    final UnitEvent event = new UnitEvent("test", 1);
+    final int eventLength = jsonMapper.writeValueAsBytes(event).length;
+    // The first event of a batch doesn't seal it by count
+    emitter.emit(event);
+    emitter.emit(event);
+    emitter.emit(event);
+    emitter.emit(new UnitEvent("test", 2, ImmutableMap.of("large", Strings.repeat("x", 1024 * 1024))));
+    emitter.flush();
+    Assert.assertTrue(httpClient.succeeded());
+
+    EmitterStats stats = emitter.getStats();
+    Assert.assertEquals(3, stats.getAcceptedEvents());
+    Assert.assertEquals(1, stats.getOversizedEvents());
+    Assert.assertEquals(0, stats.getDroppedEvents());
+    Assert.assertEquals(3, stats.getEmittedEvents());
+    Assert.assertEquals(1, stats.getBatchesSealedByCount());
+    Assert.assertEquals(0, stats.getBatchesSealedBySize());
+    Assert.assertEquals(1, stats.getBatchesSealedByFlush());
+    Assert.assertEquals(0, stats.getRetriedBatches());
+    // "[event,event]\n" and "[event]\n"
+    Assert.assertEquals(eventLength * 3 + 7, stats.getUncompressedBytes());
+    Assert.assertEquals(stats.getUncompressedBytes(), stats.getSentBytes());
+    Assert.assertEquals(2, stats.getSends());
+    Assert.assertTrue(stats.getSendLatencyPercentileMillis(50) >= 1);
+    Assert.assertEquals(0, stats.getBatchesToEmit());
+    Assert.assertEquals(0, stats.getFailedBatches());
+    Assert.assertTrue(stats.getLiveBufferBytes() > 0);
+
+    EmitterStats delta = emitter.getStats().minus(stats);
+    Assert.assertEquals(0, delta.getAcceptedEvents());
+    Assert.assertEquals(0, delta.getSends());
+    Assert.assertEquals(stats.getLiveBufferBytes(), delta.getLiveBufferBytes());
+
+    // The stats of emitters sending to the same URL are summed
+    Map<String, EmitterStats> composedStats =
+        EmitterStats.collect(new ComposingEmitter(ImmutableList.<Emitter>of(emitter, emitter)));
+    Assert.assertEquals(ImmutableSet.of(TARGET_URL), composedStats.keySet());
+    Assert.assertEquals(6, composedStats.get(TARGET_URL).getEmittedEvents());
+  }
+
+  @Test
+  public void testSendLatencyBuckets()
+  {
+    Assert.assertEquals(0, EmitterStats.sendLatencyBucket(0));
+    Assert.assertEquals(0, EmitterStats.sendLatencyBucket(1));
+    Assert.assertEquals(1, EmitterStats.sendLatencyBucket(2));
+    Assert.assertEquals(2, EmitterStats.sendLatencyBucket(3));
+    Assert.assertEquals(10, EmitterStats.sendLatencyBucket(1024));
+    Assert.assertEquals(11, EmitterStats.sendLatencyBucket(1025));
+    Assert.assertEquals(EmitterStats.SEND_LATENCY_BUCKETS - 1, EmitterStats.sendLatencyBucket(Long.MAX_VALUE));
+  }
+
+  @Test(timeout = 60_000)
+  public void testFlushAsync() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final BlockingQueue<SettableFuture<StatusResponseHolder>> responses = new LinkedBlockingQueue<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout)
+              throws Exception
+          {
+            SettableFuture<StatusResponseHolder> response = SettableFuture.create();
+            responses.add(response);
+            return (ListenableFuture<Final>) response;
+          }
+        }
+    );
+
+    emitter.emit(new UnitEvent("test", 1));
+    CompletableFuture<Void> flushed = emitter.flushAsync();
+    // flushAsync() returns before the batch is sent.
+    SettableFuture<StatusResponseHolder> response = responses.take();
+    Assert.assertFalse(flushed.isDone());
+    response.set(okResponse());
+    flushed.get();
+    Assert.assertEquals(1, emitter.getTotalEmittedEvents());
+
+    // Flushing an empty batch completes without sending anything.
+    emitter.flushAsync().get();
+    Assert.assertTrue(responses.isEmpty());
+
+    emitter.close();
+    try {
+      emitter.flushAsync().get();
+      Assert.fail("Expected ExecutionException");
+    }
+    catch (ExecutionException e) {
+      Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+  }
+
+  @Test(timeout = 60_000)
+  public void testFlushSealsAllStripes() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setBatchStripes(2)
+        .setMaxBufferSize(3 * HttpEmitterConfig.DEFAULT_MAX_BATCH_SIZE)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(blockingCollector(new CountDownLatch(1), new CountDownLatch(0), batches));
+
+    final List<Batch> eventBatches = new CopyOnWriteArrayList<>();
+    // Thread ids are assigned sequentially, so two threads started one after another usually write into different
+    // stripes.
+    for (int i = 0; i < 2; i++) {
+      final UnitEvent event = new UnitEvent("test", i);
+      Thread thread = new Thread()
+      {
+        @Override
+        public void run()
+        {
+          eventBatches.add(emitter.emitAndReturnBatch(event));
+        }
+      };
+      thread.start();
+      thread.join();
+    }
+    emitter.flush();
+    Assert.assertEquals(2, emitter.getTotalEmittedEvents());
+    if (eventBatches.get(0).stripe != eventBatches.get(1).stripe) {
+      Assert.assertEquals(2, batches.size());
+    }
+  }
+
+  @Test(timeout = 60_000)
+  public void testFreshBatchesNotSentWhenCircuitIsOpen() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setCircuitBreakerFailureThreshold(1)
+        .setMinRetryBackoffMillis(60_000)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final AtomicInteger requests = new AtomicInteger();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout)
+              throws Exception
+          {
+            requests.incrementAndGet();
+            throw new IOException("Collector is down");
+          }
+        }
+    );
+    emitter.emit(new UnitEvent("test", 1));
+    emitter.flush();
+    Assert.assertEquals(1, requests.get());
+    // The circuit is open, the second batch is added to failed buffers without sending.
+    emitter.emit(new UnitEvent("test", 2));
+    emitter.flush();
+    Assert.assertEquals(1, requests.get());
+    Assert.assertEquals(0, emitter.getTotalEmittedEvents());
+  }
+
+  @Test(timeout = 60_000)
+  public void testBatchesRejectedAsTooLargeAreSplit() throws Exception
+  {
+    final int collectorLimit = 100 * 1024;
+    final String tenKilobytes = Strings.repeat("x", 10 * 1024);
+    emitter = manualFlushEmitterWithBatchSizeAndBufferSize(5 * 1024 * 1024, 50 * 1024 * 1024);
+    final AtomicInteger rejectedBatches = new AtomicInteger();
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+          {
+            if (request.getContent().readableBytes() > collectorLimit) {
+              rejectedBatches.incrementAndGet();
+              return Futures.immediateFuture(
+                  (Final) new StatusResponseHolder(
+                      new HttpResponseStatus(413, "Payload Too Large"),
+                      new StringBuilder()
+                  )
+              );
+            }
+            batches.add(request.getContent().toString(Charsets.UTF_8));
+            return Futures.immediateFuture((Final) okResponse());
+          }
+        }
+    );
+    for (int i = 0; i < 30; i++) {
+      emitter.emit(new UnitEvent(tenKilobytes, i));
+    }
+    emitter.flush();
+    while (emitter.getTotalEmittedEvents() < 30) {
+      Thread.sleep(10);
+    }
+    // 300 KB batch is rejected, then two 150 KB halves are rejected, and four 75 KB quarters are accepted.
+    Assert.assertEquals(3, rejectedBatches.get());
+    Assert.assertEquals(4, batches.size());
+    int events = 0;
+    for (String batch : batches) {
+      events += jsonMapper.readValue(batch, List.class).size();
+    }
+    Assert.assertEquals(30, events);
+    Assert.assertEquals(0, emitter.getDroppedEvents());
+    // The target is lowered to 75 KB, and grows after each of the four successful sends.
+    Assert.assertTrue(emitter.getBatchSizeTarget() < 2 * collectorLimit);
+
+    // Fresh batches are sealed at the lowered target.
+    batches.clear();
+    for (int i = 0; i < 30; i++) {
+      emitter.emit(new UnitEvent(tenKilobytes, i));
+    }
+    emitter.flush();
+    while (emitter.getTotalEmittedEvents() < 60) {
+      Thread.sleep(10);
+    }
+    Assert.assertTrue(batches.size() > 2);
+    Assert.assertEquals(0, emitter.getDroppedEvents());
+  }
+
+  @Test(timeout = 60_000)
+  public void testBatchesOfScalarEventsRejectedAsTooLargeAreSplit() throws Exception
+  {
+    final int collectorLimit = 50 * 1024;
+    final String tenKilobytes = Strings.repeat("x", 10 * 1024);
+    // Events are serialized as JSON strings, rather than objects.
+    ObjectMapper scalarMapper = new ObjectMapper()
+    {
+      @Override
+      public byte[] writeValueAsBytes(Object value) throws JsonProcessingException
+      {
+        UnitEvent event = (UnitEvent) value;
+        return jsonMapper.writeValueAsBytes(event.getFeed() + event.toMap().get("metrics"));
+      }
+    };
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, scalarMapper);
+    emitter.start();
+    final List<String> events = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+          {
+            if (request.getContent().readableBytes() > collectorLimit) {
+              return Futures.immediateFuture(
+                  (Final) new StatusResponseHolder(
+                      new HttpResponseStatus(413, "Payload Too Large"),
+                      new StringBuilder()
+                  )
+              );
+            }
+            events.addAll(jsonMapper.readValue(request.getContent().toString(Charsets.UTF_8), List.class));
+            return Futures.immediateFuture((Final) okResponse());
+          }
+        }
+    );
+    List<String> expectedEvents = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      UnitEvent event = new UnitEvent(tenKilobytes, i);
+      expectedEvents.add(tenKilobytes + event.toMap().get("metrics"));
+      emitter.emit(event);
+    }
+    emitter.flush();
+    while (emitter.getTotalEmittedEvents() < 30) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(0, emitter.getDroppedEvents());
+    // The halves are retried before the following failed batches, so the order of events is kept.
+    Assert.assertEquals(expectedEvents, events);
+  }
+
+  @Test(timeout = 60_000)
+  public void testUnsplittableBatchesRejectedAsTooLargeAreRetried() throws Exception
+  {
+    final String tenKilobytes = Strings.repeat("x", 10 * 1024);
+    // Custom-serialized events, which BatchSplitter doesn't recognize.
+    ObjectMapper customMapper = new ObjectMapper()
+    {
+      @Override
+      public byte[] writeValueAsBytes(Object value)
+      {
+        return ("<" + ((UnitEvent) value).getFeed() + ">").getBytes(Charsets.UTF_8);
+      }
+    };
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, customMapper);
+    emitter.start();
+    final AtomicInteger rejectedBatches = new AtomicInteger();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+          {
+            if (rejectedBatches.getAndIncrement() == 0) {
+              return Futures.immediateFuture(
+                  (Final) new StatusResponseHolder(
+                      new HttpResponseStatus(413, "Payload Too Large"),
+                      new StringBuilder()
+                  )
+              );
+            }
+            return Futures.immediateFuture((Final) okResponse());
+          }
+        }
+    );
+    for (int i = 0; i < 30; i++) {
+      emitter.emit(new UnitEvent(tenKilobytes, i));
+    }
+    emitter.flush();
+    while (emitter.getTotalEmittedEvents() < 30) {
+      Thread.sleep(10);
+    }
+    // The batch of several events is not dropped, but kept to be retried.
+    Assert.assertEquals(0, emitter.getDroppedEvents());
+    Assert.assertEquals(0, emitter.getDroppedBatches());
+    Assert.assertTrue(emitter.getBatchSizeTarget() < 300 * 1024);
+  }
+
+  @Test(timeout = 60_000)
+  public void testStalledRetriesDontSpin() throws Exception
+  {
+    final int collectorLimit = 100 * 1024;
+    final String tenKilobytes = Strings.repeat("x", 10 * 1024);
+    // The memory budget is exhausted by the rejected batch and the open batch, so the rejected batch can't be split.
+    emitter = manualFlushEmitterWithBatchSizeAndBufferSize(2 * 1024 * 1024, 4 * 1024 * 1024);
+    final BlockingQueue<Long> requestTimes = new LinkedBlockingQueue<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+          {
+            requestTimes.add(System.nanoTime());
+            if (request.getContent().readableBytes() > collectorLimit) {
+              return Futures.immediateFuture(
+                  (Final) new StatusResponseHolder(
+                      new HttpResponseStatus(413, "Payload Too Large"),
+                      new StringBuilder()
+                  )
+              );
+            }
+            return Futures.immediateFuture((Final) okResponse());
+          }
+        }
+    );
+    for (int i = 0; i < 30; i++) {
+      emitter.emit(new UnitEvent(tenKilobytes, i));
+    }
+    emitter.flush();
+    // The fresh batch and the first retry
+    requestTimes.take();
+    long previousRequestTime = requestTimes.take();
+    // Retries wait for a freed buffer or the backoff, rather than being repeated as fast as possible.
+    for (int i = 0; i < 3; i++) {
+      long requestTime = requestTimes.take();
+      Assert.assertTrue(requestTime - previousRequestTime >= HttpPostEmitter.STALLED_RETRY_BACKOFF_NANOS);
+      previousRequestTime = requestTime;
+    }
+    Assert.assertEquals(0, emitter.getTotalEmittedEvents());
+    closeNoFlush(emitter);
+  }
+
+  @Test(timeout = 60_000)
+  public void testBinaryBatchesRejectedAsTooLargeAreSplit() throws Exception
+  {
+    final int collectorLimit = 100 * 1024;
+    final String tenKilobytes = Strings.repeat("x", 10 * 1024);
+    final Map<BatchingStrategy, ObjectMapper> binaryMappers = ImmutableMap.of(
+        BatchingStrategy.SMILE, new ObjectMapper(new SmileFactory()),
+        BatchingStrategy.CBOR, new ObjectMapper(new CBORFactory())
+    );
+    for (Map.Entry<BatchingStrategy, ObjectMapper> entry : binaryMappers.entrySet()) {
+      final BatchingStrategy batchingStrategy = entry.getKey();
+      HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+          .setFlushMillis(Long.MAX_VALUE)
+          .setFlushCount(Integer.MAX_VALUE)
+          .setBatchingStrategy(batchingStrategy)
+          .build();
+      emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+      emitter.start();
+      final ObjectMapper binaryMapper = entry.getValue();
+      final AtomicInteger rejectedBatches = new AtomicInteger();
+      final List<List<?>> batches = new CopyOnWriteArrayList<>();
+      httpClient.setGoHandler(
+          new GoHandler()
+          {
+            @Override
+            public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+            {
+              ChannelBuffer content = request.getContent();
+              if (content.readableBytes() > collectorLimit) {
+                rejectedBatches.incrementAndGet();
+                return Futures.immediateFuture(
+                    (Final) new StatusResponseHolder(
+                        new HttpResponseStatus(413, "Payload Too Large"),
+                        new StringBuilder()
+                    )
+                );
+              }
+              byte[] batch = new byte[content.readableBytes()];
+              content.getBytes(content.readerIndex(), batch);
+              batches.add(binaryMapper.readValue(batch, List.class));
+              return Futures.immediateFuture((Final) okResponse());
+            }
+          }
+      );
+      for (int i = 0; i < 30; i++) {
+        emitter.emit(new UnitEvent(tenKilobytes, i));
+      }
+      emitter.flush();
+      while (emitter.getTotalEmittedEvents() < 30) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(3, rejectedBatches.get());
+      Assert.assertEquals(4, batches.size());
+      Set<Object> values = new HashSet<>();
+      for (List<?> batch : batches) {
+        for (Object event : batch) {
+          values.add(((Map<?, ?>) ((Map<?, ?>) event).get("metrics")).get("value"));
+        }
+      }
+      Assert.assertEquals(30, values.size());
+      Assert.assertEquals(0, emitter.getDroppedEvents());
+      closeNoFlush(emitter);
+    }
+  }
+
+  @Test(timeout = 60_000)
+  public void testSingleEventBatchRejectedAsTooLargeIsDropped() throws Exception
+  {
+    emitter = manualFlushEmitterWithBatchSizeAndBufferSize(5 * 1024 * 1024, 50 * 1024 * 1024);
+    httpClient.setGoHandler(
+        GoHandlers.passingHandler(
+            new StatusResponseHolder(new HttpResponseStatus(413, "Payload Too Large"), new StringBuilder())
+        ).times(1)
+    );
+    emitter.emit(new UnitEvent("test", 1));
+    emitter.flush();
+    while (emitter.getDroppedEvents() < 1) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(1, emitter.getDroppedBatches());
+    Assert.assertEquals(0, emitter.getTotalEmittedEvents());
+    Assert.assertTrue(httpClient.succeeded());
+  }
+
+  @Test(timeout = 60_000)
+  public void testLargeEventsSentWithoutBatchBuffers() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setMaxBatchSize(1024 * 1024)
+        .setMaxLargeEventsPerBatch(3)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final CountDownLatch requestReceived = new CountDownLatch(1);
+    final CountDownLatch collectorUnblocked = new CountDownLatch(1);
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(blockingCollector(requestReceived, collectorUnblocked, batches));
+
+    final String largeString = Strings.repeat("x", 600 * 1024);
+    List<UnitEvent> events = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      events.add(new UnitEvent(largeString, i));
+    }
+    int allocatedBuffers = emitter.getAllocatedBuffers();
+    emitter.emit(events.get(0));
+    requestReceived.await();
+    // Large events queued while the first one is being sent are coalesced into a single request.
+    for (int i = 1; i < 4; i++) {
+      emitter.emit(events.get(i));
+    }
+    collectorUnblocked.countDown();
+    while (emitter.getTotalEmittedEvents() < 4) {
+      Thread.sleep(10);
+    }
+    Assert.assertEquals(
+        ImmutableList.of(
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(0))),
+            String.format(
+                "[%s,%s,%s]\n",
+                jsonMapper.writeValueAsString(events.get(1)),
+                jsonMapper.writeValueAsString(events.get(2)),
+                jsonMapper.writeValueAsString(events.get(3))
+            )
+        ),
+        batches
+    );
+    Assert.assertEquals(allocatedBuffers, emitter.getAllocatedBuffers());
+  }
+
+  @Test(timeout = 60_000)
+  public void testFailedLargeEventsRetriedOneByOne() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setMaxBatchSize(1024 * 1024)
+        .setMaxLargeEventsPerBatch(2)
+        .setContentEncoding(ContentEncoding.GZIP)
+        .setMinRetryBackoffMillis(0)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final AtomicInteger requests = new AtomicInteger();
+    final CountDownLatch collectorUnblocked = new CountDownLatch(1);
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(
+        new GoHandler()
+        {
+          @Override
+          public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+          {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            CompressionUtils.gunzip(new ByteArrayInputStream(request.getContent().array()), baos);
+            String batch = new String(baos.toByteArray(), Charsets.UTF_8);
+            if (requests.getAndIncrement() < 2) {
+              collectorUnblocked.await();
+              return Futures.immediateFuture(
+                  (Final) new StatusResponseHolder(
+                      new HttpResponseStatus(413, "Payload Too Large"),
+                      new StringBuilder()
+                  )
+              );
+            }
+            batches.add(batch);
+            return Futures.immediateFuture((Final) okResponse());
+          }
+        }
+    );
+
+    final String largeString = Strings.repeat("x", 600 * 1024);
+    List<UnitEvent> events = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      events.add(new UnitEvent(largeString, i));
+    }
+    emitter.emit(events.get(0));
+    while (requests.get() == 0) {
+      Thread.sleep(10);
+    }
+    emitter.emit(events.get(1));
+    emitter.emit(events.get(2));
+    collectorUnblocked.countDown();
+    while (emitter.getTotalEmittedEvents() < 2) {
+      Thread.sleep(10);
+    }
+    // The first event is dropped, because a batch of a single event cannot be split. The other two are rejected in a
+    // single request, and then are retried one by one.
+    Assert.assertEquals(1, emitter.getDroppedEvents());
+    Assert.assertEquals(
+        ImmutableList.of(
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(1))),
+            String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(2)))
+        ),
+        batches
+    );
+  }
+
+  @Test(timeout = 60_000)
+  public void testGrowableBatchBuffers() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(1000)
+        .setBatchStripes(1)
+        .setInitialBatchBufferSize(1024)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    // Batch buffers are allocated when the first event is added.
+    Assert.assertEquals(0, emitter.getLiveBuffers());
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(blockingCollector(new CountDownLatch(1), new CountDownLatch(0), batches));
+
+    final int threads = 4;
+    final int eventsPerThread = 1000;
+    List<Thread> emittingThreads = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      final int thread = i;
+      emittingThreads.add(
+          new Thread()
+          {
+            @Override
+            public void run()
+            {
+              for (int j = 0; j < eventsPerThread; j++) {
+                emitter.emit(new UnitEvent("test", thread * eventsPerThread + j));
+              }
+            }
+          }
+      );
+    }
+    for (Thread thread : emittingThreads) {
+      thread.start();
+    }
+    for (Thread thread : emittingThreads) {
+      thread.join();
+    }
+    emitter.flush();
+
+    Assert.assertEquals(threads * eventsPerThread, emitter.getTotalEmittedEvents());
+    Set<Integer> values = new HashSet<>();
+    for (String batch : batches) {
+      for (Object event : jsonMapper.readValue(batch, List.class)) {
+        Map<?, ?> metrics = (Map<?, ?>) ((Map<?, ?>) event).get("metrics");
+        Assert.assertTrue(values.add((Integer) metrics.get("value")));
+      }
+    }
+    Assert.assertEquals(threads * eventsPerThread, values.size());
+    Assert.assertTrue(batches.size() > 1);
+  }
+
+  @Test(timeout = 60_000)
+  public void testEmittingThreadParkedWhenIdle() throws Exception
+  {
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(100)
+        .setFlushCount(Integer.MAX_VALUE)
+        .setMaxPooledBufferSize(0)
+        .build();
+    emitter = new HttpPostEmitter(config, httpClient, jsonMapper);
+    emitter.start();
+    final List<String> batches = new CopyOnWriteArrayList<>();
+    httpClient.setGoHandler(blockingCollector(new CountDownLatch(1), new CountDownLatch(0), batches));
+
+    for (int i = 1; i <= 2; i++) {
+      // No events, no failed batches and no pooled buffers, nothing to wake up for.
+      while (emitter.getEmittingThreadState() != Thread.State.WAITING) {
+        Thread.sleep(10);
+      }
+      // The first event arms the time-based flush.
+      emitter.emit(new UnitEvent("test", i));
+      while (emitter.getTotalEmittedEvents() < i) {
+        Thread.sleep(10);
+      }
+    }
+    Assert.assertEquals(2, batches.size());
+  }
+
+  /**
+   * Collector which blocks on every request until collectorUnblocked is counted down.
+   */
+  private static GoHandler blockingCollector(
+      final CountDownLatch requestReceived,
+      final CountDownLatch collectorUnblocked,
+      final List<String> batches
+  )
+  {
+    return new GoHandler()
+    {
+      @Override
+      public <Intermediate, Final> ListenableFuture<Final> go(Request request, HttpResponseHandler<Intermediate, Final> handler, Duration requestReadTimeout) throws Exception
+      {
+        requestReceived.countDown();
+        collectorUnblocked.await();
+        batches.add(request.getContent().toString(Charsets.UTF_8));
+        return Futures.immediateFuture((Final) okResponse());
+      }
+    };
+  }
+
   private void closeAndExpectFlush(Emitter emitter) throws IOException
   {
     httpClient.setGoHandler(GoHandlers.passingHandler(okResponse()).times(1));
@@ -40,6 +40,24 @@ public class HttpEmitterConfigTest
     Assert.assertEquals(5 * 1024 * 1024, config.getMaxBatchSize());
     Assert.assertEquals(250 * 1024 * 1024, config.getMaxBufferSize());
     Assert.assertEquals(Long.MAX_VALUE, config.getFlushTimeOut());
+    Assert.assertEquals(OverflowPolicy.DROP_NEWEST, config.getOverflowPolicy());
+    Assert.assertEquals(1000, config.getOverflowBlockTimeOut());
+    Assert.assertNull(config.getSpillDirectory());
+    Assert.assertEquals(64 * 1024 * 1024, config.getSpillSegmentSize());
+    Assert.assertEquals(1024 * 1024 * 1024, config.getMaxSpillSize());
+    Assert.assertEquals(1, config.getMaxInFlightBatches());
+    Assert.assertEquals(1, config.getBatchStripes());
+    Assert.assertEquals(1000, config.getMinRetryBackoffMillis());
+    Assert.assertEquals(60_000, config.getMaxRetryBackoffMillis());
+    Assert.assertEquals(3, config.getCircuitBreakerFailureThreshold());
+    Assert.assertEquals(-1, config.getCompressionLevel());
+    Assert.assertEquals(0, config.getCompressionThreads());
+    Assert.assertFalse(config.isIncrementalCompression());
+    Assert.assertEquals(1, config.getMaxLargeEventsPerBatch());
+    Assert.assertEquals(25 * 1024 * 1024, config.getMaxPooledBufferSize());
+    Assert.assertEquals(60 * 1000, config.getBufferPoolIdleMillis());
+    Assert.assertFalse(config.isBufferSizeClasses());
+    Assert.assertEquals(0, config.getInitialBatchBufferSize());
   }
 
   @Test
@@ -59,6 +77,24 @@ public class HttpEmitterConfigTest
     Assert.assertEquals(5 * 1024 * 1024, config.getMaxBatchSize());
     Assert.assertEquals(250 * 1024 * 1024, config.getMaxBufferSize());
     Assert.assertEquals(Long.MAX_VALUE, config.getFlushTimeOut());
+    Assert.assertEquals(OverflowPolicy.DROP_NEWEST, config.getOverflowPolicy());
+    Assert.assertEquals(1000, config.getOverflowBlockTimeOut());
+    Assert.assertNull(config.getSpillDirectory());
+    Assert.assertEquals(64 * 1024 * 1024, config.getSpillSegmentSize());
+    Assert.assertEquals(1024 * 1024 * 1024, config.getMaxSpillSize());
+    Assert.assertEquals(1, config.getMaxInFlightBatches());
+    Assert.assertEquals(1, config.getBatchStripes());
+    Assert.assertEquals(1000, config.getMinRetryBackoffMillis());
+    Assert.assertEquals(60_000, config.getMaxRetryBackoffMillis());
+    Assert.assertEquals(3, config.getCircuitBreakerFailureThreshold());
+    Assert.assertEquals(-1, config.getCompressionLevel());
+    Assert.assertEquals(0, config.getCompressionThreads());
+    Assert.assertFalse(config.isIncrementalCompression());
+    Assert.assertEquals(1, config.getMaxLargeEventsPerBatch());
+    Assert.assertEquals(25 * 1024 * 1024, config.getMaxPooledBufferSize());
+    Assert.assertEquals(60 * 1000, config.getBufferPoolIdleMillis());
+    Assert.assertFalse(config.isBufferSizeClasses());
+    Assert.assertEquals(0, config.getInitialBatchBufferSize());
   }
 
   @Test
@@ -73,6 +109,24 @@ public class HttpEmitterConfigTest
     props.setProperty("com.metamx.emitter.maxBatchSize", "4");
     props.setProperty("com.metamx.emitter.maxBufferSize", "8");
     props.setProperty("com.metamx.emitter.flushTimeOut", "1000");
+    props.setProperty("com.metamx.emitter.overflowPolicy", "BLOCK");
+    props.setProperty("com.metamx.emitter.overflowBlockTimeOut", "100");
+    props.setProperty("com.metamx.emitter.spillDirectory", "/tmp/spill");
+    props.setProperty("com.metamx.emitter.spillSegmentSize", "1000");
+    props.setProperty("com.metamx.emitter.maxSpillSize", "10000");
+    props.setProperty("com.metamx.emitter.maxInFlightBatches", "4");
+    props.setProperty("com.metamx.emitter.batchStripes", "8");
+    props.setProperty("com.metamx.emitter.minRetryBackoffMillis", "10");
+    props.setProperty("com.metamx.emitter.maxRetryBackoffMillis", "100");
+    props.setProperty("com.metamx.emitter.circuitBreakerFailureThreshold", "5");
+    props.setProperty("com.metamx.emitter.compressionLevel", "6");
+    props.setProperty("com.metamx.emitter.compressionThreads", "2");
+    props.setProperty("com.metamx.emitter.incrementalCompression", "true");
+    props.setProperty("com.metamx.emitter.maxLargeEventsPerBatch", "3");
+    props.setProperty("com.metamx.emitter.maxPooledBufferSize", "1048576");
+    props.setProperty("com.metamx.emitter.bufferPoolIdleMillis", "5000");
+    props.setProperty("com.metamx.emitter.bufferSizeClasses", "true");
+    props.setProperty("com.metamx.emitter.initialBatchBufferSize", "4096");
 
     final ObjectMapper objectMapper = new ObjectMapper();
     final HttpEmitterConfig config = objectMapper.convertValue(Emitters.makeCustomFactoryMap(props), HttpEmitterConfig.class);
@@ -85,6 +139,24 @@ public class HttpEmitterConfigTest
     Assert.assertEquals(4, config.getMaxBatchSize());
     Assert.assertEquals(8, config.getMaxBufferSize());
     Assert.assertEquals(1000, config.getFlushTimeOut());
+    Assert.assertEquals(OverflowPolicy.BLOCK, config.getOverflowPolicy());
+    Assert.assertEquals(100, config.getOverflowBlockTimeOut());
+    Assert.assertEquals("/tmp/spill", config.getSpillDirectory());
+    Assert.assertEquals(1000, config.getSpillSegmentSize());
+    Assert.assertEquals(10000, config.getMaxSpillSize());
+    Assert.assertEquals(4, config.getMaxInFlightBatches());
+    Assert.assertEquals(8, config.getBatchStripes());
+    Assert.assertEquals(10, config.getMinRetryBackoffMillis());
+    Assert.assertEquals(100, config.getMaxRetryBackoffMillis());
+    Assert.assertEquals(5, config.getCircuitBreakerFailureThreshold());
+    Assert.assertEquals(6, config.getCompressionLevel());
+    Assert.assertEquals(2, config.getCompressionThreads());
+    Assert.assertTrue(config.isIncrementalCompression());
+    Assert.assertEquals(3, config.getMaxLargeEventsPerBatch());
+    Assert.assertEquals(1048576, config.getMaxPooledBufferSize());
+    Assert.assertEquals(5000, config.getBufferPoolIdleMillis());
+    Assert.assertTrue(config.isBufferSizeClasses());
+    Assert.assertEquals(4096, config.getInitialBatchBufferSize());
   }
 
   @Test
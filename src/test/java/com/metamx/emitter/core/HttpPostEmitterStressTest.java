@@ -57,13 +57,25 @@ public class HttpPostEmitterStressTest
 
   @Test
   public void eventCountBased() throws InterruptedException, IOException
+  {
+    testEventCountBased(1);
+  }
+
+  @Test
+  public void eventCountBasedStriped() throws InterruptedException, IOException
+  {
+    testEventCountBased(4);
+  }
+
+  private void testEventCountBased(int batchStripes) throws InterruptedException, IOException
   {
     HttpEmitterConfig config = new HttpEmitterConfig.Builder("http://foo.bar")
         .setFlushMillis(100)
         .setFlushCount(4)
         .setBatchingStrategy(BatchingStrategy.ONLY_EVENTS)
         .setMaxBatchSize(1024 * 1024)
-        .setMaxBufferSize(1024 * 1024)
+        .setMaxBufferSize(64 * 1024 * 1024)
+        .setBatchStripes(batchStripes)
         .build();
     final HttpPostEmitter emitter = new HttpPostEmitter(config, httpClient, objectMapper);
     int nThreads = Runtime.getRuntime().availableProcessors() * 2;
@@ -1,6 +1,7 @@
 package com.metamx.emitter.core;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Strings;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -52,4 +53,20 @@ public class ParametrizedUriEmitterConfigTest
     Assert.assertEquals(8, config.getMaxBufferSize());
     Assert.assertEquals(1000, config.getFlushTimeOut());
   }
+
+  @Test
+  public void testLongUrisHaveDistinctSpillDirectoryNames()
+  {
+    Assert.assertEquals(
+        "http%3A%2F%2Fexample.com%2Ftopic",
+        ParametrizedUriEmitterConfig.spillDirectoryName("http://example.com/topic")
+    );
+    final String longUri = "http://example.com/" + Strings.repeat("topic", 100);
+    final String name1 = ParametrizedUriEmitterConfig.spillDirectoryName(longUri + "1");
+    final String name2 = ParametrizedUriEmitterConfig.spillDirectoryName(longUri + "2");
+    Assert.assertEquals(255, name1.length());
+    Assert.assertEquals(255, name2.length());
+    Assert.assertTrue(name1.startsWith("http%3A%2F%2Fexample.com%2Ftopic"));
+    Assert.assertNotEquals(name1, name2);
+  }
 }
@@ -142,6 +142,13 @@ public class ParametrizedUriEmitterTest
         "http://example.com/test1", String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(0))),
         "http://example.com/test2", String.format("[%s]\n", jsonMapper.writeValueAsString(events.get(1))));
     Assert.assertEquals(expected, results);
+
+    Map<String, EmitterStats> stats = ((ParametrizedUriEmitter) emitter).getStats();
+    Assert.assertEquals(expected.keySet(), stats.keySet());
+    for (EmitterStats uriStats : stats.values()) {
+      Assert.assertEquals(1, uriStats.getEmittedEvents());
+      Assert.assertEquals(1, uriStats.getBatchesSealedByFlush());
+    }
   }
 
   @Test
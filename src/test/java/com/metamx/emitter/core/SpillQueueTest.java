@@ -0,0 +1,233 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.metamx.common.ISE;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class SpillQueueTest
+{
+  private static final int MAX_BATCH_LENGTH = 100;
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testAppendPeekRemove() throws IOException
+  {
+    try (SpillQueue queue = new SpillQueue(temporaryFolder.newFolder(), MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      Assert.assertTrue(queue.isEmpty());
+      Assert.assertNull(queue.peek(new byte[MAX_BATCH_LENGTH]));
+      Assert.assertTrue(append(queue, "first", 1));
+      Assert.assertTrue(append(queue, "second", 2));
+      Assert.assertEquals(2, queue.size());
+
+      assertPeek(queue, "first", 1);
+      // peek() doesn't remove the batch
+      assertPeek(queue, "first", 1);
+      queue.remove();
+      assertPeek(queue, "second", 2);
+      queue.remove();
+      Assert.assertTrue(queue.isEmpty());
+      Assert.assertNull(queue.peek(new byte[MAX_BATCH_LENGTH]));
+    }
+  }
+
+  @Test
+  public void testBatchesKeptAfterReopen() throws IOException
+  {
+    File directory = temporaryFolder.newFolder();
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      append(queue, "first", 1);
+      append(queue, "second", 2);
+      append(queue, "third", 3);
+      queue.remove();
+    }
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      Assert.assertEquals(2, queue.size());
+      assertPeek(queue, "second", 2);
+      queue.remove();
+      append(queue, "fourth", 4);
+      assertPeek(queue, "third", 3);
+      queue.remove();
+      assertPeek(queue, "fourth", 4);
+      queue.remove();
+      Assert.assertTrue(queue.isEmpty());
+    }
+  }
+
+  @Test
+  public void testSegmentRotationAndSizeLimit() throws IOException
+  {
+    File directory = temporaryFolder.newFolder();
+    // Segments fit one such batch each, two segments at most
+    String first = Strings.repeat("1", 60);
+    String second = Strings.repeat("2", 60);
+    String third = Strings.repeat("3", 60);
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 0, 250)) {
+      Assert.assertTrue(append(queue, first, 1));
+      Assert.assertTrue(append(queue, second, 2));
+      Assert.assertFalse(append(queue, third, 3));
+      Assert.assertEquals(2, countSegmentFiles(directory));
+
+      assertPeek(queue, first, 1);
+      queue.remove();
+      Assert.assertTrue(append(queue, third, 3));
+      // The fully read segment is deleted
+      Assert.assertEquals(2, countSegmentFiles(directory));
+      assertPeek(queue, second, 2);
+      queue.remove();
+      assertPeek(queue, third, 3);
+      queue.remove();
+      Assert.assertTrue(queue.isEmpty());
+    }
+  }
+
+  @Test
+  public void testTooLargeBatchDiscarded() throws IOException
+  {
+    try (SpillQueue queue = new SpillQueue(temporaryFolder.newFolder(), MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      append(queue, "large batch", 1);
+      append(queue, "small", 2);
+      byte[] target = new byte[5];
+      SpillQueue.SpilledBatch spilledBatch = queue.peek(target);
+      Assert.assertNotNull(spilledBatch);
+      Assert.assertEquals(2, spilledBatch.eventCount);
+      Assert.assertEquals(1, queue.size());
+    }
+  }
+
+  @Test
+  public void testInterruptedAppendLeftoverIgnoredAfterReopen() throws IOException
+  {
+    File directory = temporaryFolder.newFolder();
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      append(queue, "first", 1);
+    }
+    // Simulates a crash in the middle of appending a record: its contents are written, but not its length. The
+    // contents contain what looks like a complete record, right after the space a shorter record would take.
+    int position = 8 + 8 + "first".length();
+    try (RandomAccessFile segment = new RandomAccessFile(onlySegmentFile(directory), "rw")) {
+      segment.seek(position + 4);
+      segment.writeInt(9);
+      segment.writeByte('x');
+      segment.writeInt("stale".length());
+      segment.writeInt(9);
+      segment.write("stale".getBytes(Charsets.UTF_8));
+    }
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      Assert.assertEquals(1, queue.size());
+      append(queue, "x", 2);
+    }
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      Assert.assertEquals(2, queue.size());
+      assertPeek(queue, "first", 1);
+      queue.remove();
+      assertPeek(queue, "x", 2);
+      queue.remove();
+      Assert.assertTrue(queue.isEmpty());
+    }
+  }
+
+  @Test
+  public void testTruncatedRecordDroppedAfterReopen() throws IOException
+  {
+    File directory = temporaryFolder.newFolder();
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      append(queue, "first", 1);
+      append(queue, "second", 2);
+    }
+    try (RandomAccessFile segment = new RandomAccessFile(onlySegmentFile(directory), "rw")) {
+      segment.setLength(8 + 8 + "first".length() + 8 + 3);
+    }
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      Assert.assertEquals(1, queue.size());
+      append(queue, "third", 3);
+    }
+    try (SpillQueue queue = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      Assert.assertEquals(2, queue.size());
+      assertPeek(queue, "first", 1);
+      queue.remove();
+      assertPeek(queue, "third", 3);
+      queue.remove();
+      Assert.assertTrue(queue.isEmpty());
+    }
+  }
+
+  @Test
+  public void testDirectoryLocked() throws IOException
+  {
+    File directory = temporaryFolder.newFolder();
+    try (SpillQueue ignored = new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024)) {
+      try {
+        new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024);
+        Assert.fail("Expected ISE");
+      }
+      catch (ISE e) {
+        // expected
+      }
+    }
+    // The lock is released on close
+    new SpillQueue(directory, MAX_BATCH_LENGTH, 1024, 1024 * 1024).close();
+  }
+
+  private static boolean append(SpillQueue queue, String batch, int eventCount) throws IOException
+  {
+    byte[] bytes = batch.getBytes(Charsets.UTF_8);
+    return queue.append(bytes, bytes.length, eventCount);
+  }
+
+  private static void assertPeek(SpillQueue queue, String expectedBatch, int expectedEventCount)
+  {
+    byte[] target = new byte[MAX_BATCH_LENGTH];
+    SpillQueue.SpilledBatch spilledBatch = queue.peek(target);
+    Assert.assertNotNull(spilledBatch);
+    Assert.assertEquals(expectedBatch, new String(target, 0, spilledBatch.length, Charsets.UTF_8));
+    Assert.assertEquals(expectedEventCount, spilledBatch.eventCount);
+  }
+
+  private static File onlySegmentFile(File directory)
+  {
+    Assert.assertEquals(1, countSegmentFiles(directory));
+    for (File file : directory.listFiles()) {
+      if (file.getName().endsWith(".spill")) {
+        return file;
+      }
+    }
+    throw new AssertionError();
+  }
+
+  private static int countSegmentFiles(File directory)
+  {
+    int count = 0;
+    for (String name : directory.list()) {
+      if (name.endsWith(".spill")) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
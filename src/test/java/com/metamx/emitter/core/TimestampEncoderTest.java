@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.core;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.BuddhistChronology;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Random;
+
+public class TimestampEncoderTest
+{
+  private static final DateTimeZone[] ZONES = {
+      DateTimeZone.UTC,
+      DateTimeZone.forID("America/New_York"),
+      DateTimeZone.forID("Asia/Kolkata"),
+      DateTimeZone.forOffsetMillis(-(3 * 3600 + 30 * 60) * 1000)
+  };
+
+  @Test
+  public void testSameAsDateTimeToString()
+  {
+    Random random = new Random(42);
+    for (DateTimeZone zone : ZONES) {
+      assertSameAsToString(new DateTime(0, zone));
+      assertSameAsToString(new DateTime(-1, zone));
+      assertSameAsToString(new DateTime(zone));
+      // Years before 0 and after 9999
+      assertSameAsToString(new DateTime(-100_000_000_000_000L, zone));
+      assertSameAsToString(new DateTime(300_000_000_000_000L, zone));
+      long now = System.currentTimeMillis();
+      for (int i = 0; i < 1000; i++) {
+        // Consecutive events are mostly in the same second, sometimes not
+        assertSameAsToString(new DateTime(now + random.nextInt(10_000) - 5000, zone));
+        assertSameAsToString(new DateTime(random.nextLong() % 10_000_000_000_000L, zone));
+      }
+    }
+    // Around a DST transition, the local time is the same for different instants
+    DateTime beforeTransition = new DateTime(2017, 11, 5, 1, 59, 59, 999, DateTimeZone.forID("America/New_York"));
+    for (int i = 0; i < 3; i++) {
+      assertSameAsToString(beforeTransition.plusMillis(i));
+      assertSameAsToString(beforeTransition.plusHours(1).plusMillis(i));
+    }
+  }
+
+  @Test
+  public void testMillisAndZone()
+  {
+    long now = System.currentTimeMillis();
+    for (DateTimeZone zone : new DateTimeZone[]{DateTimeZone.getDefault(), DateTimeZone.forOffsetHours(-7)}) {
+      for (long millis : new long[]{0, -1, now, now + 999, now + 1000}) {
+        Assert.assertEquals(new DateTime(millis, zone).toString(), TimestampEncoder.toString(millis, zone));
+      }
+    }
+  }
+
+  @Test
+  public void testNonIsoChronology()
+  {
+    assertSameAsToString(new DateTime(BuddhistChronology.getInstance(DateTimeZone.UTC)));
+  }
+
+  @Test
+  public void testWriteStringField() throws Exception
+  {
+    DateTime dateTime = new DateTime(1_500_000_000_123L, DateTimeZone.forID("Asia/Kolkata"));
+    StringWriter writer = new StringWriter();
+    JsonGenerator gen = new ObjectMapper().getFactory().createGenerator(writer);
+    gen.writeStartObject();
+    TimestampEncoder.writeStringField(gen, "timestamp", dateTime);
+    gen.writeEndObject();
+    gen.close();
+    Assert.assertEquals("{\"timestamp\":\"2017-07-14T08:10:00.123+05:30\"}", writer.toString());
+  }
+
+  private static void assertSameAsToString(DateTime dateTime)
+  {
+    Assert.assertEquals(dateTime.toString(), TimestampEncoder.toString(dateTime));
+  }
+}
@@ -16,13 +16,19 @@
 
 package com.metamx.emitter.service;
 
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.metamx.emitter.service.AlertEvent.Severity;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Map;
 
 /**
@@ -165,6 +171,84 @@ public class AlertEventTest
     }
   }
 
+  @Test
+  public void testSerializedAsMap() throws Exception
+  {
+    ObjectMapper jsonMapper = new ObjectMapper();
+    AlertEvent event = AlertBuilder.create("blargy")
+        .severity(Severity.SERVICE_FAILURE)
+        .addData("something1", "a")
+        .addData("something2", ImmutableMap.of("nested", 1))
+        .build("test", "localhost");
+    Assert.assertEquals(jsonMapper.writeValueAsString(event.toMap()), jsonMapper.writeValueAsString(event));
+  }
+
+  @Test
+  public void testSerializedWithServiceDimensions() throws Exception
+  {
+    ServiceDimensions serviceDimensions = new ServiceDimensions(
+        ImmutableMap.of("service", "te\"st", "host", "local\nhost")
+    );
+    AlertEvent event = AlertBuilder.create("blargy")
+        .addData("something1", "a")
+        .build(serviceDimensions);
+    Assert.assertEquals("te\"st", event.getService());
+    Assert.assertEquals("local\nhost", event.getHost());
+    ObjectMapper jsonMapper = new ObjectMapper();
+    Assert.assertArrayEquals(jsonMapper.writeValueAsBytes(event.toMap()), jsonMapper.writeValueAsBytes(event));
+    ObjectWriter prettyWriter = jsonMapper.writerWithDefaultPrettyPrinter();
+    Assert.assertEquals(prettyWriter.writeValueAsString(event.toMap()), prettyWriter.writeValueAsString(event));
+  }
+
+  @Test
+  public void testSerializationFailsOnServiceDimensionNamedAsField() throws Exception
+  {
+    ObjectMapper jsonMapper = new ObjectMapper();
+    ImmutableMap<String, String> serviceDims = ImmutableMap.of("service", "test", "severity", "foo");
+    AlertBuilder alertBuilder = AlertBuilder.create("blargy");
+    for (AlertEvent event : Arrays.asList(
+        alertBuilder.build(serviceDims),
+        alertBuilder.build(new ServiceDimensions(serviceDims))
+    )) {
+      try {
+        event.toMap();
+        Assert.fail();
+      }
+      catch (IllegalArgumentException e) {
+        // Expected, as below
+      }
+      for (int i = 0; i < 2; i++) {
+        try {
+          jsonMapper.writeValueAsBytes(event);
+          Assert.fail();
+        }
+        catch (JsonMappingException e) {
+          Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCreatedTimeMillis() throws Exception
+  {
+    AlertEvent event = AlertBuilder.create("blargy").build("test", "localhost");
+    Assert.assertEquals(new DateTime(event.getCreatedTimeMillis()).toString(), event.toMap().get("timestamp"));
+    Assert.assertEquals(event.getCreatedTimeMillis(), event.getCreatedTime().getMillis());
+
+    DateTime createdTime = new DateTime(42, DateTimeZone.forOffsetHours(3));
+    event = new AlertEvent(
+        createdTime,
+        "test",
+        "localhost",
+        Severity.ANOMALY,
+        "blargy",
+        ImmutableMap.<String, Object>of()
+    );
+    Assert.assertSame(createdTime, event.getCreatedTime());
+    Assert.assertEquals(createdTime.toString(), event.toMap().get("timestamp"));
+  }
+
   public Map<String, Object> contents(AlertEvent a)
   {
     return Maps.filterKeys(a.toMap(), new Predicate<String>()
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 Metamarkets Group Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.metamx.emitter.service;
+
+import com.metamx.emitter.core.EmitterTest;
+import com.metamx.emitter.core.Event;
+import com.metamx.emitter.core.HttpEmitterConfig;
+import com.metamx.emitter.core.HttpPostEmitter;
+import com.metamx.emitter.core.NoopEmitter;
+import com.metamx.http.client.GoHandlers;
+import com.metamx.http.client.MockHttpClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class EmitterStatsMonitorTest
+{
+  private static final String TARGET_URL = "http://metrics.foo.bar/";
+
+  @Test
+  public void testMonitor() throws Exception
+  {
+    MockHttpClient httpClient = new MockHttpClient();
+    httpClient.setGoHandler(GoHandlers.passingHandler(EmitterTest.okResponse()).times(2));
+    HttpEmitterConfig config = new HttpEmitterConfig.Builder(TARGET_URL)
+        .setFlushMillis(Long.MAX_VALUE)
+        .setFlushCount(Integer.MAX_VALUE)
+        .build();
+    HttpPostEmitter httpPostEmitter = new HttpPostEmitter(config, httpClient);
+    httpPostEmitter.start();
+    final List<ServiceMetricEvent> metrics = new ArrayList<>();
+    ServiceEmitter serviceEmitter = new ServiceEmitter(
+        "test",
+        "localhost",
+        new NoopEmitter()
+        {
+          @Override
+          public void emit(Event event)
+          {
+            metrics.add((ServiceMetricEvent) event);
+          }
+        }
+    );
+    EmitterStatsMonitor monitor = new EmitterStatsMonitor(serviceEmitter, httpPostEmitter, 60_000);
+
+    httpPostEmitter.emit(new UnitEvent("test", 1));
+    httpPostEmitter.emit(new UnitEvent("test", 2));
+    httpPostEmitter.flush();
+    monitor.monitor();
+    Assert.assertEquals(2, findMetric(metrics, "emitter/events/emitted", null).getValue().longValue());
+    Assert.assertEquals(1, findMetric(metrics, "emitter/batches/sealed", "flush").getValue().longValue());
+    Assert.assertEquals(0, findMetric(metrics, "emitter/batches/sealed", "count").getValue().longValue());
+    Assert.assertEquals(1, findMetric(metrics, "emitter/send/count", null).getValue().longValue());
+    Assert.assertNotNull(findMetric(metrics, "emitter/send/time/p99", null));
+    Assert.assertNotNull(findMetric(metrics, "emitter/send/time/max", null));
+    Assert.assertNull(findMetric(metrics, "emitter/send/time/p100", null));
+    Assert.assertEquals(TARGET_URL, findMetric(metrics, "emitter/events/emitted", null).getUserDims().get("url"));
+
+    // Counters are emitted as changes since the previous emission
+    metrics.clear();
+    httpPostEmitter.emit(new UnitEvent("test", 3));
+    httpPostEmitter.flush();
+    monitor.monitor();
+    Assert.assertEquals(1, findMetric(metrics, "emitter/events/emitted", null).getValue().longValue());
+    Assert.assertEquals(1, findMetric(metrics, "emitter/batches/sealed", "flush").getValue().longValue());
+
+    // No send latency percentiles without sends
+    metrics.clear();
+    monitor.monitor();
+    Assert.assertEquals(0, findMetric(metrics, "emitter/events/emitted", null).getValue().longValue());
+    Assert.assertNull(findMetric(metrics, "emitter/send/time/p99", null));
+    Assert.assertNull(findMetric(metrics, "emitter/send/time/max", null));
+    Assert.assertTrue(findMetric(metrics, "emitter/buffers/liveBytes", null).getValue().longValue() > 0);
+    Assert.assertNotNull(findMetric(metrics, "emitter/buffers/pooledBytes", null));
+
+    httpPostEmitter.close();
+    Assert.assertTrue(httpClient.succeeded());
+  }
+
+  private static ServiceMetricEvent findMetric(List<ServiceMetricEvent> metrics, String metric, String reason)
+  {
+    for (ServiceMetricEvent event : metrics) {
+      if (event.getMetric().equals(metric) && (reason == null || reason.equals(event.getUserDims().get("reason")))) {
+        return event;
+      }
+    }
+    return null;
+  }
+}
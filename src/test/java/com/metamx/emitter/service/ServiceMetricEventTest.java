@@ -16,8 +16,13 @@
 
 package com.metamx.emitter.service;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.google.common.collect.ImmutableMap;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -261,6 +266,150 @@ public class ServiceMetricEventTest
     );
   }
 
+  @Test
+  public void testSerializedAsMap() throws Exception
+  {
+    ObjectMapper jsonMapper = new ObjectMapper();
+    ServiceMetricEvent event = ServiceMetricEvent.builder()
+                                                 .setDimension("foo", "bar")
+                                                 .setDimension("baz", new String[]{"foo", "qux"})
+                                                 .build(new DateTime(42), "test-metric", 12.34)
+                                                 .build(
+                                                     ImmutableMap.of("service", "test", "host", "localhost", "x", "y")
+                                                 );
+    Assert.assertEquals(jsonMapper.writeValueAsString(event.toMap()), jsonMapper.writeValueAsString(event));
+  }
+
+  @Test
+  public void testSerializedWithServiceDimensions() throws Exception
+  {
+    ServiceDimensions serviceDimensions = new ServiceDimensions(
+        ImmutableMap.of("service", "te\"st", "host", "local\nhost", "\u00fcn\u00efcode", "\u0001\\")
+    );
+    ServiceMetricEvent event = ServiceMetricEvent.builder()
+                                                 .setDimension("foo", "bar")
+                                                 .build(new DateTime(42), "test-metric", 1234)
+                                                 .build(serviceDimensions);
+    ObjectMapper jsonMapper = new ObjectMapper();
+    Assert.assertEquals(jsonMapper.writeValueAsString(event.toMap()), jsonMapper.writeValueAsString(event));
+    Assert.assertArrayEquals(jsonMapper.writeValueAsBytes(event.toMap()), jsonMapper.writeValueAsBytes(event));
+    // The serialized dimensions are not used with non-default formatting and escaping
+    ObjectWriter prettyWriter = jsonMapper.writerWithDefaultPrettyPrinter();
+    Assert.assertEquals(prettyWriter.writeValueAsString(event.toMap()), prettyWriter.writeValueAsString(event));
+    ObjectMapper asciiMapper = new ObjectMapper().configure(JsonGenerator.Feature.ESCAPE_NON_ASCII, true);
+    Assert.assertEquals(asciiMapper.writeValueAsString(event.toMap()), asciiMapper.writeValueAsString(event));
+  }
+
+  @Test
+  public void testTimestampInDefaultZoneAtCreation() throws Exception
+  {
+    DateTimeZone defaultZone = DateTimeZone.getDefault();
+    DateTimeZone creationZone = DateTimeZone.forOffsetHours(-7);
+    ServiceMetricEvent event;
+    try {
+      DateTimeZone.setDefault(creationZone);
+      event = ServiceMetricEvent.builder().build("test-metric", 1234).build("test", "localhost");
+    }
+    finally {
+      DateTimeZone.setDefault(defaultZone);
+    }
+    String expectedTimestamp = new DateTime(event.getCreatedTimeMillis(), creationZone).toString();
+    Assert.assertEquals(expectedTimestamp, event.toMap().get("timestamp"));
+    ObjectMapper jsonMapper = new ObjectMapper();
+    String serializedTimestamp = jsonMapper.readTree(jsonMapper.writeValueAsBytes(event)).get("timestamp").asText();
+    Assert.assertEquals(expectedTimestamp, serializedTimestamp);
+    Assert.assertEquals(creationZone, event.getCreatedTime().getZone());
+  }
+
+  @Test
+  public void testCreatedTimeMillis() throws Exception
+  {
+    long before = System.currentTimeMillis();
+    ServiceMetricEvent event = ServiceMetricEvent.builder().build("test-metric", 1234).build("test", "localhost");
+    long createdTimeMillis = event.getCreatedTimeMillis();
+    Assert.assertTrue(createdTimeMillis >= before && createdTimeMillis <= System.currentTimeMillis());
+    Assert.assertEquals(new DateTime(createdTimeMillis).toString(), event.toMap().get("timestamp"));
+    Assert.assertEquals(createdTimeMillis, event.getCreatedTime().getMillis());
+    Assert.assertSame(event.getCreatedTime(), event.getCreatedTime());
+
+    // The given DateTime is kept, with its time zone
+    DateTime createdTime = new DateTime(42, DateTimeZone.forOffsetHours(3));
+    event = ServiceMetricEvent.builder().build(createdTime, "test-metric", 1234).build("test", "localhost");
+    Assert.assertSame(createdTime, event.getCreatedTime());
+    Assert.assertEquals(42, event.getCreatedTimeMillis());
+    Assert.assertEquals(createdTime.toString(), event.toMap().get("timestamp"));
+  }
+
+  @Test
+  public void testSerializationFailsOnNullDimensionValues() throws Exception
+  {
+    ObjectMapper jsonMapper = new ObjectMapper();
+    ImmutableMap<String, String> serviceDims = ImmutableMap.of("service", "test", "host", "localhost");
+    ServiceEventBuilder<ServiceMetricEvent> eventBuilder = ServiceMetricEvent.builder()
+                                                                             .setDimension("foo", "bar")
+                                                                             .setDimension("baz", (String) null)
+                                                                             .build("test-metric", 1234);
+    for (ServiceMetricEvent event : Arrays.asList(
+        eventBuilder.build(serviceDims),
+        eventBuilder.build(new ServiceDimensions(serviceDims))
+    )) {
+      try {
+        event.toMap();
+        Assert.fail();
+      }
+      catch (NullPointerException e) {
+        // Expected, as below
+      }
+      try {
+        jsonMapper.writeValueAsBytes(event);
+        Assert.fail();
+      }
+      catch (JsonMappingException e) {
+        Assert.assertTrue(e.getCause() instanceof NullPointerException);
+      }
+    }
+  }
+
+  @Test
+  public void testSerializationFailsOnServiceDimensionNamedAsField() throws Exception
+  {
+    ObjectMapper jsonMapper = new ObjectMapper();
+    ImmutableMap<String, String> serviceDims = ImmutableMap.of("service", "test", "metric", "foo");
+    ServiceEventBuilder<ServiceMetricEvent> eventBuilder = ServiceMetricEvent.builder().build("test-metric", 1234);
+    for (ServiceMetricEvent event : Arrays.asList(
+        eventBuilder.build(serviceDims),
+        eventBuilder.build(new ServiceDimensions(serviceDims))
+    )) {
+      try {
+        jsonMapper.writeValueAsBytes(event.toMap());
+        Assert.fail();
+      }
+      catch (IllegalArgumentException e) {
+        // Expected, as below
+      }
+      // The second attempt checks that the failed check is not remembered as passed
+      for (int i = 0; i < 2; i++) {
+        try {
+          jsonMapper.writeValueAsBytes(event);
+          Assert.fail();
+        }
+        catch (JsonMappingException e) {
+          Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+      }
+    }
+  }
+
+  @Test(expected = JsonMappingException.class)
+  public void testSerializationFailsOnDuplicateDimension() throws Exception
+  {
+    ServiceMetricEvent event = ServiceMetricEvent.builder()
+                                                 .setDimension("host", "bar")
+                                                 .build("test-metric", 1234)
+                                                 .build("test", "localhost");
+    new ObjectMapper().writeValueAsString(event);
+  }
+
   @Test(expected = IllegalStateException.class)
   public void testInfinite() throws Exception
   {